@@ -0,0 +1,171 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: BlockIndex.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Records who has blocked whom, in both directions, by session ID.
+  * </p>
+  * <p>
+  * Besides each user's own block list, the index keeps the reverse: the set
+  * of users who have blocked a given sender. A broadcast only has to look at
+  * that (usually empty) set, instead of checking every receiver's block
+  * list.
+  * </p>
+  * The sets are {@link IntBitSet}s, so broadcasts can read them while other
+  * sessions block and unblock. Changes are made under a lock so the two
+  * directions always agree once a change has finished.
+  *
+  * @author Jamil Triaa
+  */
+	final class BlockIndex {
+
+	 /**
+	  * The set returned for users nobody has blocked. Never changed.
+	  */
+		private static final IntBitSet NOBODY = new IntBitSet();
+
+	 /**
+	  * Each user's set of users they have blocked, indexed by session ID.
+	  */
+		private volatile AtomicReferenceArray<IntBitSet> blocked = new AtomicReferenceArray<IntBitSet>(64);
+
+	 /**
+	  * Each user's set of users who have blocked them, indexed by session ID.
+	  */
+		private volatile AtomicReferenceArray<IntBitSet> blockedBy = new AtomicReferenceArray<IntBitSet>(64);
+
+	 /**
+	  * Serialises changes to the index. Readers never take it.
+	  */
+		private final ReentrantLock lock = new ReentrantLock();
+
+	 /**
+	  * Records that a user has blocked another.
+	  *
+	  * @param blocker
+	  *						the user who does not want the messages
+	  * @param target
+	  *						the user being blocked
+	  */
+		void block(int blocker, int target) {
+			lock.lock();
+			try {
+				blocked = setOf(blocked, blocker);
+				blockedBy = setOf(blockedBy, target);
+				blocked.get(blocker).set(target);
+				blockedBy.get(target).set(blocker);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Records that a user has unblocked another.
+	  *
+	  * @param blocker
+	  *						the user who wants the messages again
+	  * @param target
+	  *						the user being unblocked
+	  */
+		void unblock(int blocker, int target) {
+			lock.lock();
+			try {
+				unlink(blocker, target);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Forgets everything about a user who has left the chat room: their own
+	  * block list and other users' blocks on them. This must be done before
+	  * their session ID is given to somebody else.
+	  *
+	  * @param user
+	  *						the session ID of the user who has left
+	  */
+		void removeUser(int user) {
+			lock.lock();
+			try {
+				IntBitSet targets = get(blocked, user);
+				for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1)) {
+					unlink(user, target);
+				}
+				IntBitSet blockers = get(blockedBy, user);
+				for (int blocker = blockers.nextSetBit(0); blocker >= 0; blocker = blockers.nextSetBit(blocker + 1)) {
+					unlink(blocker, user);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Has the receiver blocked the sender?
+	  *
+	  * @param receiver
+	  *						the user who would get the message
+	  * @param sender
+	  *						the user sending it
+	  * @return true if the message must not be delivered
+	  */
+		boolean isBlocked(int receiver, int sender) {
+			return get(blocked, receiver).get(sender);
+		}
+
+	 /**
+	  * Gets the users who have blocked a sender.
+	  *
+	  * @param sender
+	  *						the user sending a message
+	  * @return the session IDs, as a live set which must not be changed; empty
+	  *						if nobody has blocked the sender
+	  */
+		IntBitSet blockersOf(int sender) {
+			return get(blockedBy, sender);
+		}
+
+	 /**
+	  * Removes one block from both directions. Called with the lock held.
+	  */
+		private void unlink(int blocker, int target) {
+			get(blocked, blocker).clear(target);
+			get(blockedBy, target).clear(blocker);
+		}
+
+	 /**
+	  * Gets a user's set, or the empty set if they have none.
+	  */
+		private static IntBitSet get(AtomicReferenceArray<IntBitSet> sets, int id) {
+			IntBitSet set = id >= 0 && id < sets.length() ? sets.get(id) : null;
+			return set == null ? NOBODY : set;
+		}
+
+	 /**
+	  * Makes sure a user has a set, growing the array if need be. Called with
+	  * the lock held.
+	  *
+	  * @return the array to use from now on
+	  */
+		private static AtomicReferenceArray<IntBitSet> setOf(AtomicReferenceArray<IntBitSet> sets, int id) {
+			if (id >= sets.length()) {
+				AtomicReferenceArray<IntBitSet> bigger = new AtomicReferenceArray<IntBitSet>(Math.max(sets.length() * 2, id + 1));
+				for (int i = 0; i < sets.length(); i++) {
+					bigger.set(i, sets.get(i));
+				}
+				sets = bigger;
+			}
+			if (sets.get(id) == null) sets.set(id, new IntBitSet());
+			return sets;
+		}
+
+	} // End of the class BlockIndex
@@ -0,0 +1,80 @@
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+
+/*
+ * ****************************
+ * Filename: ChatClock.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * A clock which only has a resolution of one second, for the "[HH:mm:ss] "
+  * prefix put in front of chat messages and server events.
+  * </p>
+  * The prefix is formatted at most once per second and shared by every
+  * caller in between, so stamping a message normally costs one read of the
+  * system clock and no allocation.
+  *
+  * @author Jamil Triaa
+  */
+	final class ChatClock {
+
+	 /**
+	  * The prefix for one particular second.
+	  */
+		private static final class Tick {
+			private final long second;
+			private final String prefix;
+
+			private Tick(long second, String prefix) {
+				this.second = second;
+				this.prefix = prefix;
+			}
+		}
+
+	 /**
+	  * The most recently formatted second.
+	  */
+		private static volatile Tick current = format(System.currentTimeMillis() / 1000);
+
+		private ChatClock() {
+		}
+
+	 /**
+	  * Gets the current time as a message prefix.
+	  *
+	  * @return the current time in the format of "[HH:mm:ss] "
+	  */
+		static String prefix() {
+			long second = System.currentTimeMillis() / 1000;
+			Tick tick = current;
+			if (tick.second != second) {
+				// A new second: format it once. If several threads get here at
+				// the same moment they all produce the same text, so no lock.
+				tick = format(second);
+				current = tick;
+			}
+			return tick.prefix;
+		}
+
+	 /**
+	  * Formats a second in the server's time zone.
+	  */
+		private static Tick format(long second) {
+			LocalTime time = Instant.ofEpochSecond(second).atZone(ZoneId.systemDefault()).toLocalTime();
+			char[] text = {
+				'[',
+				(char) ('0' + time.getHour() / 10), (char) ('0' + time.getHour() % 10), ':',
+				(char) ('0' + time.getMinute() / 10), (char) ('0' + time.getMinute() % 10), ':',
+				(char) ('0' + time.getSecond() / 10), (char) ('0' + time.getSecond() % 10),
+				']', ' '
+			};
+			return new Tick(second, new String(text));
+		}
+
+	} // End of the class ChatClock
@@ -0,0 +1,363 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/*
+ * ****************************
+ * Filename: ChatLog.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * An append-only record, on disk, of what the server relays: chat, private
+  * messages and server events such as kicks and shutdowns.
+  * </p>
+  * <p>
+  * The log is a directory of segment files of a fixed size, each mapped
+  * into memory, so appending a record is a copy into memory. Once a segment
+  * is full the next one is started. Every start of the server begins a new
+  * segment, so a record torn by a crash is only ever at the end of one.
+  * </p>
+  * <p>
+  * Sessions never touch the files. They encode a record and put it on a
+  * bounded {@link OutboundQueue}; a single writer thread takes everything
+  * waiting, copies it into the segment and then forces it to disk once for
+  * the whole batch (group commit). While it waits for the disk, new records
+  * gather for the next batch.
+  * </p>
+  * A record is a 4-byte length, a CRC-32C of the rest, the time in
+  * milliseconds, a {@linkplain #CHAT kind} and the UTF-8 text. A length of 0
+  * (the file's unwritten zeros) ends a segment. {@link ChatLogReader} reads
+  * the records back.
+  *
+  * @author Jamil Triaa
+  */
+	final class ChatLog implements Runnable {
+
+	 /**
+	  * A chat message in a room: "room\nline".
+	  */
+		static final byte CHAT = 1;
+
+	 /**
+	  * A private message: "to\nline".
+	  */
+		static final byte PRIVATE = 2;
+
+	 /**
+	  * A server event, such as somebody becoming an Administrator or being
+	  * kicked out: "content".
+	  */
+		static final byte EVENT = 3;
+
+	 /**
+	  * The length and the CRC in front of every record.
+	  */
+		static final int RECORD_HEADER = 8;
+
+	 /**
+	  * The time and the kind, at the start of what the CRC covers.
+	  */
+		static final int RECORD_PREFIX = 9;
+
+	 /**
+	  * The start of every segment file's name. The rest is its number.
+	  */
+		static final String SEGMENT_PREFIX = "segment-";
+
+	 /**
+	  * The end of every segment file's name.
+	  */
+		static final String SEGMENT_SUFFIX = ".log";
+
+	 /**
+	  * The most records copied before a batch is forced to disk.
+	  */
+		private static final int MAX_BATCH = 1024;
+
+	 /**
+	  * The directory of segment files.
+	  */
+		private final Path directory;
+
+	 /**
+	  * The size of every segment file.
+	  */
+		private final int segmentBytes;
+
+	 /**
+	  * The records waiting for the writer.
+	  */
+		private final OutboundQueue queue;
+
+	 /**
+	  * The writer thread.
+	  */
+		private final Thread writer;
+
+	 /**
+	  * The segment being appended to.
+	  */
+		private MappedByteBuffer segment;
+
+	 /**
+	  * The number of the segment being appended to.
+	  */
+		private volatile long segmentNumber;
+
+	 /**
+	  * Where the records not yet forced to disk start in the segment.
+	  */
+		private int unforced = 0;
+
+	 /**
+	  * The number of records written.
+	  */
+		private final LongAdder written = new LongAdder();
+
+	 /**
+	  * The number of times the segment was forced to disk.
+	  */
+		private final LongAdder forces = new LongAdder();
+
+	 /**
+	  * The number of records which could not be written.
+	  */
+		private final LongAdder lost = new LongAdder();
+
+	 /**
+	  * Opens a log, starting a new segment after any already in the
+	  * directory, and starts its writer.
+	  *
+	  * @param directory
+	  *						the directory of segment files; created if missing
+	  * @param segmentBytes
+	  *						the size of every segment file
+	  * @param capacity
+	  *						the most records that may wait for the writer
+	  * @param overflow
+	  *						what to do when that many are waiting; never
+	  *						{@link OutboundQueue.Overflow#DISCONNECT}
+	  * @throws IOException
+	  *						if the directory or the first segment cannot be made
+	  * @throws IllegalArgumentException
+	  *						if the segments are too small
+	  */
+		ChatLog(Path directory, int segmentBytes, int capacity, OutboundQueue.Overflow overflow) throws IOException {
+			if (segmentBytes < 4096) {
+				throw new IllegalArgumentException("--logSegmentBytes must be at least 4096");
+			}
+			this.directory = directory;
+			this.segmentBytes = segmentBytes;
+			Files.createDirectories(directory);
+			List<Path> existing = segments(directory);
+			segmentNumber = existing.isEmpty() ? 0 : number(existing.get(existing.size() - 1)) + 1;
+			segment = map(segmentNumber);
+			queue = new OutboundQueue(capacity, overflow, 1000);
+			writer = new Thread(this, "chat-log");
+			writer.setDaemon(true);
+			queue.setWriter(new Runnable() {
+				@Override
+				public void run() {
+					LockSupport.unpark(writer);
+				}
+			});
+			writer.start();
+		}
+
+	 /**
+	  * Adds a record to the log. It is only queued, so the caller never
+	  * waits for the disk.
+	  *
+	  * @param kind
+	  *						{@link #CHAT}, {@link #PRIVATE} or {@link #EVENT}
+	  * @param text
+	  *						what to record
+	  */
+		void append(byte kind, String text) {
+			byte[] body = text.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + RECORD_PREFIX + body.length);
+			// The length and the CRC are filled in by the writer
+			record.putInt(0).putInt(0).putLong(System.currentTimeMillis()).put(kind).put(body);
+			record.flip();
+			queue.offer(record);
+		}
+
+	 /**
+	  * Writes what is still waiting, forces it to disk and stops the writer.
+	  *
+	  * @param timeoutMillis
+	  *						how long to wait for the writer
+	  */
+		void close(long timeoutMillis) {
+			queue.close();
+			try {
+				writer.join(timeoutMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	 /**
+	  * Describes what the log has done, for the Administrators.
+	  *
+	  * @return e.g. "segment 3, 1200 records in 40 forces, 2 waiting, 0 lost"
+	  */
+		String report() {
+			long f = forces.sum();
+			return "segment " + segmentNumber + ", " + written.sum() + " records in " + f
+				+ (f == 1 ? " force, " : " forces, ") + queue.depth() + " waiting, "
+				+ (lost.sum() + queue.dropped()) + " lost";
+		}
+
+	 /**
+	  * Copies the queued records into the segments, forcing each batch to
+	  * disk, until the log is closed.
+	  *
+	  * @see java.lang.Runnable#run()
+	  */
+		@Override
+		public void run() {
+			ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+			CRC32C crc = new CRC32C();
+			while (true) {
+				int count = queue.drainTo(batch, 0, Long.MAX_VALUE);
+				if (count == 0) {
+					// Nothing can be added once closed, so empty then means done
+					if (queue.isClosed() && queue.isEmpty()) return;
+					LockSupport.park(this);
+					continue;
+				}
+				try {
+					for (int i = 0; i < count; i++) {
+						write(batch[i], crc);
+						batch[i] = null;
+					}
+					force();
+				} catch (IOException e) {
+					System.err.println(" Exception in the chat log: " + e.getMessage());
+					for (int i = 0; i < count; i++) {
+						if (batch[i] != null) lost.increment();
+						batch[i] = null;
+					}
+				}
+			}
+		}
+
+	 /**
+	  * Copies one record into the segment, starting the next segment if it
+	  * does not fit. The length goes in last, so a record cut short by a
+	  * crash reads as the end of the segment.
+	  */
+		private void write(ByteBuffer record, CRC32C crc) throws IOException {
+			int length = record.remaining() - RECORD_HEADER;
+			if (record.remaining() + 4 > segmentBytes) {
+				// Could never fit
+				lost.increment();
+				return;
+			}
+			if (segment.position() + record.remaining() + 4 > segmentBytes) {
+				// Leaves at least 4 zero bytes at the end: the length 0 which ends it
+				force();
+				segment = map(++segmentNumber);
+				unforced = 0;
+			}
+			crc.reset();
+			ByteBuffer checked = record.duplicate();
+			checked.position(RECORD_HEADER);
+			crc.update(checked);
+			int start = segment.position();
+			record.putInt(4, (int) crc.getValue());
+			record.position(4);
+			segment.position(start + 4);
+			segment.put(record);
+			segment.putInt(start, length);
+			written.increment();
+		}
+
+	 /**
+	  * Forces what has been written since the last force to disk.
+	  */
+		private void force() {
+			int end = segment.position();
+			if (end > unforced) {
+				segment.force(unforced, end - unforced);
+				forces.increment();
+				unforced = end;
+			}
+		}
+
+	 /**
+	  * Creates a segment file and maps it into memory.
+	  */
+		private MappedByteBuffer map(long number) throws IOException {
+			Path file = directory.resolve(name(number));
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				// The mapping stays valid once the channel is closed
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+			}
+		}
+
+	 /**
+	  * Gets a segment file's name from its number.
+	  *
+	  * @param number
+	  *						the segment's number
+	  * @return its file name
+	  */
+		static String name(long number) {
+			return String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+		}
+
+	 /**
+	  * Gets a segment file's number from its name.
+	  *
+	  * @param file
+	  *						a segment file
+	  * @return its number
+	  */
+		static long number(Path file) {
+			String name = file.getFileName().toString();
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+
+	 /**
+	  * Lists the segment files in a directory, oldest first.
+	  *
+	  * @param directory
+	  *						the log's directory
+	  * @return the segment files
+	  * @throws IOException
+	  *						if the directory cannot be read
+	  */
+		static List<Path> segments(Path directory) throws IOException {
+			List<Path> files = new ArrayList<Path>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+				for (Path file : stream) {
+					files.add(file);
+				}
+			}
+			// The numbers are zero-padded, so the names sort in order
+			Collections.sort(files);
+			return files;
+		}
+
+	} // End of the class ChatLog
@@ -0,0 +1,213 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/*
+ * ****************************
+ * Filename: ChatLogReader.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Reads a {@link ChatLog} back, record by record, oldest first.
+  * </p>
+  * <p>
+  * Every segment is mapped into memory and read straight through, so
+  * reading is as fast as the disk (or the page cache) can go. A record whose
+  * CRC does not match, which can only be one torn by a crash, ends its
+  * segment, and reading carries on with the next one.
+  * </p>
+  * Run on its own, it prints the log for auditing:
+  * {@code java ChatLogReader --logDir=chatlog [--kind=chat|private|event]}
+  *
+  * @author Jamil Triaa
+  */
+	public class ChatLogReader {
+
+	 /**
+	  * The segment files, oldest first.
+	  */
+		private final List<Path> segments;
+
+	 /**
+	  * The index of the next segment to open.
+	  */
+		private int nextSegment = 0;
+
+	 /**
+	  * The segment being read, or null before the first one.
+	  */
+		private MappedByteBuffer segment;
+
+		private final CRC32C crc = new CRC32C();
+
+	 /**
+	  * When the record just read was written.
+	  */
+		private long time;
+
+	 /**
+	  * The kind of the record just read.
+	  */
+		private byte kind;
+
+	 /**
+	  * The text of the record just read.
+	  */
+		private String text;
+
+	 /**
+	  * The number of segments which ended in a torn record.
+	  */
+		private int torn = 0;
+
+	 /**
+	  * Opens the log in a directory. Segments added later are not read.
+	  *
+	  * @param directory
+	  *						the log's directory
+	  * @throws IOException
+	  *						if the directory cannot be read
+	  */
+		ChatLogReader(Path directory) throws IOException {
+			segments = ChatLog.segments(directory);
+		}
+
+	 /**
+	  * Moves on to the next record.
+	  *
+	  * @return false once there are no more
+	  * @throws IOException
+	  *						if a segment cannot be read
+	  */
+		boolean next() throws IOException {
+			while (true) {
+				if (segment != null && segment.remaining() >= ChatLog.RECORD_HEADER) {
+					int start = segment.position();
+					int length = segment.getInt(start);
+					if (length >= ChatLog.RECORD_PREFIX && length <= segment.remaining() - ChatLog.RECORD_HEADER) {
+						ByteBuffer body = segment.duplicate();
+						body.position(start + ChatLog.RECORD_HEADER).limit(start + ChatLog.RECORD_HEADER + length);
+						crc.reset();
+						crc.update(body.duplicate());
+						if ((int) crc.getValue() == segment.getInt(start + 4)) {
+							time = body.getLong();
+							kind = body.get();
+							text = StandardCharsets.UTF_8.decode(body).toString();
+							segment.position(start + ChatLog.RECORD_HEADER + length);
+							return true;
+						}
+					}
+					if (length != 0) torn++;
+				}
+				// The end of this segment
+				if (nextSegment == segments.size()) return false;
+				try (FileChannel channel = FileChannel.open(segments.get(nextSegment++), StandardOpenOption.READ)) {
+					segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				}
+			}
+		}
+
+	 /**
+	  * Gets when the record was written.
+	  *
+	  * @return the time in milliseconds
+	  */
+		long time() {
+			return time;
+		}
+
+	 /**
+	  * Gets what kind of record it is.
+	  *
+	  * @return {@link ChatLog#CHAT}, {@link ChatLog#PRIVATE} or
+	  *						{@link ChatLog#EVENT}
+	  */
+		byte kind() {
+			return kind;
+		}
+
+	 /**
+	  * Gets what was recorded.
+	  *
+	  * @return the record's text
+	  */
+		String text() {
+			return text;
+		}
+
+	 /**
+	  * Gets the number of segments read so far which ended in a torn record.
+	  *
+	  * @return the number of torn segments
+	  */
+		int torn() {
+			return torn;
+		}
+
+	 /**
+	  * Prints the log.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @throws IOException
+	  *						if the log cannot be read
+	  */
+		public static void main(String[] args) throws IOException {
+			ServerOptions options = new ServerOptions(args);
+			String logDir = options.getString("logDir", "chatlog");
+			String only = options.getString("kind", null);
+			try {
+				options.checkAllRead();
+			} catch (IllegalArgumentException e) {
+				System.err.println(" " + e.getMessage());
+				System.exit(1);
+			}
+			ChatLogReader reader = new ChatLogReader(Paths.get(logDir));
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+			PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024), false, "UTF-8");
+			long records = 0;
+			long start = System.nanoTime();
+			while (reader.next()) {
+				records++;
+				String kind = kindName(reader.kind());
+				if (only != null && !only.equalsIgnoreCase(kind)) continue;
+				String text = reader.text();
+				int split = text.indexOf('\n');
+				out.println(format.format(new Date(reader.time())) + " " + kind + " "
+					+ (split < 0 ? text : text.substring(0, split) + " |" + text.substring(split + 1)));
+			}
+			out.flush();
+			long millis = (System.nanoTime() - start) / 1000000;
+			System.err.println(" " + records + " records in " + reader.segments.size() + " segments ("
+				+ reader.torn() + " torn) read in " + millis + " ms.");
+		}
+
+	 /**
+	  * Names a kind of record.
+	  */
+		private static String kindName(byte kind) {
+			switch (kind) {
+				case ChatLog.CHAT: return "chat";
+				case ChatLog.PRIVATE: return "private";
+				case ChatLog.EVENT: return "event";
+				default: return "kind-" + kind;
+			}
+		}
+
+	} // End of the class ChatLogReader
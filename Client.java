@@ -1,5 +1,13 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /*
  * ****************************
@@ -22,6 +30,13 @@ import java.net.*;
 	  * <p>
     * Instantiates a new {@linkplain ClientInstance Client Instance}.
     * </p>
+		* With {@code --binary}, the client talks to the server in
+		* {@linkplain Frame frames} instead of lines of text. {@code --port=N}
+		* connects to another port, such as another server of a cluster.
+		* {@code --compress} uses the binary protocol and asks the server to
+		* {@linkplain Compression compress} what it sends.
+		* With {@code --load}, there is no console: it simulates many users
+		* at once instead (see {@link LoadGenerator}).
 		*
 	  * @param args
 		*							the supplied command-line arguments as an array of String
@@ -30,11 +45,29 @@ import java.net.*;
 		*							May occur if connection to server is lost suddenly
 	  */
 		public static void main(String[] args) throws Exception {
-			ClientInstance client = new ClientInstance();
+			ServerOptions options = new ServerOptions(args);
+			boolean load, compress, binary;
+			int port;
+			try {
+				load = options.getBoolean("load", false);
+				compress = options.getBoolean("compress", false);
+				binary = compress || options.getBoolean("binary", false);
+				port = options.getInt("port", 2111, 1, 65535);
+				// The load generator has options of its own, which it checks
+				if (!load) options.checkAllRead();
+			} catch (IllegalArgumentException e) {
+				System.err.println(" " + e.getMessage());
+				System.exit(1);
+				return;
+			}
+			if (load) {
+				LoadGenerator.run(options);
+				return;
+			}
+			ClientInstance client = new ClientInstance(port, binary, compress);
 			client.start();
 		}
 	}
-
 /**
  * <p>
  * This class defines a Client Instance that can:
@@ -43,6 +76,14 @@ import java.net.*;
  * <li>Accept user input and handle sending to the server.</li>
  * <li>Handle responses from the server.</li>
  * </ul>
+ * <p>
+ * Everything goes through one {@link SocketChannel}. While the user logs
+ * in, it is read and written in blocking mode. After that, the listener
+ * thread serves it with a {@link Selector}: it reads whatever has
+ * arrived, however many messages that is, and writes what the sender
+ * thread has queued. Neither thread ever waits for the console, whose
+ * output a {@link ConsoleRenderer} writes in batches.
+ * </p>
  *
  * @author Jamil Triaa
  *
@@ -66,19 +107,78 @@ import java.net.*;
 	private static String accepted = " Your username has been accepted.";
 
  /**
-  * The socket used to connect to the server.
+  * The channel connected to the server.
   */
-	private static Socket socket = null;
+	private static SocketChannel channel = null;
 
  /**
-  * The BufferedReader for incoming streams
-	*/
-	private static BufferedReader in;
+  * Tells the listener thread when the channel can be read or written, or
+  * that the sender thread has queued a message.
+  */
+	private static Selector selector;
 
  /**
-  * The PrintWriter for outgoing createStreams
-	*/
-	private static PrintWriter out;
+  * The bytes read from the server and not yet handled, ready to be read.
+  */
+	private static final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+ /**
+  * Split what the server sends into lines, or into frames with the binary
+  * protocol.
+  */
+	private static LineDecoder lines;
+
+	private static FrameDecoder frames;
+
+ /**
+  * The messages waiting to be written to the server. Only the listener
+  * thread writes them, so they cannot mix.
+  */
+	private static final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+
+ /**
+  * The keyboard. One reader for the whole session, so that nothing it has
+  * read ahead is lost.
+  */
+	private static final BufferedReader keyboard =
+		new BufferedReader(new InputStreamReader(System.in));
+
+ /**
+  * Prints everything the user sees.
+  */
+	private static final ConsoleRenderer console = new ConsoleRenderer(System.out, "console");
+
+ /**
+  * Whether the client uses the binary protocol instead of lines of text.
+  */
+	private static boolean binary = false;
+
+ /**
+  * Whether to ask the server to compress the frames it sends.
+  */
+	private static boolean compress = false;
+
+ /**
+  * The address of the server, to reconnect to.
+  */
+	private static String host;
+
+ /**
+  * Whether the server lets the client resume its session after a dropped
+  * connection.
+  */
+	private static boolean resumable = false;
+
+ /**
+  * The token to resume the session with; null until the server sends one.
+  */
+	private static String resumeToken;
+
+ /**
+  * The frames received since the server sent the token, which is how the
+  * server knows what the client missed.
+  */
+	private static long received = 0;
 
  /**
   * A signal indicating that the client has been kicked out of the chat room
@@ -106,6 +206,22 @@ import java.net.*;
 	*/
 	private static String clientName;
 
+ /**
+  * Creates a new Client Instance.
+  *
+  * @param port
+  *				the port the server listens on
+  * @param useBinary
+  *				whether to use the binary protocol instead of lines of text
+  * @param useCompression
+  *				whether to ask for compressed frames, with the binary protocol
+  */
+	ClientInstance(int port, boolean useBinary, boolean useCompression) {
+		portNumber = port;
+		binary = useBinary;
+		compress = useCompression;
+	}
+
  /**
 	* Calls the methods necessary to establish a connection with the server.
 	*/
@@ -120,18 +236,199 @@ import java.net.*;
 	*/
 	private void establishConnection() {
 			String serverAddress = getClientInput(" What is the IP address of the server you wish to connect to?");
+			host = serverAddress;
 			try {
-				socket = new Socket(serverAddress, portNumber);
-				in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				out = new PrintWriter(socket.getOutputStream(), true);
+				selector = Selector.open();
+				connect();
+				if (binary && !negotiateBinary()) closeConnection();
 				finished = false;
 			}
 			catch (IOException e) {
 				System.err.println(" Exception in handleConnection(): " + e);
+				closeConnection();
 			}
-			handleProfileSetUp();
+			if (binary) handleBinaryProfileSetUp();
+			else handleProfileSetUp();
 		} // End of handleConnection() in the class ClientInstance
 
+ /**
+  * Opens a new channel to the server, in blocking mode, closing the old
+  * one if there is one.
+  *
+  * @throws IOException
+  *				if the server cannot be reached
+  */
+	private static void connect() throws IOException {
+		if (channel != null) {
+			try { channel.close(); }
+			catch (IOException ignored) { }
+		}
+		channel = SocketChannel.open(new InetSocketAddress(host, portNumber));
+		readBuffer.clear().flip();
+		lines = new LineDecoder();
+		frames = new FrameDecoder();
+	}
+
+ /**
+  * Reads more from the server into the read buffer, waiting for it.
+  *
+  * @return false if the server has closed the connection
+  * @throws IOException
+  *				if the connection is lost
+  */
+	private static boolean fill() throws IOException {
+		readBuffer.compact();
+		try {
+			return channel.read(readBuffer) >= 0;
+		} finally {
+			readBuffer.flip();
+		}
+	}
+
+ /**
+  * Reads a line from the server, waiting for it. Only while the channel
+  * is in blocking mode.
+  *
+  * @return the line, or null if the connection was closed
+  * @throws IOException
+  *				if the connection is lost
+  */
+	private static String readLine() throws IOException {
+		String line;
+		while ((line = lines.nextLine(readBuffer)) == null) {
+			if (!fill()) return null;
+		}
+		return line;
+	}
+
+ /**
+  * Reads a frame from the server, waiting for it. Only while the channel
+  * is in blocking mode.
+  *
+  * @return the frame, or null if the connection was closed
+  * @throws IOException
+  *				if the connection is lost
+  */
+	private static Frame readFrame() throws IOException {
+		Frame frame;
+		while ((frame = frames.next(readBuffer)) == null) {
+			if (!fill()) return null;
+		}
+		return frame;
+	}
+
+ /**
+  * Writes to the server straight away. Only while the channel is in
+  * blocking mode; after that, messages are {@linkplain #send(ByteBuffer)
+  * queued}.
+  *
+  * @param bytes
+  *				what to write
+  * @throws IOException
+  *				if the connection is lost
+  */
+	private static void writeNow(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) channel.write(bytes);
+	}
+
+ /**
+  * <p>
+  * Asks the server to switch to the binary protocol.
+  * </p>
+  * The server first greets the client with a line of text, as it greets
+  * every client; the client answers with {@link Frame#HELLO_LINE} and
+  * waits for the server's {@link Frame#HELLO} frame. To ask for
+  * compression, it adds {@link Compression#NAME} to the line, and the
+  * HELLO says whether the server agreed. {@link FrameDecoder} inflates
+  * compressed frames either way. It also always asks to be able to
+  * {@linkplain #reconnect() resume} its session.
+  *
+  * @return false if the connection was lost or the server only speaks
+  *				lines
+  * @throws IOException
+  *				if the connection is lost
+  */
+	private static boolean negotiateBinary() throws IOException {
+		// Skips the greeting line
+		if (readLine() == null) return false;
+		String request = Frame.HELLO_LINE + (compress ? " " + Compression.NAME : "") + " " + Frame.RESUME_FEATURE;
+		writeNow(ByteBuffer.wrap((request + "\n").getBytes(StandardCharsets.UTF_8)));
+		// A frame starts with the high byte of a small length, a line does not
+		while (!readBuffer.hasRemaining()) {
+			if (!fill()) return false;
+		}
+		Frame hello = readBuffer.get(readBuffer.position()) == 0 ? readFrame() : null;
+		if (hello == null || hello.opcode != Frame.HELLO) {
+			System.err.println(" The server does not support the binary protocol.");
+			return false;
+		}
+		List<String> features = Arrays.asList(hello.payload.split(" "));
+		if (compress && !features.contains(Compression.NAME)) {
+			System.err.println(" The server does not support compression.");
+		}
+		resumable = features.contains(Frame.RESUME_FEATURE);
+		return true;
+	}
+
+ /**
+  * <p>
+  * Connects to the server again after the connection has dropped, and
+  * resumes the session with the token the server sent: the server sends
+  * a {@link Frame#RESUME} and then every frame that was missed.
+  * </p>
+  * <p>
+  * It tries again and again, waiting twice as long each time, for up to a
+  * minute. If the server no longer has the session, the client logs in
+  * again under the same name, and whatever was said meanwhile is lost.
+  * </p>
+  * Messages typed meanwhile stay queued, and go out on the new channel.
+  *
+  * @return true once the client is back in the chat room
+  */
+	private static boolean reconnect() {
+		console.println(" Connection to the server has been lost. Reconnecting...");
+		long giveUp = System.currentTimeMillis() + 60000;
+		long backoff = 250;
+		while (!finished && System.currentTimeMillis() < giveUp) {
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				return false;
+			}
+			backoff = Math.min(backoff * 2, 8000);
+			try {
+				connect();
+				if (!negotiateBinary() || !resumable) return false;
+				// The greeting, which asks for a username
+				if (readFrame() == null) continue;
+				writeNow(Frame.encode(Frame.RESUME, resumeToken + "\n" + received));
+				Frame reply = readFrame();
+				if (reply == null) {
+					// The server was still closing the old connection
+					continue;
+				} else if (reply.opcode == Frame.RESUME) {
+					console.println(" Reconnected.");
+					return true;
+				}
+				// The session has gone: log in again, with a new token
+				resumeToken = null;
+				writeNow(Frame.encode(Frame.LOGIN, clientName));
+				Frame frame;
+				while ((frame = readFrame()) != null) {
+					if (frame.opcode == Frame.LOGIN) {
+						console.println(" Reconnected, but messages sent while you were away have been lost.");
+						return true;
+					} else if (frame.opcode == Frame.SYSTEM && frame.payload.contains("already being used")) {
+						return false;
+					}
+				}
+			} catch (IOException e) {
+				// Not back yet; try again
+			}
+		}
+		return false;
+	}
+
  /**
   * <p>
   * handleProfileSetup handles setting up the client's
@@ -145,22 +442,99 @@ import java.net.*;
 	private void handleProfileSetUp() {
 		String line = null;
 		while (! isAllowedToChat) {
-			try { line = in.readLine(); }
+			try {
+				line = readLine();
+				if (line == null) {
+					closeConnection();
+				}
+				else if (line.startsWith(welcome)) {
+					String name = getClientInput(welcome);
+					writeNow(ByteBuffer.wrap(((name == null ? "" : name) + "\n").getBytes(StandardCharsets.UTF_8)));
+				}
+				else if (line.startsWith(accepted) ) {
+					isAllowedToChat = true;
+					showWelcome();
+				}
+				else console.println(line);
+			}
 			catch (IOException e) {
 				System.err.println(" Exception in handleProfileSetUp:" + e);
+				closeConnection();
 			}
-			if (line.startsWith(welcome)) {
-				out.println(getClientInput(welcome));
+		}
+	}	// End of handleProfileSetUp()	in the class ClientInstance
+
+ /**
+  * <p>
+  * Sets up the client's account on the server with the binary protocol.
+  * </p>
+  * Until the username is accepted (a {@link Frame#LOGIN} frame), every
+  * message from the server asks for a username.
+  */
+	private void handleBinaryProfileSetUp() {
+		while (! isAllowedToChat) {
+			Frame frame = null;
+			try { frame = readFrame(); }
+			catch (IOException e) {
+				System.err.println(" Exception in handleBinaryProfileSetUp:" + e);
+			}
+			try {
+				if (frame == null) {
+					closeConnection();
+				}
+				else if (frame.opcode == Frame.LOGIN) {
+					isAllowedToChat = true;
+					showWelcome();
+				}
+				else if (frame.opcode == Frame.SYSTEM) {
+					String name = getClientInput(frame.payload);
+					writeNow(Frame.encode(Frame.LOGIN, name == null ? "" : name));
+				}
+				else console.println(frame.payload);
 			}
-			else if (line.startsWith(accepted) ) {
-				isAllowedToChat = true;
-				System.out.println(accepted +" Welcome to the chat room! You can send messages here.");
-				System.out.println(" If you'd like to see a list of commands, type '-help'.");
-				System.out.println(" -----------------------------------------------------------");
+			catch (IOException e) {
+				System.err.println(" Exception in handleBinaryProfileSetUp:" + e);
+				closeConnection();
 			}
-			else System.out.println(line);
 		}
-	}	// End of handleProfileSetUp()	in the class ClientInstance
+	}	// End of handleBinaryProfileSetUp()	in the class ClientInstance
+
+ /**
+  * Tells the user that they have entered the chat room.
+  */
+	private void showWelcome() {
+		console.println(accepted +" Welcome to the chat room! You can send messages here.");
+		console.println(" If you'd like to see a list of commands, type '-help'.");
+		console.println(" -----------------------------------------------------------");
+	}
+
+ /**
+  * Queues a frame for the server.
+  *
+  * @param opcode
+  *				the kind of message
+  * @param text
+  *				the message; null (the keyboard has been closed) leaves the chat
+  *				room
+  */
+	private static void sendToServer(byte opcode, String text) {
+		if (text == null) {
+			opcode = Frame.COMMAND;
+			text = "-quit";
+		}
+		send(Frame.encode(opcode, text));
+	}
+
+ /**
+  * Queues a message for the listener thread to write, and wakes it up.
+  *
+  * @param bytes
+  *				the encoded message
+  */
+	private static void send(ByteBuffer bytes) {
+		outgoing.add(bytes);
+		selector.wakeup();
+	}
 
  /**
   * <p>
@@ -173,7 +547,19 @@ import java.net.*;
 			@Override
 			public void run() {
 					while (!finished){
-						out.println(getClientInput(null));
+						String message = getClientInput(null);
+						if (message == null || message.equals("-quit")) {
+							// So that the connection closing is not taken for a dropped one
+							finished = true;
+						}
+						if (!binary) {
+							String line = message == null ? "-quit" : message;
+							send(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+						} else if (message != null && message.startsWith("-")) {
+							sendToServer(Frame.COMMAND, message);
+						} else {
+							sendToServer(Frame.CHAT, message);
+						}
 					}
 			}
 		});
@@ -192,12 +578,10 @@ import java.net.*;
 	private String getClientInput (String hint) {
 		String message = null;
 		try {
-			BufferedReader reader = new BufferedReader(
-				new InputStreamReader(System.in) );
 			if (hint != null) {
-				System.out.println(hint);
+				console.println(hint);
 			}
-			message = reader.readLine();
+			message = keyboard.readLine();
 			if (!isAllowedToChat) { clientName = message; }
 		}
 		catch (IOException e) {
@@ -209,7 +593,7 @@ import java.net.*;
  /**
   * <p>
 	* handleIncomingMessages handles receiving and printing
-	* out incoming messages.
+	* out incoming messages, and writes the queued ones.
 	* </p>
 	*/
 	private void handleIncomingMessages() { // Listener thread
@@ -218,17 +602,21 @@ import java.net.*;
 				@Override
 				public void run() {
 						try {
-							while (!finished) {
-								String line = in.readLine();
-								if (line == null) {
-									// Connection lost
+							SelectionKey key = register();
+							// Logging in may have read past the login reply
+							if (!handleBuffered()) return;
+							while (!kickedOut) {
+								selector.select();
+								selector.selectedKeys().clear();
+								if (!write(key) || !read()) {
+									// Connection lost; the session may wait for the client to come back
+									if (!finished && resumeToken != null && reconnect()) {
+										key = register();
+										// The missed frames may have come with the server's reply
+										if (!handleBuffered()) break;
+										continue;
+									}
 									break;
-								} else if (line.equals(KICKED_OUT))	{
-									// The client has been kicked out of the chat room
-									kickedOut = true;
-									break;
-								} else {
-									System.out.println(line);
 								}
 							}
 						}	catch (IOException e) {
@@ -243,6 +631,121 @@ import java.net.*;
 				listenerThread.start();
 			} // end of handleIncomingMessages() in the class ClientInstance
 
+ /**
+  * Switches the channel to non-blocking mode and registers it with the
+  * selector.
+  *
+  * @return the registration
+  * @throws IOException
+  *				if the channel cannot be registered
+  */
+	private static SelectionKey register() throws IOException {
+		channel.configureBlocking(false);
+		return channel.register(selector, SelectionKey.OP_READ);
+	}
+
+ /**
+  * Writes as many of the queued messages as the channel will take. If it
+  * is full, the selector says when it can take more.
+  *
+  * @param key
+  *				the channel's registration
+  * @return false if the connection has been lost
+  */
+	private static boolean write(SelectionKey key) {
+		try {
+			ByteBuffer next;
+			while ((next = outgoing.peek()) != null) {
+				channel.write(next);
+				if (next.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return true;
+				}
+				outgoing.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+ /**
+  * Reads whatever the server has sent and handles every complete line or
+  * frame in it. All of them go to the console together.
+  *
+  * @return false if the connection has been lost
+  */
+	private static boolean read() {
+		int count;
+		readBuffer.compact();
+		try {
+			count = channel.read(readBuffer);
+		} catch (IOException e) {
+			count = -1;
+		} finally {
+			readBuffer.flip();
+		}
+		return handleBuffered() && count >= 0;
+	}
+
+ /**
+  * Handles every complete line or frame already in the read buffer,
+  * without reading any more.
+  *
+  * @return false if the server sent something no line or frame can be
+  */
+	private static boolean handleBuffered() {
+		try {
+			if (binary) {
+				Frame frame;
+				while (!kickedOut && (frame = frames.next(readBuffer)) != null) {
+					received(frame);
+				}
+			} else {
+				String line;
+				while (!kickedOut && (line = lines.nextLine(readBuffer)) != null) {
+					if (line.equals(KICKED_OUT)) {
+						// The client has been kicked out of the chat room
+						kickedOut = true;
+					} else {
+						console.println(line);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// A line or frame too long to be anything the server would send
+			System.err.println(" Exception in read(): " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+ /**
+  * Handles a frame from the server.
+  *
+  * @param frame
+  *				the frame
+  */
+	private static void received(Frame frame) {
+		if (frame.opcode == Frame.SESSION) {
+			// Counted from here, to tell the server what was missed
+			resumeToken = frame.payload;
+			received = 0;
+			return;
+		}
+		received++;
+		if (frame.opcode == Frame.KICK) {
+			// Only the server can send this frame, so it cannot be faked
+			kickedOut = true;
+		} else if (frame.opcode == Frame.PING) {
+			// The server checking that the client is still there
+			sendToServer(Frame.PONG, frame.payload);
+		} else {
+			console.println(frame.payload);
+		}
+	}
+
  /**
   * <p>
   * Cuts off the client's connection to the server, closes streams
@@ -261,33 +764,32 @@ import java.net.*;
 	*/
 	private static synchronized void closeConnection() {
 
-		System.out.println(" ----------------------------------------------------------");
+		console.println(" ----------------------------------------------------------");
 
 		// Case 1: Client wants to disconnect
 		if (finished)
-	    System.out.println(" You have left the chat room.");
+	    console.println(" You have left the chat room.");
 
 
 		// Case 2: Client disconnects abruptly
 		else if (!finished && !kickedOut)
-			System.out.println(" Connection to the server has been lost!");
+			console.println(" Connection to the server has been lost!");
 
 
 		// Case 3: Client is kicked out of the chat room by Administrator
 		if (!finished && kickedOut)
-	    System.out.println(" You have been kicked out of the chat room by an administrator.");
+	    console.println(" You have been kicked out of the chat room by an administrator.");
 
 
 		try {
-			out.close();
-			in.close();
-			if (socket!= null) socket.close(); // Finish the client program
+			if (channel != null) channel.close(); // Finish the client program
 		}		catch (IOException e) {
 				System.err.println(" Exception when closing the socket");
 				System.err.println(e.getMessage());
 			} finally {
 
-					// Program exits
+					// Everything printed reaches the console before the program exits
+					console.close();
 					System.exit(0);
 				}
 	} // End of closeConnection() in the class ClientInstance
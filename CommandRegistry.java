@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * ****************************
+ * Filename: CommandRegistry.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * The commands clients can use, such as "-help" or "-block username".
+  * </p>
+  * <p>
+  * A command is registered with its usage, which says whether it takes an
+  * argument, a description for the help screen and a handler. Adding a
+  * command does not touch the code which dispatches them.
+  * </p>
+  * <p>
+  * Finding a command looks for the first space, then looks the name up in
+  * a small open-addressed table keyed by its length and two of its
+  * characters, so nothing is hashed in full and no objects are created.
+  * Whether the argument is there is checked from the line's length, so
+  * malformed commands never throw.
+  * </p>
+  *
+  * @param <S>
+  *						the session type the handlers act on
+  * @author Jamil Triaa
+  */
+	final class CommandRegistry<S> {
+
+	 /**
+	  * Carries out a command for a session.
+	  *
+	  * @param <S>
+	  *						the session type
+	  */
+		interface Handler<S> {
+
+		 /**
+		  * Carries out the command.
+		  *
+		  * @param session
+		  *						the session of the client who sent the command
+		  * @param argument
+		  *						everything after the command name and a space, or ""
+		  *						for a command without an argument
+		  */
+			void handle(S session, String argument);
+		}
+
+	 /**
+	  * Who is shown a command on the help screen.
+	  */
+		enum Audience {
+			EVERYONE, ADMINS, NON_ADMINS
+		}
+
+	 /**
+	  * A registered command.
+	  *
+	  * @param <S>
+	  *						the session type
+	  */
+		static final class Command<S> {
+
+		 /**
+		  * The name, such as "-block".
+		  */
+			final String name;
+
+		 /**
+		  * How to use it, such as "-block username".
+		  */
+			final String usage;
+
+		 /**
+		  * What it does, for the help screen.
+		  */
+			final String description;
+
+		 /**
+		  * Who sees it on the help screen.
+		  */
+			final Audience audience;
+
+		 /**
+		  * Does it take an argument?
+		  */
+			final boolean takesArgument;
+
+		 /**
+		  * How long each run has taken.
+		  */
+			final LatencyHistogram time = new LatencyHistogram();
+
+			private final Handler<S> handler;
+
+			private Command(String usage, String description, Audience audience, Handler<S> handler) {
+				int space = usage.indexOf(' ');
+				this.name = space < 0 ? usage : usage.substring(0, space);
+				this.usage = usage;
+				this.description = description;
+				this.audience = audience;
+				this.takesArgument = space >= 0;
+				this.handler = handler;
+			}
+
+		 /**
+		  * Is the line a well-formed use of this command: just the name, or
+		  * the name, a space and a non-empty argument?
+		  *
+		  * @param line
+		  *						a line which starts with the command's name
+		  * @return true if the command can be run with it
+		  */
+			boolean accepts(String line) {
+				return takesArgument ? line.length() > name.length() + 1 : line.length() == name.length();
+			}
+
+		 /**
+		  * Runs the command, and records how long it took. The line must
+		  * have been {@linkplain #accepts(String) accepted}.
+		  *
+		  * @param session
+		  *						the session of the client who sent the command
+		  * @param line
+		  *						the whole command
+		  */
+			void run(S session, String line) {
+				long start = System.nanoTime();
+				try {
+					handler.handle(session, takesArgument ? line.substring(name.length() + 1) : "");
+				} finally {
+					time.record(System.nanoTime() - start);
+				}
+			}
+		}
+
+	 /**
+	  * The commands, placed by the {@linkplain #key(String, int) key} of
+	  * their name. The length is a power of two
+	  * and at least twice the number of commands, so probes are short.
+	  */
+		private Command<S>[] table = newTable(32);
+
+	 /**
+	  * The commands in the order they were registered, for the help screen.
+	  */
+		private final List<Command<S>> ordered = new ArrayList<Command<S>>();
+
+	 /**
+	  * Registers a command. Commands are not expected to be registered while
+	  * clients are being served.
+	  *
+	  * @param usage
+	  *						the name, followed by a space and a description of the
+	  *						argument if the command takes one, e.g. "-kick username"
+	  * @param description
+	  *						what the command does
+	  * @param audience
+	  *						who is shown the command on the help screen
+	  * @param handler
+	  *						carries out the command
+	  * @throws IllegalArgumentException
+	  *						if the name is empty or a command of that name is
+	  *						already registered
+	  */
+		void register(String usage, String description, Audience audience, Handler<S> handler) {
+			Command<S> command = new Command<S>(usage, description, audience, handler);
+			if (command.name.length() == 0) {
+				throw new IllegalArgumentException("A command needs a name: '" + usage + "'");
+			}
+			if (find(command.name) != null) {
+				throw new IllegalArgumentException(command.name + " is already registered");
+			}
+			if ((ordered.size() + 1) * 2 > table.length) {
+				Command<S>[] old = table;
+				table = newTable(old.length * 2);
+				for (Command<S> c : old) {
+					if (c != null) insert(c);
+				}
+			}
+			insert(command);
+			ordered.add(command);
+		}
+
+	 /**
+	  * Finds the command a line starts with.
+	  *
+	  * @param line
+	  *						a command, such as "-block bob"
+	  * @return the command whose name is the line up to the first space (or
+	  *						the whole line), or null if there is none
+	  */
+		Command<S> find(String line) {
+			int end = line.indexOf(' ');
+			if (end < 0) end = line.length();
+			if (end == 0) return null;
+			Command<S>[] t = table;
+			for (int i = key(line, end) & (t.length - 1); t[i] != null; i = (i + 1) & (t.length - 1)) {
+				String name = t[i].name;
+				if (name.length() == end && line.startsWith(name)) return t[i];
+			}
+			return null;
+		}
+
+	 /**
+	  * Gets every command, in the order they were registered.
+	  *
+	  * @return a read-only list of the commands
+	  */
+		List<Command<S>> commands() {
+			return Collections.unmodifiableList(ordered);
+		}
+
+	 /**
+	  * Puts a command in the table.
+	  */
+		private void insert(Command<S> command) {
+			int i = key(command.name, command.name.length()) & (table.length - 1);
+			while (table[i] != null) {
+				i = (i + 1) & (table.length - 1);
+			}
+			table[i] = command;
+		}
+
+	 /**
+	  * Works out where to look for a name: from its length and its second
+	  * and last characters, which between them tell most commands apart.
+	  * The name must not be empty.
+	  */
+		private static int key(String text, int length) {
+			int hash = length * 31 + text.charAt(length > 1 ? 1 : 0);
+			hash = hash * 31 + text.charAt(length - 1);
+			return hash ^ (hash >>> 7);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <S> Command<S>[] newTable(int length) {
+			return (Command<S>[]) new Command<?>[length];
+		}
+
+	} // End of the class CommandRegistry
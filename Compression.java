@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * ****************************
+ * Filename: Compression.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Compresses the payloads of {@linkplain Frame frames} for the binary
+  * clients which ask for it, by adding {@link #NAME} to the line which
+  * switches them to frames.
+  * </p>
+  * <p>
+  * A compressed frame has the {@link #FLAG} bit set in its opcode, and its
+  * payload is raw Deflate. Every payload is compressed on its own, rather
+  * than as part of a stream per connection, so that a broadcast is
+  * compressed once and every receiver gets a view of the same bytes (see
+  * {@link EncodedMessage#compressedView()}). To make up for the lost
+  * context, both ends start from a preset dictionary of the text chat
+  * messages are made of. Payloads too short to gain anything are sent as
+  * they are.
+  * </p>
+  * Deflaters and Inflaters hold native memory, so a few are pooled and
+  * shared by all threads rather than kept per thread or per connection.
+  *
+  * @author Jamil Triaa
+  */
+	final class Compression {
+
+	 /**
+	  * The name of the compression, dictionary included. A new dictionary
+	  * needs a new name.
+	  */
+		static final String NAME = "deflate-1";
+
+	 /**
+	  * Set in the opcode of a frame whose payload is compressed.
+	  */
+		static final byte FLAG = (byte) 0x80;
+
+	 /**
+	  * What both ends start from: the text chat messages are made of, the
+	  * most common last, where Deflate finds it most cheaply.
+	  */
+		private static final byte[] DICTIONARY = (
+			"would could should because about there their people really think thanks please sorry "
+			+ "what when where which while with your you're that this have from they will just like "
+			+ "know good great yeah okay right here then them been were going want does doesn't don't "
+			+ "can't it's I'm time work today tomorrow yesterday morning night everyone anyone "
+			+ " You are now in . There are people here. has joined has moved to "
+			+ " Failed. Invalid format. Valid Format: Sorry, you can't use this command "
+			+ " You've sent a private message to  [Private Message]"
+			+ "[Server]  has left the chat room. has entered the chat room! "
+			+ "the and you for not but are was yes no hi hello lol ok "
+			+ "(You):  [00:00:00] [12:34:56] [20:15:45] ").getBytes(StandardCharsets.UTF_8);
+
+	 /**
+	  * Payloads shorter than this are not compressed.
+	  */
+		private static int minBytes = 32;
+
+	 /**
+	  * The Deflate level, 1 (fastest) to 9 (smallest).
+	  */
+		private static int level = 6;
+
+		private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+		private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	 /**
+	  * The most of each kept in the pools.
+	  */
+		private static final int POOL_SIZE = 16;
+
+	 /**
+	  * The payloads compressed, their bytes before and after, and the time
+	  * it took.
+	  */
+		private static final LongAdder compressed = new LongAdder();
+
+		private static final LongAdder bytesBefore = new LongAdder();
+
+		private static final LongAdder bytesAfter = new LongAdder();
+
+		private static final LongAdder nanos = new LongAdder();
+
+	 /**
+	  * The payloads which were long enough but did not get any smaller.
+	  */
+		private static final LongAdder incompressible = new LongAdder();
+
+	 /**
+	  * The bytes not sent because clients were sent compressed frames.
+	  */
+		private static final LongAdder saved = new LongAdder();
+
+		private Compression() {
+		}
+
+	 /**
+	  * Sets the compression options.
+	  *
+	  * @param minimum
+	  *						the shortest payload compressed
+	  * @param deflateLevel
+	  *						the Deflate level, 1 to 9
+	  * @throws IllegalArgumentException
+	  *						if the level is out of range
+	  */
+		static void configure(int minimum, int deflateLevel) {
+			if (deflateLevel < 1 || deflateLevel > 9) {
+				throw new IllegalArgumentException("--compressionLevel must be from 1 to 9");
+			}
+			minBytes = Math.max(1, minimum);
+			level = deflateLevel;
+		}
+
+	 /**
+	  * Encodes a compressed frame, if compressing makes it smaller.
+	  *
+	  * @param opcode
+	  *						the kind of message
+	  * @param payload
+	  *						an array holding the UTF-8 payload
+	  * @param offset
+	  *						where the payload starts in the array
+	  * @param length
+	  *						the length of the payload
+	  * @return a buffer holding the whole frame, ready to be read, or null if
+	  *						the payload is better sent as it is
+	  */
+		static ByteBuffer encode(byte opcode, byte[] payload, int offset, int length) {
+			if (length < minBytes) return null;
+			long start = System.nanoTime();
+			Deflater deflater = deflaters.poll();
+			if (deflater == null) deflater = new Deflater(level, true);
+			try {
+				deflater.setDictionary(DICTIONARY);
+				deflater.setInput(payload, offset, length);
+				deflater.finish();
+				// Only worth it if smaller, so no more room than that is needed
+				byte[] out = new byte[Frame.HEADER_LENGTH + length];
+				int size = deflater.deflate(out, Frame.HEADER_LENGTH, length);
+				if (!deflater.finished() || size >= length) {
+					incompressible.increment();
+					return null;
+				}
+				ByteBuffer frame = ByteBuffer.wrap(out, 0, Frame.HEADER_LENGTH + size);
+				frame.putInt(0, size).put(4, (byte) (opcode | FLAG));
+				compressed.increment();
+				bytesBefore.add(length);
+				bytesAfter.add(size);
+				return frame;
+			} finally {
+				deflater.reset();
+				release(deflater, deflaters);
+				nanos.add(System.nanoTime() - start);
+			}
+		}
+
+	 /**
+	  * Decompresses a payload.
+	  *
+	  * @param payload
+	  *						the compressed payload
+	  * @param length
+	  *						its length
+	  * @param maxLength
+	  *						the longest payload allowed once decompressed
+	  * @return the text of the payload
+	  * @throws IOException
+	  *						if the payload is corrupt or decompresses to more
+	  *						than the limit
+	  */
+		static String decompress(byte[] payload, int length, int maxLength) throws IOException {
+			Inflater inflater = inflaters.poll();
+			if (inflater == null) inflater = new Inflater(true);
+			try {
+				inflater.setDictionary(DICTIONARY);
+				inflater.setInput(payload, 0, length);
+				byte[] out = new byte[Math.min(maxLength, Math.max(256, length * 8))];
+				int size = 0;
+				while (!inflater.finished()) {
+					if (size == out.length) {
+						if (out.length == maxLength) throw new IOException("Compressed payload is longer than " + maxLength);
+						out = Arrays.copyOf(out, (int) Math.min(maxLength, out.length * 2L));
+					}
+					int n = inflater.inflate(out, size, out.length - size);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new IOException("Compressed payload is cut short");
+					}
+					size += n;
+				}
+				return new String(out, 0, size, StandardCharsets.UTF_8);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed payload: " + e.getMessage());
+			} finally {
+				inflater.reset();
+				release(inflater, inflaters);
+			}
+		}
+
+	 /**
+	  * Puts a Deflater or Inflater back in its pool, or frees it if the pool
+	  * is full.
+	  */
+		private static <T> void release(T coder, ConcurrentLinkedQueue<T> pool) {
+			if (pool.size() < POOL_SIZE) {
+				pool.add(coder);
+			} else if (coder instanceof Deflater) {
+				((Deflater) coder).end();
+			} else {
+				((Inflater) coder).end();
+			}
+		}
+
+	 /**
+	  * Counts a compressed frame sent to a client instead of the plain one.
+	  *
+	  * @param bytes
+	  *						the bytes that saved
+	  */
+		static void sent(int bytes) {
+			saved.add(bytes);
+		}
+
+	 /**
+	  * Gets the payloads' size after compression over their size before.
+	  *
+	  * @return the ratio, or 1 if nothing has been compressed
+	  */
+		static double ratio() {
+			long before = bytesBefore.sum();
+			return before == 0 ? 1 : (double) bytesAfter.sum() / before;
+		}
+
+	 /**
+	  * Gets the mean time spent on each payload, whether or not it got
+	  * smaller.
+	  *
+	  * @return the time in nanoseconds, or 0 if there have been none
+	  */
+		static double nanosPerPayload() {
+			long count = compressed.sum() + incompressible.sum();
+			return count == 0 ? 0 : (double) nanos.sum() / count;
+		}
+
+	 /**
+	  * Gets the bytes not sent thanks to compression.
+	  *
+	  * @return the number of bytes
+	  */
+		static long bytesSaved() {
+			return saved.sum();
+		}
+
+	 /**
+	  * Describes what compression has done.
+	  *
+	  * @return e.g. "1200 payloads, 84000 to 39000 bytes (46%), 3.1 us each, 2100000 bytes saved"
+	  */
+		static String report() {
+			return String.format(Locale.ROOT, "%d payloads, %d to %d bytes (%.0f%%), %.1f us each, %d bytes saved",
+				compressed.sum(), bytesBefore.sum(), bytesAfter.sum(), ratio() * 100, nanosPerPayload() / 1000,
+				saved.sum());
+		}
+
+	} // End of the class Compression
@@ -0,0 +1,174 @@
+import java.io.PrintStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: ConsoleRenderer.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Prints lines to the console for the client, on a thread of its own, so
+  * that the thread reading from the server never waits for the console.
+  * </p>
+  * <p>
+  * Lines are added to a buffer, and the renderer's thread writes whatever
+  * has built up since its last write in one go. A burst of a thousand
+  * messages is then one write and one flush rather than a thousand, so the
+  * busier the room, the bigger each write, and the console keeps up
+  * instead of falling further behind line by line.
+  * </p>
+  * Two buffers take turns: lines go into one while the other is written.
+  *
+  * @author Jamil Triaa
+  */
+	final class ConsoleRenderer {
+
+		private final PrintStream out;
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+	 /**
+	  * Signalled when there is something to write, when the renderer is
+	  * closed, and when its thread has finished.
+	  */
+		private final Condition changed = lock.newCondition();
+
+	 /**
+	  * The lines waiting to be written.
+	  */
+		private StringBuilder pending = new StringBuilder();
+
+	 /**
+	  * The lines being written; only the renderer's thread touches it.
+	  */
+		private StringBuilder writing = new StringBuilder();
+
+		private boolean closed = false;
+
+		private boolean done = false;
+
+	 /**
+	  * The lines printed, and the writes it took.
+	  */
+		private long lines = 0, writes = 0;
+
+	 /**
+	  * Creates a renderer and starts its thread.
+	  *
+	  * @param out
+	  *						where to print
+	  * @param name
+	  *						the name of the thread
+	  */
+		ConsoleRenderer(PrintStream out, String name) {
+			this.out = out;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					render();
+				}
+			}, name);
+			// Never keeps the program running; close() waits for it instead
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+	 /**
+	  * Prints a line, soon. Never waits for the console.
+	  *
+	  * @param line
+	  *						the line, without a line terminator
+	  */
+		void println(String line) {
+			lock.lock();
+			try {
+				if (closed) return;
+				boolean wake = pending.length() == 0;
+				pending.append(line).append(System.lineSeparator());
+				lines++;
+				if (wake) changed.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Prints whatever is still waiting and stops the renderer's thread,
+	  * waiting until both are done. Lines printed after this are ignored.
+	  */
+		void close() {
+			lock.lock();
+			try {
+				closed = true;
+				changed.signalAll();
+				while (!done) changed.awaitUninterruptibly();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Gets the number of lines printed.
+	  *
+	  * @return the number of lines
+	  */
+		long lines() {
+			lock.lock();
+			try {
+				return lines;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Gets the number of writes to the console the lines took.
+	  *
+	  * @return the number of writes
+	  */
+		long writes() {
+			lock.lock();
+			try {
+				return writes;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Writes what has built up, over and over, until the renderer is
+	  * closed and there is nothing left.
+	  */
+		private void render() {
+			while (true) {
+				StringBuilder text;
+				lock.lock();
+				try {
+					while (pending.length() == 0 && !closed) changed.awaitUninterruptibly();
+					if (pending.length() == 0) {
+						done = true;
+						changed.signalAll();
+						return;
+					}
+					text = pending;
+					pending = writing;
+					writing = text;
+					writes++;
+				} finally {
+					lock.unlock();
+				}
+				out.print(text);
+				out.flush();
+				text.setLength(0);
+				// Not holding on to the memory of one huge burst
+				if (text.capacity() > 1024 * 1024) text.trimToSize();
+			}
+		}
+
+	} // End of the class ConsoleRenderer
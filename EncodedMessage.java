@@ -0,0 +1,178 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * ****************************
+ * Filename: EncodedMessage.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * A message which has already been encoded for the wire.
+  * </p>
+  * <p>
+  * A broadcast is formatted and encoded once into an EncodedMessage, and
+  * every receiver's queue gets its own read-only {@link #view() view} of the
+  * same bytes. Each view has its own position, so the writers can send it
+  * at their own pace without copying it.
+  * </p>
+  * <p>
+  * There are two encodings: a line of text, and a {@link Frame} for clients
+  * using the binary protocol. The frame is only built the first time a
+  * binary client needs it, and then shared the same way.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	final class EncodedMessage {
+
+	 /**
+	  * The kind of message, one of the {@link Frame} opcodes.
+	  */
+		private final byte opcode;
+
+	 /**
+	  * The text of the message.
+	  */
+		private final String text;
+
+	 /**
+	  * The encoded line, including its line terminator.
+	  */
+		private final ByteBuffer bytes;
+
+	 /**
+	  * The encoded frame, or null until a binary client needs it.
+	  */
+		private volatile ByteBuffer frame;
+
+	 /**
+	  * The compressed frame, or the frame itself if compressing does not
+	  * make it smaller; null until a client which takes compressed frames
+	  * needs it.
+	  */
+		private volatile ByteBuffer compressed;
+
+	 /**
+	  * How many bytes smaller the compressed frame is than the plain one.
+	  * Set before {@link #compressed}, so whoever sees that sees this.
+	  */
+		private volatile int saving;
+
+	 /**
+	  * Encodes a message as a line of text.
+	  *
+	  * @param opcode
+	  *						the kind of message, one of the {@link Frame} opcodes
+	  * @param text
+	  *						the text, without a line terminator
+	  */
+		EncodedMessage(byte opcode, String text) {
+			this.opcode = opcode;
+			this.text = text;
+			bytes = ByteBuffer.wrap((toLines(text) + System.lineSeparator())
+				.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+		}
+
+	 /**
+	  * Gets a view of the frame encoding for one binary client.
+	  *
+	  * @return a read-only buffer over the shared frame, positioned at the
+	  *						start of it
+	  */
+		ByteBuffer frameView() {
+			ByteBuffer f = frame;
+			if (f == null) {
+				// Threads racing here build equal frames, so no lock
+				f = Frame.encode(opcode, text).asReadOnlyBuffer();
+				frame = f;
+			}
+			return f.duplicate();
+		}
+
+	 /**
+	  * Gets a view of the {@linkplain Compression compressed} frame for one
+	  * binary client which asked for compression. The payload is compressed
+	  * the first time, and then shared the same way, so a broadcast is
+	  * compressed once however many receive it.
+	  *
+	  * @return a read-only buffer over the shared compressed frame (or the
+	  *						plain one, if it is no bigger), positioned at the start of
+	  *						it
+	  */
+		ByteBuffer compressedView() {
+			ByteBuffer c = compressed;
+			if (c == null) {
+				// As with the frame, threads racing here build equal ones
+				byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+				c = Compression.encode(opcode, payload, 0, payload.length);
+				if (c == null) {
+					c = frameView();
+				} else {
+					// The plain frame's length, without building it
+					saving = Frame.HEADER_LENGTH + payload.length - c.remaining();
+					c = c.asReadOnlyBuffer();
+				}
+				compressed = c;
+			}
+			return c.duplicate();
+		}
+
+	 /**
+	  * Gets how much smaller the compressed frame is than the plain one.
+	  * Only call it after {@link #compressedView()}.
+	  *
+	  * @return the number of bytes compressing saves, 0 if it does not
+	  */
+		int compressionSaving() {
+			return saving;
+		}
+
+	 /**
+	  * Indents any line breaks in a message (which only binary clients can
+	  * send), so that text clients cannot be shown a line that looks like it
+	  * came from the server.
+	  *
+	  * @param text
+	  *						the text of a message
+	  * @return the text as it is sent to text clients, without a line
+	  *						terminator
+	  */
+		static String toLines(String text) {
+			if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) return text;
+			return text.replaceAll("\\r\\n|\\r|\\n", System.lineSeparator() + "  ");
+		}
+
+	 /**
+	  * Gets a view of the encoded line for one text client.
+	  *
+	  * @return a read-only buffer over the shared bytes, positioned at the
+	  *						start of the message
+	  */
+		ByteBuffer view() {
+			return bytes.duplicate();
+		}
+
+	 /**
+	  * Gets the text of the message.
+	  *
+	  * @return the text, as it was given
+	  */
+		String text() {
+			return text;
+		}
+
+	 /**
+	  * Gets the encoded length.
+	  *
+	  * @return the number of bytes in the message
+	  */
+		int size() {
+			return bytes.capacity();
+		}
+
+	} // End of the class EncodedMessage
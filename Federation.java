@@ -0,0 +1,822 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * ****************************
+ * Filename: Federation.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Links several servers into one chat: usernames are unique across all of
+  * them, and chat, private messages and kicks reach users on any server.
+  * </p>
+  * <p>
+  * Every server (node) is named by the host:port its links listen on, and
+  * is given the names of all the others. It opens one link to each of them
+  * for the messages it sends, and accepts one link from each of them for the
+  * messages it receives. Only messages from a node's own users are sent, so
+  * nothing is ever forwarded twice.
+  * </p>
+  * <p>
+  * Messages on a link are {@linkplain Frame frames}, with the opcodes below
+  * and fields separated by '\n' (only the last field may contain one).
+  * Every link has a bounded {@link OutboundQueue} and a writer thread which
+  * sends everything queued with one gathering write, so under load many
+  * messages share a system call and a TCP segment.
+  * </p>
+  * <p>
+  * When a node sees a username it already knows from elsewhere, the node
+  * with the smaller name keeps it and the other disconnects its user. Both
+  * sides apply the same rule, so they agree without waiting for each other.
+  * </p>
+  * <p>
+  * A link is only accepted from the host of the node it claims to be, and,
+  * if the cluster has a shared secret, only once the node has answered a
+  * {@link #CHALLENGE} with an HMAC of it, keyed with the secret. A node
+  * which does not know the secret cannot join, nor replay another node's
+  * answer, as every challenge is new.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	final class Federation {
+
+	 /**
+	  * What a node does with messages from the other nodes: the local
+	  * server's side of the federation. Called from the links' threads.
+	  */
+		interface Local {
+
+		 /**
+		  * @return the names of the users on this node
+		  */
+			List<String> userNames();
+
+		 /**
+		  * @param name
+		  *						a username
+		  * @return true if the user is on this node
+		  */
+			boolean hasUser(String name);
+
+		 /**
+		  * Disconnects a user whose name turned out to be taken on another
+		  * node first.
+		  *
+		  * @param name
+		  *						the username
+		  */
+			void nameTaken(String name);
+
+		 /**
+		  * Sends a message to the users of this node in a room, except those
+		  * who have blocked its sender.
+		  *
+		  * @param room
+		  *						the room's name
+		  * @param opcode
+		  *						{@link Frame#CHAT} or {@link Frame#SYSTEM}
+		  * @param sender
+		  *						the name of the user who sent it, or null for a
+		  *						server event
+		  * @param line
+		  *						the message as the users will see it
+		  */
+			void toRoom(String room, byte opcode, String sender, String line);
+
+		 /**
+		  * Tells every user of this node about a server event.
+		  *
+		  * @param content
+		  *						the event, without the "[Server] " prefix
+		  */
+			void toEveryone(String content);
+
+		 /**
+		  * Sends a message to one user of this node, unless the user has
+		  * blocked its sender.
+		  *
+		  * @param name
+		  *						the username
+		  * @param opcode
+		  *						{@link Frame#PRIVATE} or {@link Frame#SYSTEM}
+		  * @param sender
+		  *						the name of the user who sent it, or null for a
+		  *						reply from the server
+		  * @param line
+		  *						the message as the user will see it
+		  */
+			void toUser(String name, byte opcode, String sender, String line);
+
+		 /**
+		  * Kicks a user of this node out, on behalf of an Administrator on
+		  * another node.
+		  *
+		  * @param target
+		  *						the username to kick out
+		  * @param by
+		  *						the Administrator's name
+		  */
+			void kick(String target, String by);
+		}
+
+	 /**
+	  * The first frame on a link: the name of the node which opened it, and
+	  * its answer to the {@link #CHALLENGE}: "name\nproof". The proof is
+	  * empty if the cluster has no secret.
+	  */
+		static final byte NODE = 1;
+
+	 /**
+	  * A user has entered the chat: "name".
+	  */
+		static final byte JOIN = 2;
+
+	 /**
+	  * A user has left the chat: "name".
+	  */
+		static final byte LEAVE = 3;
+
+	 /**
+	  * A chat message for a room: "room\nsender\nline".
+	  */
+		static final byte ROOM_CHAT = 4;
+
+	 /**
+	  * A server event for a room: "room\nline".
+	  */
+		static final byte ROOM_EVENT = 5;
+
+	 /**
+	  * A server event for everybody: "content".
+	  */
+		static final byte EVERYONE = 6;
+
+	 /**
+	  * A private message: "to\nsender\nline".
+	  */
+		static final byte PRIVATE = 7;
+
+	 /**
+	  * An Administrator's kick: "target\nby".
+	  */
+		static final byte KICK = 8;
+
+	 /**
+	  * A reply from the server to a user: "to\nline".
+	  */
+		static final byte NOTICE = 9;
+
+	 /**
+	  * The only frame sent back on a link, straight after it is accepted:
+	  * a random nonce for the node which opened it to answer.
+	  */
+		static final byte CHALLENGE = 10;
+
+	 /**
+	  * How long (in milliseconds) either side of a new link waits for the
+	  * other's half of the handshake.
+	  */
+		private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+	 /**
+	  * The largest frame accepted on a link. Bigger than a client's, as a
+	  * forwarded message carries a prefix.
+	  */
+		private static final int MAX_LINK_PAYLOAD = 1024 * 1024;
+
+	 /**
+	  * The longest wait between attempts to reach a node.
+	  */
+		private static final long MAX_RETRY_MILLIS = 5000;
+
+	 /**
+	  * This node's name, host:port.
+	  */
+		private final String self;
+
+	 /**
+	  * The port links to this node are accepted on.
+	  */
+		private final int port;
+
+	 /**
+	  * What to do with messages from the other nodes.
+	  */
+		private final Local local;
+
+	 /**
+	  * The key shared by every node in the cluster, or null if it has none.
+	  */
+		private final byte[] secret;
+
+		private final SecureRandom random = new SecureRandom();
+
+	 /**
+	  * The links to the other nodes, by node name.
+	  */
+		private final Map<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+
+	 /**
+	  * The users on the other nodes, and the node each is on.
+	  */
+		private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<String, String>();
+
+	 /**
+	  * Held while a name is claimed, locally or by another node, and while
+	  * users entering or leaving are sent, so a node coming up gets them in
+	  * the right order.
+	  */
+		private final ReentrantLock names = new ReentrantLock();
+
+	 /**
+	  * Creates the federation for this node.
+	  *
+	  * @param self
+	  *						this node's name, host:port; links are accepted on the
+	  *						port
+	  * @param others
+	  *						the names (host:port) of the other nodes
+	  * @param queueCapacity
+	  *						the most messages waiting to be sent to one node
+	  * @param secret
+	  *						the secret shared by every node, or null for none
+	  * @param local
+	  *						what to do with messages from the other nodes
+	  * @throws IllegalArgumentException
+	  *						if a name is not in the form host:port
+	  */
+		Federation(String self, List<String> others, int queueCapacity, String secret, Local local) {
+			this.self = self;
+			this.port = parse(self).getPort();
+			this.local = local;
+			this.secret = secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+			for (String node : others) {
+				if (!node.equals(self)) peers.put(node, new Peer(node, parse(node), queueCapacity));
+			}
+		}
+
+	 /**
+	  * Starts accepting links from the other nodes and connecting to them.
+	  *
+	  * @throws IOException
+	  *						if the port for links cannot be opened
+	  */
+		void start() throws IOException {
+			final ServerSocket listener = new ServerSocket(port);
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							final Socket link = listener.accept();
+							Thread reader = new Thread(new Runnable() {
+								@Override
+								public void run() {
+									readLink(link);
+								}
+							}, "link-from-" + link.getRemoteSocketAddress());
+							reader.setDaemon(true);
+							reader.start();
+						} catch (IOException e) {
+							System.err.println(" Exception accepting a link: " + e.getMessage());
+						}
+					}
+				}
+			}, "link-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+			for (Peer peer : peers.values()) {
+				peer.start();
+			}
+		}
+
+	 /**
+	  * Is a user on another node?
+	  *
+	  * @param name
+	  *						a username
+	  * @return true if another node has a user of that name
+	  */
+		boolean isRemoteUser(String name) {
+			return remoteUsers.containsKey(name);
+		}
+
+	 /**
+	  * Gets the number of users on the other nodes.
+	  *
+	  * @return the number of remote users
+	  */
+		int remoteUserCount() {
+			return remoteUsers.size();
+		}
+
+	 /**
+	  * Lets a user in with a name, unless another node already has it, and
+	  * tells the other nodes about them.
+	  *
+	  * @param name
+	  *						the username
+	  * @param register
+	  *						registers the user locally, returning their session ID
+	  *						or -1 if the name is taken on this node
+	  * @return the session ID, or -1 if the name is taken
+	  */
+		int admit(String name, IntSupplier register) {
+			names.lock();
+			try {
+				if (remoteUsers.containsKey(name)) return -1;
+				int id = register.getAsInt();
+				if (id >= 0) toAll(Frame.encode(JOIN, name));
+				return id;
+			} finally {
+				names.unlock();
+			}
+		}
+
+	 /**
+	  * Tells the other nodes that a user has left the chat.
+	  *
+	  * @param name
+	  *						the username
+	  */
+		void userLeft(String name) {
+			names.lock();
+			try {
+				toAll(Frame.encode(LEAVE, name));
+			} finally {
+				names.unlock();
+			}
+		}
+
+	 /**
+	  * Sends a message to a room on the other nodes.
+	  *
+	  * @param room
+	  *						the room's name
+	  * @param opcode
+	  *						{@link Frame#CHAT} or {@link Frame#SYSTEM}
+	  * @param sender
+	  *						the name of the user who sent a chat message, for the
+	  *						receivers' block lists; ignored for a server event
+	  * @param line
+	  *						the message as the users will see it
+	  */
+		void toRoom(String room, byte opcode, String sender, String line) {
+			toAll(opcode == Frame.CHAT
+				? Frame.encode(ROOM_CHAT, room + "\n" + sender + "\n" + line)
+				: Frame.encode(ROOM_EVENT, room + "\n" + line));
+		}
+
+	 /**
+	  * Tells the users on the other nodes about a server event.
+	  *
+	  * @param content
+	  *						the event, without the "[Server] " prefix
+	  */
+		void toEveryone(String content) {
+			toAll(Frame.encode(EVERYONE, content));
+		}
+
+	 /**
+	  * Sends a private message to a user on another node.
+	  *
+	  * @param to
+	  *						the receiver's name
+	  * @param sender
+	  *						the sender's name, for the receiver's block list
+	  * @param line
+	  *						the message as the receiver will see it
+	  * @return false if nobody of that name is on another node
+	  */
+		boolean sendPrivate(String to, String sender, String line) {
+			return toNodeOf(to, Frame.encode(PRIVATE, to + "\n" + sender + "\n" + line));
+		}
+
+	 /**
+	  * Asks another node to kick one of its users out.
+	  *
+	  * @param target
+	  *						the username to kick out
+	  * @param by
+	  *						the Administrator's name
+	  * @return false if nobody of that name is on another node
+	  */
+		boolean kick(String target, String by) {
+			return toNodeOf(target, Frame.encode(KICK, target + "\n" + by));
+		}
+
+	 /**
+	  * Sends a reply from the server to a user on another node.
+	  *
+	  * @param to
+	  *						the user's name
+	  * @param line
+	  *						the reply
+	  */
+		void notice(String to, String line) {
+			toNodeOf(to, Frame.encode(NOTICE, to + "\n" + line));
+		}
+
+	 /**
+	  * Queues a frame for every other node. They all share its bytes.
+	  */
+		private void toAll(ByteBuffer frame) {
+			ByteBuffer shared = frame.asReadOnlyBuffer();
+			for (Peer peer : peers.values()) {
+				peer.send(shared.duplicate());
+			}
+		}
+
+	 /**
+	  * Queues a frame for the node a user is on.
+	  */
+		private boolean toNodeOf(String name, ByteBuffer frame) {
+			String node = remoteUsers.get(name);
+			Peer peer = node == null ? null : peers.get(node);
+			if (peer == null) return false;
+			peer.send(frame);
+			return true;
+		}
+
+	 /**
+	  * Reads the messages another node sends over a link it has opened,
+	  * until the link is lost. First checks that the node is one of the
+	  * peers, connecting from that peer's host, and knows the secret.
+	  */
+		private void readLink(Socket link) {
+			String node = null;
+			try {
+				link.setTcpNoDelay(true);
+				link.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+				byte[] nonce = new byte[18];
+				random.nextBytes(nonce);
+				String challenge = Base64.getUrlEncoder().encodeToString(nonce);
+				Frame.write(new DataOutputStream(link.getOutputStream()), CHALLENGE, challenge);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream(), 64 * 1024));
+				Frame hello = Frame.read(in, MAX_LINK_PAYLOAD);
+				String refused = hello == null || hello.opcode != NODE ? "it did not say which node it is"
+					: refusal(hello.payload, challenge, link.getInetAddress());
+				if (refused != null) {
+					System.err.println(" Refused a link from " + link.getRemoteSocketAddress() + ": " + refused + ".");
+					return;
+				}
+				link.setSoTimeout(0);
+				node = hello.payload.substring(0, hello.payload.indexOf('\n'));
+				System.out.println(" Linked with " + node + ".");
+				Frame frame;
+				while ((frame = Frame.read(in, MAX_LINK_PAYLOAD)) != null) {
+					handle(node, frame);
+				}
+			} catch (IOException e) {
+				System.err.println(" Link from " + (node == null ? link.getRemoteSocketAddress() : node)
+					+ ": " + e.getMessage());
+			} finally {
+				try { link.close(); }
+				catch (IOException ignored) { }
+				if (node != null) {
+					// The node has probably gone; the link to it has to be made again
+					peers.get(node).reset();
+					// Its users can no longer be reached
+					int lost = 0;
+					for (Map.Entry<String, String> user : remoteUsers.entrySet()) {
+						if (remoteUsers.remove(user.getKey(), node)) lost++;
+					}
+					System.out.println(" Lost the link from " + node + " (" + lost + " users).");
+				}
+			}
+		}
+
+	 /**
+	  * Checks a node's answer to the challenge on a link it opened.
+	  *
+	  * @param hello
+	  *						the node's "name\nproof"
+	  * @param challenge
+	  *						the challenge it was sent
+	  * @param from
+	  *						the address the link came from
+	  * @return why the link is refused, or null if it is accepted
+	  */
+		private String refusal(String hello, String challenge, InetAddress from) {
+			int split = hello.indexOf('\n');
+			if (split < 0) return "it did not answer the challenge";
+			String node = hello.substring(0, split);
+			Peer peer = peers.get(node);
+			if (peer == null) return node + " is not one of the --peers";
+			try {
+				if (!Arrays.asList(InetAddress.getAllByName(peer.address.getHostString())).contains(from)) {
+					return "it is not on the host of " + node;
+				}
+			} catch (IOException e) {
+				return "the host of " + node + " cannot be looked up";
+			}
+			if (secret != null && !MessageDigest.isEqual(
+					proof(challenge, node).getBytes(StandardCharsets.UTF_8),
+					hello.substring(split + 1).getBytes(StandardCharsets.UTF_8))) {
+				return "it does not know the --clusterSecret";
+			}
+			return null;
+		}
+
+	 /**
+	  * Works out a node's answer to a challenge.
+	  *
+	  * @param challenge
+	  *						the challenge
+	  * @param node
+	  *						the name of the node answering
+	  * @return the HMAC-SHA256 of both, keyed with the secret, or "" if the
+	  *						cluster has no secret
+	  */
+		private String proof(String challenge, String node) {
+			if (secret == null) return "";
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+				return Base64.getUrlEncoder().encodeToString(
+					mac.doFinal((challenge + "\n" + node).getBytes(StandardCharsets.UTF_8)));
+			} catch (GeneralSecurityException e) {
+				// Every Java runtime has HmacSHA256
+				throw new IllegalStateException(e);
+			}
+		}
+
+	 /**
+	  * Handles one message from another node.
+	  */
+		private void handle(String node, Frame frame) {
+			String payload = frame.payload;
+			int split = payload.indexOf('\n');
+			String first = split < 0 ? payload : payload.substring(0, split);
+			String rest = split < 0 ? "" : payload.substring(split + 1);
+			switch (frame.opcode) {
+				case JOIN: {
+					claim(node, payload);
+					break;
+				}
+				case LEAVE: {
+					remoteUsers.remove(payload, node);
+					break;
+				}
+				case ROOM_CHAT: {
+					String sender = sender(node, rest);
+					if (sender != null) local.toRoom(first, Frame.CHAT, sender, rest.substring(sender.length() + 1));
+					break;
+				}
+				case ROOM_EVENT: {
+					local.toRoom(first, Frame.SYSTEM, null, rest);
+					break;
+				}
+				case EVERYONE: {
+					local.toEveryone(payload);
+					break;
+				}
+				case PRIVATE: {
+					String sender = sender(node, rest);
+					if (sender != null) local.toUser(first, Frame.PRIVATE, sender, rest.substring(sender.length() + 1));
+					break;
+				}
+				case KICK: {
+					// The node checked that its user is an Administrator; the name must at least be one of its users
+					if (node.equals(remoteUsers.get(rest))) local.kick(first, rest);
+					else System.err.println(" Ignored a kick from " + node + " by " + rest + ", who is not there.");
+					break;
+				}
+				case NOTICE: {
+					local.toUser(first, Frame.SYSTEM, null, rest);
+					break;
+				}
+				default: {
+					System.err.println(" Unknown message " + frame.opcode + " from " + node + ".");
+				}
+			}
+		}
+
+	 /**
+	  * Reads the sender's name off a user's message from another node. As
+	  * with a kick, the sender must be one of that node's users, so that
+	  * nobody can get round a block by naming somebody else.
+	  *
+	  * @param node
+	  *						the node the message came from
+	  * @param message
+	  *						"sender\nline"
+	  * @return the sender's name, or null if the message is to be ignored
+	  */
+		private String sender(String node, String message) {
+			int split = message.indexOf('\n');
+			String sender = split < 0 ? null : message.substring(0, split);
+			if (sender != null && node.equals(remoteUsers.get(sender))) return sender;
+			System.err.println(" Ignored a message from " + node + " by " + sender + ", who is not there.");
+			return null;
+		}
+
+	 /**
+	  * Records that a user has entered the chat on another node, settling
+	  * a clash of names in favour of the node with the smaller name.
+	  */
+		private void claim(String node, String name) {
+			names.lock();
+			try {
+				if (local.hasUser(name)) {
+					// Both nodes accepted the name before hearing from each other
+					if (self.compareTo(node) < 0) return; // Ours; the other node drops its user
+					local.nameTaken(name);
+				}
+				String previous = remoteUsers.put(name, node);
+				if (previous != null && previous.compareTo(node) < 0) {
+					// Two other nodes clashed; the same rule decides
+					remoteUsers.put(name, previous);
+				}
+			} finally {
+				names.unlock();
+			}
+		}
+
+	 /**
+	  * Turns "host:port" into an address.
+	  */
+		private static InetSocketAddress parse(String node) {
+			int colon = node.lastIndexOf(':');
+			if (colon <= 0) {
+				throw new IllegalArgumentException("'" + node + "' is not in the form host:port");
+			}
+			try {
+				return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("'" + node + "' is not in the form host:port");
+			}
+		}
+
+	 /**
+	  * The link this node opens to another node, and the thread writing to
+	  * it.
+	  */
+		private final class Peer implements Runnable {
+
+		 /**
+		  * The other node's name.
+		  */
+			private final String name;
+
+		 /**
+		  * Where its links are accepted.
+		  */
+			private final InetSocketAddress address;
+
+		 /**
+		  * The messages waiting to be sent to it.
+		  */
+			private final OutboundQueue queue;
+
+		 /**
+		  * Writes the waiting messages in batches.
+		  */
+			private final WriteBatcher batcher = new WriteBatcher();
+
+		 /**
+		  * The writer thread.
+		  */
+			private final Thread writer;
+
+		 /**
+		  * Is the link up? Messages are only queued while it is; the other
+		  * node gets a fresh list of users every time it comes up.
+		  */
+			private volatile boolean connected = false;
+
+		 /**
+		  * The link, or null while there is none.
+		  */
+			private volatile SocketChannel channel;
+
+			private Peer(String name, InetSocketAddress address, int capacity) {
+				this.name = name;
+				this.address = address;
+				this.queue = new OutboundQueue(capacity, OutboundQueue.Overflow.DROP_OLDEST, 0);
+				this.writer = new Thread(this, "link-to-" + name);
+				this.writer.setDaemon(true);
+				queue.setWriter(new Runnable() {
+					@Override
+					public void run() {
+						LockSupport.unpark(writer);
+					}
+				});
+			}
+
+			private void start() {
+				writer.start();
+			}
+
+		 /**
+		  * Drops the link and makes it again. Nothing is ever read from it,
+		  * so without this a node which has gone would only be noticed the
+		  * next time something is written.
+		  */
+			private void reset() {
+				SocketChannel c = channel;
+				if (c != null) {
+					try { c.close(); }
+					catch (IOException ignored) { }
+				}
+				LockSupport.unpark(writer);
+			}
+
+		 /**
+		  * Queues a frame, unless the link is down.
+		  */
+			private void send(ByteBuffer frame) {
+				if (connected) queue.offer(frame);
+			}
+
+		 /**
+		  * Keeps the link up and writes the queued messages to it.
+		  *
+		  * @see java.lang.Runnable#run()
+		  */
+			@Override
+			public void run() {
+				long retryMillis = 100;
+				while (true) {
+					try {
+						channel = SocketChannel.open(address);
+						channel.socket().setTcpNoDelay(true);
+						// The node speaks first, with a challenge to answer
+						channel.socket().setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+						Frame challenge = Frame.read(new DataInputStream(channel.socket().getInputStream()), 1024);
+						if (challenge == null || challenge.opcode != CHALLENGE) {
+							throw new IOException("No challenge from " + name);
+						}
+						retryMillis = 100;
+						names.lock();
+						try {
+							queue.offer(Frame.encode(NODE, self + "\n" + proof(challenge.payload, self)));
+							connected = true;
+							for (String user : local.userNames()) {
+								queue.offer(Frame.encode(JOIN, user));
+							}
+						} finally {
+							names.unlock();
+						}
+						while (true) {
+							while (queue.isEmpty()) {
+								if (!channel.isOpen()) throw new ClosedChannelException();
+								LockSupport.park(this);
+							}
+							batcher.writeAllTo(queue, channel);
+						}
+					} catch (IOException e) {
+						if (connected) System.out.println(" Lost the link to " + name + ".");
+					} finally {
+						connected = false;
+						if (channel != null) {
+							try { channel.close(); }
+							catch (IOException ignored) { }
+							channel = null;
+						}
+					}
+					// Whatever was waiting is out of date by the time the link is back
+					batcher.clear();
+					while (queue.poll() != null) {
+						// Drop it
+					}
+					try {
+						Thread.sleep(retryMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+					retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+				}
+			}
+		} // End of the class Peer
+
+	} // End of the class Federation
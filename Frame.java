@@ -0,0 +1,275 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * ****************************
+ * Filename: Frame.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * A message in the binary protocol, which a client can use instead of
+  * lines of text.
+  * </p>
+  * <p>
+  * Every frame is a 4-byte length (big-endian, counting only the payload),
+  * a 1-byte opcode saying what kind of message it is, and the payload in
+  * UTF-8. The receiver never has to scan for line terminators, payloads may
+  * contain newlines, and a chat message can never pass itself off as a
+  * server message or a kick, because those have their own opcodes.
+  * </p>
+  * <p>
+  * The server always greets a new client with a line of text. A client that
+  * wants frames answers it with {@link #HELLO_LINE}; the server replies with
+  * a {@link #HELLO} frame and from then on both sides only send frames.
+  * Clients which send their username straight away keep using lines.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	final class Frame {
+
+	 /**
+	  * The line a client sends, instead of a username, to switch to frames.
+	  */
+		static final String HELLO_LINE = "\u0002BIN/1";
+
+	 /**
+	  * Server to client: the switch to frames has been accepted.
+	  */
+		static final byte HELLO = 1;
+
+	 /**
+	  * Client to server: the username. Server to client: the username has
+	  * been accepted.
+	  */
+		static final byte LOGIN = 2;
+
+	 /**
+	  * A chat message, to or from the chat room.
+	  */
+		static final byte CHAT = 3;
+
+	 /**
+	  * Client to server: "receiver\nmessage". Server to client: a private
+	  * message from another user.
+	  */
+		static final byte PRIVATE = 4;
+
+	 /**
+	  * Client to server: a command such as "-help".
+	  */
+		static final byte COMMAND = 5;
+
+	 /**
+	  * Server to client: anything the server itself says, such as replies to
+	  * commands and chat room events.
+	  */
+		static final byte SYSTEM = 6;
+
+	 /**
+	  * Server to client: the client has been kicked out of the chat room.
+	  */
+		static final byte KICK = 7;
+
+	 /**
+	  * Either way: are you still there? The other side answers with a
+	  * {@link #PONG} carrying the same payload. The server pings binary
+	  * clients which have been quiet for a while.
+	  */
+		static final byte PING = 8;
+
+	 /**
+	  * Either way: the answer to a {@link #PING}.
+	  */
+		static final byte PONG = 9;
+
+	 /**
+	  * Server to client: the token with which the client can resume its
+	  * session if the connection drops. Sent once, after {@link #LOGIN}, to
+	  * clients which asked for {@link #RESUME_FEATURE}.
+	  */
+		static final byte SESSION = 10;
+
+	 /**
+	  * Client to server, instead of a username: "token\nframes", resuming a
+	  * session after the given number of frames received since the
+	  * {@link #SESSION} frame. Server to client: the session has been resumed,
+	  * and the frames which were missed follow.
+	  */
+		static final byte RESUME = 11;
+
+	 /**
+	  * The feature a client adds to {@link #HELLO_LINE} to be able to resume
+	  * its session.
+	  */
+		static final String RESUME_FEATURE = "resume";
+
+	 /**
+	  * Server to client: who has come into and gone out of the client's
+	  * room, one per line, as "+name" or "-name", in order. Sent instead of
+	  * the notices in words to clients which asked for
+	  * {@link #PRESENCE_FEATURE}.
+	  */
+		static final byte PRESENCE = 12;
+
+	 /**
+	  * The feature a client adds to {@link #HELLO_LINE} to be told who comes
+	  * and goes as {@link #PRESENCE} frames.
+	  */
+		static final String PRESENCE_FEATURE = "presence";
+
+	 /**
+	  * The length of the length and the opcode in front of the payload.
+	  */
+		static final int HEADER_LENGTH = 5;
+
+	 /**
+	  * The largest payload (in bytes) a client may send.
+	  */
+		static final int MAX_PAYLOAD = LineDecoder.MAX_LINE_LENGTH;
+
+	 /**
+	  * The kind of message.
+	  */
+		final byte opcode;
+
+	 /**
+	  * The text of the message.
+	  */
+		final String payload;
+
+		Frame(byte opcode, String payload) {
+			this.opcode = opcode;
+			this.payload = payload;
+		}
+
+	 /**
+	  * Encodes a frame.
+	  *
+	  * @param opcode
+	  *						the kind of message
+	  * @param payload
+	  *						the text of the message
+	  * @return a buffer holding the whole frame, ready to be read
+	  */
+		static ByteBuffer encode(byte opcode, String payload) {
+			return encode(opcode, payload.getBytes(StandardCharsets.UTF_8), 0, -1);
+		}
+
+	 /**
+	  * Encodes a frame around an already encoded payload.
+	  *
+	  * @param opcode
+	  *						the kind of message
+	  * @param payload
+	  *						an array holding the UTF-8 payload
+	  * @param offset
+	  *						where the payload starts in the array
+	  * @param length
+	  *						the length of the payload, or -1 for the rest of the
+	  *						array
+	  * @return a buffer holding the whole frame, ready to be read
+	  */
+		static ByteBuffer encode(byte opcode, byte[] payload, int offset, int length) {
+			if (length < 0) length = payload.length - offset;
+			ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+			frame.putInt(length).put(opcode).put(payload, offset, length);
+			frame.flip();
+			return frame;
+		}
+
+	 /**
+	  * Reads a frame from a blocking stream.
+	  *
+	  * @param in
+	  *						the stream
+	  * @return the frame, or null if the stream ended before it started
+	  * @throws IOException
+	  *						if the stream ended part way through the frame, or
+	  *						the frame is too long
+	  */
+		static Frame read(DataInputStream in) throws IOException {
+			return read(in, MAX_PAYLOAD);
+		}
+
+	 /**
+	  * Reads a frame from a blocking stream, allowing a different limit on
+	  * its length.
+	  *
+	  * @param in
+	  *						the stream
+	  * @param maxPayload
+	  *						the longest payload accepted, in bytes
+	  * @return the frame, or null if the stream ended before it started
+	  * @throws IOException
+	  *						if the stream ended part way through the frame, or
+	  *						the frame is too long
+	  */
+		static Frame read(DataInputStream in, int maxPayload) throws IOException {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			byte opcode = in.readByte();
+			if (length < 0 || length > maxPayload) {
+				throw new IOException("Frame of " + length + " bytes");
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			return decode(opcode, payload, length, maxPayload);
+		}
+
+	 /**
+	  * Makes a frame from its opcode and payload as they arrived,
+	  * decompressing the payload if the opcode has {@link Compression#FLAG}.
+	  *
+	  * @param opcode
+	  *						the opcode
+	  * @param payload
+	  *						an array holding the payload
+	  * @param length
+	  *						the length of the payload
+	  * @param maxPayload
+	  *						the longest payload allowed once decompressed
+	  * @return the frame
+	  * @throws IOException
+	  *						if a compressed payload is corrupt or too long
+	  */
+		static Frame decode(byte opcode, byte[] payload, int length, int maxPayload) throws IOException {
+			if ((opcode & Compression.FLAG) != 0) {
+				return new Frame((byte) (opcode & ~Compression.FLAG),
+					Compression.decompress(payload, length, maxPayload));
+			}
+			return new Frame(opcode, new String(payload, 0, length, StandardCharsets.UTF_8));
+		}
+
+	 /**
+	  * Writes a frame to a blocking stream and flushes it.
+	  *
+	  * @param out
+	  *						the stream
+	  * @param opcode
+	  *						the kind of message
+	  * @param payload
+	  *						the text of the message
+	  * @throws IOException
+	  *						if the stream can no longer be written
+	  */
+		static void write(DataOutputStream out, byte opcode, String payload) throws IOException {
+			ByteBuffer frame = encode(opcode, payload);
+			out.write(frame.array(), 0, frame.limit());
+			out.flush();
+		}
+
+	} // End of the class Frame
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * ****************************
+ * Filename: FrameDecoder.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Splits the bytes arriving from a client into {@linkplain Frame frames},
+  * as {@link LineDecoder} does for lines.
+  * </p>
+  * A read may stop anywhere in a frame, so the unfinished part is kept until
+  * the rest arrives. Unlike lines, nothing has to be scanned: the length in
+  * the header says how many bytes to wait for.
+  *
+  * @author Jamil Triaa
+  */
+	class FrameDecoder {
+
+	 /**
+	  * The header of the frame being read.
+	  */
+		private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+
+	 /**
+	  * The payload of the frame being read, or null while the header is
+	  * still incomplete.
+	  */
+		private ByteBuffer payload;
+
+	 /**
+	  * The length in bytes of the last frame taken out.
+	  */
+		private int lastLength = 0;
+
+	 /**
+	  * Takes the next complete frame out of the buffer.
+	  *
+	  * @param in
+	  *						bytes read from the client, ready to be read
+	  * @return the next frame, or null if the buffer ran out before the end of
+	  *						the frame
+	  * @throws IOException
+	  *						if the payload is longer than {@link Frame#MAX_PAYLOAD}
+	  */
+		Frame next(ByteBuffer in) throws IOException {
+			if (payload == null) {
+				transfer(in, header);
+				if (header.hasRemaining()) return null;
+				int length = header.getInt(0);
+				if (length < 0 || length > Frame.MAX_PAYLOAD) {
+					throw new IOException("Frame of " + length + " bytes is longer than " + Frame.MAX_PAYLOAD);
+				}
+				payload = ByteBuffer.allocate(length);
+			}
+			transfer(in, payload);
+			if (payload.hasRemaining()) return null;
+			Frame frame = Frame.decode(header.get(4), payload.array(), payload.capacity(), Frame.MAX_PAYLOAD);
+			lastLength = Frame.HEADER_LENGTH + payload.capacity();
+			header.clear();
+			payload = null;
+			return frame;
+		}
+
+	 /**
+	  * Gets the length of the last frame taken out, before it was decoded.
+	  *
+	  * @return the number of bytes, header included
+	  */
+		int lastLength() {
+			return lastLength;
+		}
+
+	 /**
+	  * Copies as much as fits from one buffer to the other.
+	  */
+		private static void transfer(ByteBuffer from, ByteBuffer to) {
+			int count = Math.min(from.remaining(), to.remaining());
+			ByteBuffer slice = from.duplicate();
+			slice.limit(slice.position() + count);
+			to.put(slice);
+			from.position(from.position() + count);
+		}
+
+	} // End of the class FrameDecoder
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+/*
+ * ****************************
+ * Filename: IntBitSet.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * A set of session IDs stored as bits, one bit per ID.
+  * </p>
+  * <p>
+  * It is copy-on-write: a change builds a new array of words and then
+  * publishes it, so reading never locks and always sees a complete set. That
+  * suits the sets it is used for (Administrators and block lists), which are
+  * read by every broadcast but hardly ever change.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	final class IntBitSet {
+
+		private static final long[] NO_WORDS = new long[0];
+
+	 /**
+	  * The bits. Never changed once published; replaced instead.
+	  */
+		private volatile long[] words = NO_WORDS;
+
+	 /**
+	  * The number of IDs in the set.
+	  */
+		private volatile int size = 0;
+
+	 /**
+	  * Is an ID in the set?
+	  *
+	  * @param id
+	  *						a session ID
+	  * @return true if it is in the set
+	  */
+		boolean get(int id) {
+			long[] w = words;
+			int index = id >>> 6;
+			return index < w.length && (w[index] & (1L << id)) != 0;
+		}
+
+	 /**
+	  * Adds an ID to the set.
+	  *
+	  * @param id
+	  *						a session ID
+	  */
+		synchronized void set(int id) {
+			if (get(id)) return;
+			long[] w = words;
+			int index = id >>> 6;
+			long[] copy = Arrays.copyOf(w, Math.max(w.length, index + 1));
+			copy[index] |= 1L << id;
+			words = copy;
+			size++;
+		}
+
+	 /**
+	  * Removes an ID from the set.
+	  *
+	  * @param id
+	  *						a session ID
+	  */
+		synchronized void clear(int id) {
+			if (!get(id)) return;
+			long[] copy = words.clone();
+			copy[id >>> 6] &= ~(1L << id);
+			words = copy;
+			size--;
+		}
+
+	 /**
+	  * Is the set empty?
+	  *
+	  * @return true if there are no IDs in the set
+	  */
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+	 /**
+	  * Gets the number of IDs in the set.
+	  *
+	  * @return the size of the set
+	  */
+		int size() {
+			return size;
+		}
+
+	 /**
+	  * Finds the next ID in the set, for going through all of them.
+	  *
+	  * @param from
+	  *						the first ID to look at
+	  * @return the smallest ID in the set which is at least {@code from}, or
+	  *						-1 if there is none
+	  */
+		int nextSetBit(int from) {
+			long[] w = words;
+			int index = from >>> 6;
+			if (index >= w.length) return -1;
+			long word = w[index] & (-1L << from);
+			while (true) {
+				if (word != 0) return (index << 6) + Long.numberOfTrailingZeros(word);
+				if (++index == w.length) return -1;
+				word = w[index];
+			}
+		}
+
+	} // End of the class IntBitSet
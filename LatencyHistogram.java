@@ -0,0 +1,154 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ****************************
+ * Filename: LatencyHistogram.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Counts how long things took, in nanoseconds, so that percentiles can be
+  * read off without keeping every value.
+  * </p>
+  * <p>
+  * Values below 64 get a bucket each. Above that, every power of two is
+  * split into 32 buckets, so a bucket is never wider than about 3% of the
+  * values in it, and the whole range of a long fits in under 2,000
+  * counters. Recording is one increment and is safe from any number of
+  * threads at once.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	final class LatencyHistogram {
+
+	 /**
+	  * Every power of two is split into 2^SUB_BITS buckets.
+	  */
+		private static final int SUB_BITS = 5;
+
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	 /**
+	  * Enough buckets for {@link Long#MAX_VALUE}.
+	  */
+		private static final int BUCKETS = (63 - SUB_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+		private final LongAdder count = new LongAdder();
+
+		private final LongAdder sum = new LongAdder();
+
+		private final AtomicLong max = new AtomicLong();
+
+	 /**
+	  * Records a value.
+	  *
+	  * @param nanos
+	  *						how long it took; a negative value counts as 0
+	  */
+		void record(long nanos) {
+			if (nanos < 0) nanos = 0;
+			counts.incrementAndGet(bucket(nanos));
+			count.increment();
+			sum.add(nanos);
+			if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+		}
+
+	 /**
+	  * Gets the number of values recorded.
+	  *
+	  * @return the number of values
+	  */
+		long count() {
+			return count.sum();
+		}
+
+	 /**
+	  * Gets the largest value recorded.
+	  *
+	  * @return the largest value, or 0 if there are none
+	  */
+		long max() {
+			return max.get();
+		}
+
+	 /**
+	  * Gets the mean of the values recorded.
+	  *
+	  * @return the mean, or 0 if there are none
+	  */
+		double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+	 /**
+	  * Gets a value which a given fraction of the values are no greater than.
+	  * It is the top of the bucket the percentile falls in, so it is at most
+	  * about 3% too high, and never more than the largest value.
+	  *
+	  * @param fraction
+	  *						e.g. 0.99 for the 99th percentile
+	  * @return the percentile, or 0 if there are no values
+	  */
+		long percentile(double fraction) {
+			long n = 0;
+			long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts.get(i);
+				n += snapshot[i];
+			}
+			if (n == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(fraction * n));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if (seen >= rank) return Math.min(highest(i), max.get());
+			}
+			return max.get();
+		}
+
+	 /**
+	  * Adds the values recorded by another histogram to this one.
+	  *
+	  * @param other
+	  *						the other histogram
+	  */
+		void add(LatencyHistogram other) {
+			for (int i = 0; i < BUCKETS; i++) {
+				long c = other.counts.get(i);
+				if (c != 0) counts.addAndGet(i, c);
+			}
+			count.add(other.count.sum());
+			sum.add(other.sum.sum());
+			max.accumulateAndGet(other.max.get(), Math::max);
+		}
+
+	 /**
+	  * Finds the bucket a value goes in.
+	  */
+		private static int bucket(long value) {
+			if (value < 2 * SUB_BUCKETS) return (int) value;
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return shift * SUB_BUCKETS + (int) (value >>> shift);
+		}
+
+	 /**
+	  * Gets the highest value that goes in a bucket.
+	  */
+		private static long highest(int bucket) {
+			if (bucket < 2 * SUB_BUCKETS) return bucket;
+			int shift = bucket / SUB_BUCKETS - 1;
+			long mantissa = bucket - shift * SUB_BUCKETS;
+			return ((mantissa + 1) << shift) - 1;
+		}
+
+	} // End of the class LatencyHistogram
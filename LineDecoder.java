@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * ****************************
+ * Filename: LineDecoder.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Splits the bytes arriving on a non-blocking channel into lines, the same
+  * way {@link java.io.BufferedReader#readLine()} does for a blocking socket.
+  * </p>
+  * <p>
+  * A read may stop in the middle of a line (or even in the middle of a
+  * character), so the unfinished part is kept until the rest arrives. Lines
+  * are split on the byte '\n' before they are decoded, which is safe for
+  * UTF-8 because that byte never appears inside a multi-byte character.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	class LineDecoder {
+
+	 /**
+	  * The longest line (in bytes) a client may send.
+	  */
+		static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	 /**
+	  * The bytes of the line which has not been finished yet.
+	  */
+		private byte[] partial = new byte[256];
+
+	 /**
+	  * How many bytes of {@link #partial} are in use.
+	  */
+		private int length = 0;
+
+	 /**
+	  * The length in bytes of the last line taken out.
+	  */
+		private int lastLength = 0;
+
+	 /**
+	  * Takes the next complete line out of the buffer.
+	  *
+	  * @param in
+	  *						bytes read from the channel, ready to be read
+	  * @return the next line without its line terminator, or null if the
+	  *						buffer ran out before the end of the line
+	  * @throws IOException
+	  *						if the line is longer than {@link #MAX_LINE_LENGTH}
+	  */
+		String nextLine(ByteBuffer in) throws IOException {
+			while (in.hasRemaining()) {
+				byte b = in.get();
+				if (b == '\n') {
+					// Like readLine(), accept both "\n" and "\r\n"
+					int end = (length > 0 && partial[length - 1] == '\r') ? length - 1 : length;
+					String line = new String(partial, 0, end, StandardCharsets.UTF_8);
+					lastLength = end;
+					length = 0;
+					return line;
+				}
+				if (length == partial.length) {
+					if (length >= MAX_LINE_LENGTH) {
+						throw new IOException("Line is longer than " + MAX_LINE_LENGTH + " bytes");
+					}
+					partial = Arrays.copyOf(partial, Math.min(length * 2, MAX_LINE_LENGTH));
+				}
+				partial[length++] = b;
+			}
+			return null;
+		}
+
+	 /**
+	  * Gets the length of the last line taken out, before it was decoded.
+	  *
+	  * @return the number of bytes, without the line terminator
+	  */
+		int lastLength() {
+			return lastLength;
+		}
+
+	} // End of the class LineDecoder
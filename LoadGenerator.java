@@ -0,0 +1,728 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ****************************
+ * Filename: LoadGenerator.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Simulates many users at once, with no console, to see how the server
+  * holds up: {@code java Client --load --users=1000 --rate=2000}.
+  * </p>
+  * <p>
+  * It opens the sessions a batch at a time and logs each in under a name
+  * of its own (a number is added if the name is taken). With
+  * {@code --rooms=N} the users are spread over N rooms. Once they are all
+  * in, it sends messages at a steady rate, each a chat message, a
+  * private message or a command, as picked at random by {@code --mix}. It
+  * warms up first, then measures for a while.
+  * </p>
+  * <p>
+  * Every chat and private message carries the time it was due to be sent.
+  * Each user who receives it records how long it took from then, so a
+  * generator or server which falls behind shows up in the latency rather
+  * than in a lower rate. A command's time is from when it was due until the
+  * answer comes. Only messages due while measuring are counted, and the
+  * number delivered is compared with the number that should have been.
+  * </p>
+  * <p>
+  * All the sessions run on a few threads, each with a {@link Selector}, so
+  * thousands of users do not need thousands of threads. The results are
+  * printed and written as JSON to {@code --out}.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	final class LoadGenerator {
+
+	 /**
+	  * The kinds of message sent, as indexes into the counters.
+	  */
+		private static final int CHAT = 0, PRIVATE = 1, COMMAND = 2;
+
+		private static final String[] KINDS = { "chat", "private", "command" };
+
+	 /**
+	  * The line the server greets a client with.
+	  */
+		private static final String WELCOME = " Please enter your username.";
+
+		private static final String ACCEPTED = " Your username has been accepted.";
+
+		private static final String TAKEN = " Sorry, this username is already being used.";
+
+		private static final String JOINED = " You are now in ";
+
+		private static final String KICKED_OUT = "[Server] [Kicked Out]";
+
+		private static final String PRIVATE_END = "[Private Message]";
+
+	 /**
+	  * The start of the answer to "-clientNo".
+	  */
+		private static final String CLIENT_NO = " There ";
+
+	 /**
+	  * The sender's own copy of a chat message, which is not counted.
+	  */
+		private static final String ECHO = "(You): ";
+
+		private final String host;
+
+		private final int port;
+
+		private final boolean binary;
+
+	 /**
+	  * Whether binary sessions ask for compressed frames.
+	  */
+		private final boolean compress;
+
+		private final int users;
+
+		private final int rooms;
+
+		private final double rate;
+
+		private final long warmUpNanos;
+
+		private final long measureNanos;
+
+		private final long drainNanos;
+
+		private final int messageBytes;
+
+		private final int maxConnecting;
+
+	 /**
+	  * The chance of each kind of message, added up: a random number below
+	  * mix[CHAT] is a chat message, and so on.
+	  */
+		private final double[] mix = new double[3];
+
+	 /**
+	  * Marks the messages of this run, followed by the time each was due.
+	  */
+		private final String marker;
+
+		private final String padding;
+
+		private final Session[] sessions;
+
+	 /**
+	  * For each room, the number of users who have gone into it.
+	  */
+		private final AtomicInteger[] roomSizes;
+
+		private final AtomicInteger loggedIn = new AtomicInteger();
+
+		private final AtomicInteger failed = new AtomicInteger();
+
+	 /**
+	  * The sessions the server closed or kicked out after logging in.
+	  */
+		private final AtomicInteger lost = new AtomicInteger();
+
+		private final LatencyHistogram login = new LatencyHistogram();
+
+		private final LatencyHistogram[] latencies = {
+			new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()
+		};
+
+		private final LongAdder[] sent = { new LongAdder(), new LongAdder(), new LongAdder() };
+
+		private final LongAdder[] expected = { new LongAdder(), new LongAdder(), new LongAdder() };
+
+		private final LongAdder[] received = { new LongAdder(), new LongAdder(), new LongAdder() };
+
+	 /**
+	  * When sending starts, and when measuring starts and ends, in
+	  * {@link System#nanoTime()}; 0 until they are known.
+	  */
+		private volatile long sendStart, measureStart, measureEnd;
+
+		private volatile boolean stopped = false;
+
+	 /**
+	  * Reads the options. Nothing is connected yet.
+	  *
+	  * @param options
+	  *						the command line options
+	  * @throws IllegalArgumentException
+	  *						if an option is out of range
+	  */
+		LoadGenerator(ServerOptions options) {
+			host = options.getString("host", "127.0.0.1");
+			port = options.getInt("port", 2111, 1, 65535);
+			compress = options.getBoolean("compress", false);
+			binary = compress || options.getBoolean("binary", false);
+			users = options.getInt("users", 100, 2, Integer.MAX_VALUE);
+			rooms = options.getInt("rooms", 1, 1, Integer.MAX_VALUE);
+			rate = options.getInt("rate", 1000, 1, Integer.MAX_VALUE);
+			warmUpNanos = Math.multiplyExact(options.getLong("warmUpSeconds", 5, 0, Integer.MAX_VALUE), 1000000000L);
+			measureNanos = Math.multiplyExact(options.getLong("seconds", 30, 1, Integer.MAX_VALUE), 1000000000L);
+			drainNanos = Math.multiplyExact(options.getLong("drainMillis", 2000, 0, Integer.MAX_VALUE), 1000000L);
+			messageBytes = options.getInt("messageBytes", 64, 1, 1 << 20);
+			maxConnecting = options.getInt("connectBatch", 64, 1, Integer.MAX_VALUE);
+			parseMix(options.getString("mix", "chat:90,private:8,command:2"));
+			Random random = new Random();
+			marker = "~lg" + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36) + ":";
+			StringBuilder pad = new StringBuilder();
+			while (pad.length() < messageBytes - marker.length() - 20) {
+				pad.append('x');
+			}
+			padding = pad.toString();
+			String prefix = options.getString("namePrefix", "load");
+			sessions = new Session[users];
+			for (int i = 0; i < users; i++) {
+				sessions[i] = new Session(prefix + i, i % rooms);
+			}
+			roomSizes = new AtomicInteger[rooms];
+			for (int i = 0; i < rooms; i++) {
+				roomSizes[i] = new AtomicInteger();
+			}
+		}
+
+	 /**
+	  * Reads "kind:weight,..." into {@link #mix}.
+	  */
+		private void parseMix(String spec) {
+			double[] weights = new double[3];
+			double total = 0;
+			for (String part : spec.split(",")) {
+				int colon = part.indexOf(':');
+				int kind = colon < 0 ? -1 : kindOf(part.substring(0, colon).trim());
+				if (kind < 0) throw new IllegalArgumentException("--mix must be like chat:90,private:8,command:2");
+				weights[kind] = Double.parseDouble(part.substring(colon + 1).trim());
+				total += weights[kind];
+			}
+			if (total <= 0) throw new IllegalArgumentException("--mix needs a weight above 0");
+			double sum = 0;
+			for (int i = 0; i < 3; i++) {
+				sum += weights[i] / total;
+				mix[i] = sum;
+			}
+		}
+
+		private static int kindOf(String name) {
+			for (int i = 0; i < KINDS.length; i++) {
+				if (KINDS[i].equals(name)) return i;
+			}
+			return -1;
+		}
+
+	 /**
+	  * Runs the whole test: logs the users in, sends for the warm-up and the
+	  * measuring time, waits for the last messages and reports.
+	  *
+	  * @param options
+	  *						the command line options
+	  * @throws IOException
+	  *						if a selector cannot be opened or the results cannot
+	  *						be written
+	  * @throws InterruptedException
+	  *						if interrupted while waiting
+	  */
+		static void run(ServerOptions options) throws IOException, InterruptedException {
+			LoadGenerator generator;
+			int threadCount;
+			String out;
+			long loginTimeout;
+			try {
+				generator = new LoadGenerator(options);
+				threadCount = Math.min(options.getInt("threads", 1, 1, 1024), generator.users);
+				out = options.getString("out", "load-results.json");
+				loginTimeout = Math.multiplyExact(options.getLong("loginTimeoutSeconds", 60, 1, Integer.MAX_VALUE),
+					1000000000L);
+				options.checkAllRead();
+			} catch (IllegalArgumentException e) {
+				System.err.println(" " + e.getMessage());
+				System.exit(1);
+				return;
+			}
+
+			Loop[] loops = new Loop[threadCount];
+			Thread[] threads = new Thread[threadCount];
+			for (int t = 0; t < threadCount; t++) {
+				List<Session> mine = new ArrayList<Session>();
+				for (int i = t; i < generator.users; i += threadCount) {
+					mine.add(generator.sessions[i]);
+				}
+				loops[t] = generator.new Loop(mine, generator.rate / threadCount, t);
+				threads[t] = new Thread(loops[t], "load-" + t);
+				threads[t].start();
+			}
+
+			long start = System.nanoTime();
+			while (generator.loggedIn.get() + generator.failed.get() < generator.users
+				&& System.nanoTime() - start < loginTimeout) {
+				Thread.sleep(50);
+			}
+			System.out.println(" " + generator.loggedIn.get() + " users logged in in "
+				+ (System.nanoTime() - start) / 1000000 + " ms, " + generator.failed.get() + " failed.");
+
+			long now = System.nanoTime();
+			generator.measureStart = now + generator.warmUpNanos;
+			generator.measureEnd = generator.measureStart + generator.measureNanos;
+			generator.sendStart = now;
+			for (Loop loop : loops) {
+				loop.selector.wakeup();
+			}
+			long end = generator.measureEnd + generator.drainNanos;
+			while ((now = System.nanoTime()) < end) {
+				Thread.sleep(Math.max(1, (end - now) / 1000000));
+			}
+			generator.stopped = true;
+			for (int t = 0; t < threadCount; t++) {
+				loops[t].selector.wakeup();
+				threads[t].join();
+			}
+			generator.report(out);
+		}
+
+	 /**
+	  * Prints the results and writes them to a file as JSON.
+	  */
+		private void report(String file) throws IOException {
+			double seconds = measureNanos / 1e9;
+			System.out.printf(" %-8s %10s %12s %12s %10s %10s %10s %10s %10s%n", "kind", "sent/s", "expected",
+				"received", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+			for (int k = 0; k < 3; k++) {
+				LatencyHistogram h = latencies[k];
+				System.out.printf(" %-8s %10.0f %12d %12d %10d %10d %10d %10d %10d%n", KINDS[k], sent[k].sum() / seconds,
+					expected[k].sum(), received[k].sum(), h.percentile(0.5) / 1000, h.percentile(0.9) / 1000,
+					h.percentile(0.99) / 1000, h.percentile(0.999) / 1000, h.max() / 1000);
+			}
+			if (lost.get() > 0) System.out.println(" " + lost.get() + " sessions were disconnected.");
+
+			StringBuilder json = new StringBuilder();
+			json.append("{\n");
+			json.append("  \"host\": \"").append(host).append("\",\n");
+			json.append("  \"port\": ").append(port).append(",\n");
+			json.append("  \"binary\": ").append(binary).append(",\n");
+			json.append("  \"compress\": ").append(compress).append(",\n");
+			json.append("  \"users\": ").append(users).append(",\n");
+			json.append("  \"rooms\": ").append(rooms).append(",\n");
+			json.append("  \"rate\": ").append(format(rate)).append(",\n");
+			json.append("  \"messageBytes\": ").append(messageBytes).append(",\n");
+			json.append("  \"measureSeconds\": ").append(format(seconds)).append(",\n");
+			json.append("  \"loggedIn\": ").append(loggedIn.get()).append(",\n");
+			json.append("  \"loginFailed\": ").append(failed.get()).append(",\n");
+			json.append("  \"disconnected\": ").append(lost.get()).append(",\n");
+			json.append("  \"login\": ").append(latency(login)).append(",\n");
+			json.append("  \"kinds\": {\n");
+			for (int k = 0; k < 3; k++) {
+				json.append("    \"").append(KINDS[k]).append("\": {\"sent\": ").append(sent[k].sum())
+					.append(", \"expected\": ").append(expected[k].sum())
+					.append(", \"received\": ").append(received[k].sum())
+					.append(", \"latency\": ").append(latency(latencies[k]))
+					.append(k < 2 ? "},\n" : "}\n");
+			}
+			json.append("  }\n}\n");
+			Files.write(Paths.get(file), json.toString().getBytes(StandardCharsets.UTF_8));
+			System.out.println(" Results written to " + file + ".");
+		}
+
+	 /**
+	  * Describes a histogram as a JSON object, in microseconds.
+	  */
+		private static String latency(LatencyHistogram h) {
+			return "{\"count\": " + h.count() + ", \"meanMicros\": " + format(h.mean() / 1000)
+				+ ", \"p50Micros\": " + format(h.percentile(0.5) / 1000.0)
+				+ ", \"p90Micros\": " + format(h.percentile(0.9) / 1000.0)
+				+ ", \"p99Micros\": " + format(h.percentile(0.99) / 1000.0)
+				+ ", \"p999Micros\": " + format(h.percentile(0.999) / 1000.0)
+				+ ", \"maxMicros\": " + format(h.max() / 1000.0) + "}";
+		}
+
+		private static String format(double value) {
+			return String.format(Locale.ROOT, "%.1f", value);
+		}
+
+	 /**
+	  * One simulated user.
+	  */
+		private final class Session {
+
+		 /**
+		  * The name asked for; a number is added to it if it is taken.
+		  */
+			final String baseName;
+
+			String name;
+
+			int attempts = 0;
+
+			final int room;
+
+			SocketChannel channel;
+
+			SelectionKey key;
+
+			long connectedAt;
+
+		 /**
+		  * When the session was ready to chat, in nanoseconds, or 0. Anything
+		  * due before then is history being replayed.
+		  */
+			volatile long readyAt = 0;
+
+			volatile boolean closed = false;
+
+		 /**
+		  * The binary handshake is over and frames are coming in.
+		  */
+			boolean framing = false;
+
+			final LineDecoder lines = new LineDecoder();
+
+			FrameDecoder frames;
+
+			final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+
+		 /**
+		  * When each command waiting for its answer was due.
+		  */
+			final ArrayDeque<Long> commands = new ArrayDeque<Long>();
+
+			Session(String baseName, int room) {
+				this.baseName = baseName;
+				this.name = baseName;
+				this.room = room;
+			}
+		}
+
+	 /**
+	  * An event loop running some of the sessions: connecting them, sending
+	  * their share of the messages and reading what they receive.
+	  */
+		private final class Loop implements Runnable {
+
+			final Selector selector;
+
+			final List<Session> mine;
+
+		 /**
+		  * The sessions ready to chat, to send from.
+		  */
+			final List<Session> ready = new ArrayList<Session>();
+
+		 /**
+		  * The time between two messages from this loop.
+		  */
+			final long interval;
+
+			final Random random;
+
+			final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+			int nextToConnect = 0;
+
+			int connecting = 0;
+
+			Loop(List<Session> mine, double rate, int seed) throws IOException {
+				this.selector = Selector.open();
+				this.mine = mine;
+				this.interval = (long) (1e9 / rate);
+				this.random = new Random(seed);
+			}
+
+			@Override
+			public void run() {
+				long nextSend = 0;
+				try {
+					while (!stopped) {
+						connectMore();
+						long now = System.nanoTime();
+						long timeout = 100;
+						if (sendStart != 0) {
+							if (nextSend == 0) nextSend = sendStart + random.nextInt((int) Math.min(interval + 1, Integer.MAX_VALUE));
+							long stop = measureEnd;
+							while (nextSend <= now && nextSend < stop) {
+								sendOne(nextSend);
+								nextSend += interval;
+							}
+							if (nextSend < stop) timeout = Math.max(1, (nextSend - now) / 1000000);
+						}
+						selector.select(timeout);
+						Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							SelectionKey key = keys.next();
+							keys.remove();
+							handle(key, (Session) key.attachment());
+						}
+					}
+				} catch (IOException e) {
+					System.err.println(" Exception in the load generator: " + e);
+				} finally {
+					for (Session session : mine) {
+						close(session);
+					}
+					try {
+						selector.close();
+					} catch (IOException e) {
+						// Nothing more to do
+					}
+				}
+			}
+
+		 /**
+		  * Starts connecting more sessions, keeping at most a batch of them
+		  * logging in at once.
+		  */
+			void connectMore() {
+				while (connecting < maxConnecting && nextToConnect < mine.size()) {
+					Session session = mine.get(nextToConnect++);
+					connecting++;
+					try {
+						session.connectedAt = System.nanoTime();
+						session.channel = SocketChannel.open();
+						session.channel.configureBlocking(false);
+						session.channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+						boolean done = session.channel.connect(new InetSocketAddress(host, port));
+						session.key = session.channel.register(selector,
+							done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, session);
+					} catch (IOException e) {
+						loginFailed(session, e.toString());
+					}
+				}
+			}
+
+			void handle(SelectionKey key, Session session) {
+				try {
+					if (key.isConnectable() && session.channel.finishConnect()) {
+						key.interestOps(SelectionKey.OP_READ);
+					}
+					if (key.isValid() && key.isWritable()) flush(session);
+					if (key.isValid() && key.isReadable()) read(session);
+				} catch (IOException e) {
+					disconnected(session, e.toString());
+				}
+			}
+
+			void read(Session session) throws IOException {
+				readBuffer.clear();
+				int n = session.channel.read(readBuffer);
+				if (n < 0) {
+					disconnected(session, "closed by the server");
+					return;
+				}
+				readBuffer.flip();
+				while (!session.closed) {
+					if (session.framing) {
+						Frame frame = session.frames.next(readBuffer);
+						if (frame == null) return;
+						if (frame.opcode == Frame.KICK) {
+							disconnected(session, "kicked out");
+							return;
+						}
+						if (frame.opcode == Frame.HELLO) continue;
+						if (frame.opcode == Frame.PING) {
+							send(session, Frame.encode(Frame.PONG, frame.payload));
+							continue;
+						}
+						if (frame.opcode == Frame.LOGIN) {
+							received(session, ACCEPTED);
+							continue;
+						}
+						for (String line : frame.payload.split("\n")) {
+							received(session, line);
+						}
+					} else {
+						String line = session.lines.nextLine(readBuffer);
+						if (line == null) return;
+						if (binary) {
+							// The greeting: asks for frames from now on
+							session.framing = true;
+							session.frames = new FrameDecoder();
+							String hello = compress ? Frame.HELLO_LINE + " " + Compression.NAME : Frame.HELLO_LINE;
+							send(session, (hello + "\n").getBytes(StandardCharsets.UTF_8));
+						} else if (line.equals(KICKED_OUT)) {
+							disconnected(session, "kicked out");
+						} else {
+							received(session, line);
+						}
+					}
+				}
+			}
+
+		 /**
+		  * Handles one line from the server: the steps of logging in, then
+		  * the messages being measured.
+		  */
+			void received(Session session, String line) throws IOException {
+				long now = System.nanoTime();
+				if (session.readyAt == 0) {
+					if (line.startsWith(TAKEN)) {
+						session.name = session.baseName + "-" + (++session.attempts);
+					} else if (line.startsWith(WELCOME)) {
+						if (session.attempts > 20) {
+							loginFailed(session, "no free name");
+							return;
+						}
+						sendLogin(session);
+					} else if (line.startsWith(ACCEPTED)) {
+						if (rooms == 1) ready(session, now);
+						else sendCommand(session, "-join room" + session.room);
+					} else if (line.startsWith(JOINED)) {
+						ready(session, now);
+					}
+					return;
+				}
+				int at = line.indexOf(marker);
+				if (at >= 0) {
+					int end = line.indexOf(':', at + marker.length());
+					if (end < 0 || line.contains(ECHO)) return;
+					long due = Long.parseLong(line.substring(at + marker.length(), end));
+					int kind = line.endsWith(PRIVATE_END) ? PRIVATE : CHAT;
+					count(kind, due, now, session);
+				} else if (line.startsWith(CLIENT_NO) && !session.commands.isEmpty()) {
+					count(COMMAND, session.commands.poll(), now, session);
+				}
+			}
+
+		 /**
+		  * Records a delivery if it was due while measuring.
+		  */
+			void count(int kind, long due, long now, Session session) {
+				if (due < measureStart || due >= measureEnd || due < session.readyAt) return;
+				received[kind].increment();
+				latencies[kind].record(now - due);
+			}
+
+			void ready(Session session, long now) {
+				session.readyAt = now;
+				login.record(now - session.connectedAt);
+				roomSizes[session.room].incrementAndGet();
+				ready.add(session);
+				connecting--;
+				loggedIn.incrementAndGet();
+			}
+
+			void loginFailed(Session session, String why) {
+				System.err.println(" " + session.name + " could not log in: " + why);
+				connecting--;
+				failed.incrementAndGet();
+				close(session);
+			}
+
+			void disconnected(Session session, String why) {
+				if (session.closed) return;
+				if (session.readyAt == 0) {
+					loginFailed(session, why);
+					return;
+				}
+				if (!stopped) System.err.println(" " + session.name + " was disconnected: " + why);
+				lost.incrementAndGet();
+				roomSizes[session.room].decrementAndGet();
+				ready.remove(session);
+				close(session);
+			}
+
+			void close(Session session) {
+				session.closed = true;
+				if (session.channel == null) return;
+				try {
+					session.channel.close();
+				} catch (IOException e) {
+					// Already closed
+				}
+			}
+
+		 /**
+		  * Sends the message due at a given time, from a random session.
+		  */
+			void sendOne(long due) throws IOException {
+				if (ready.isEmpty()) return;
+				Session from = ready.get(random.nextInt(ready.size()));
+				double pick = random.nextDouble();
+				int kind = pick < mix[CHAT] ? CHAT : pick < mix[PRIVATE] ? PRIVATE : COMMAND;
+				boolean counted = due >= measureStart && due < measureEnd;
+				String text = marker + due + ":" + padding;
+				if (kind == CHAT) {
+					if (binary) send(from, Frame.encode(Frame.CHAT, text));
+					else sendLine(from, text);
+					if (counted) expected[CHAT].add(roomSizes[from.room].get() - 1);
+				} else if (kind == PRIVATE) {
+					Session to = sessions[random.nextInt(users)];
+					if (to == from || to.readyAt == 0 || to.closed) return;
+					if (binary) send(from, Frame.encode(Frame.PRIVATE, to.name + "\n" + text));
+					else sendLine(from, "-private " + to.name + ": " + text);
+					if (counted) expected[PRIVATE].increment();
+				} else {
+					from.commands.add(due);
+					sendCommand(from, "-clientNo");
+					if (counted) expected[COMMAND].increment();
+				}
+				if (counted) sent[kind].increment();
+			}
+
+			void sendLogin(Session session) throws IOException {
+				if (binary) send(session, Frame.encode(Frame.LOGIN, session.name));
+				else sendLine(session, session.name);
+			}
+
+			void sendCommand(Session session, String command) throws IOException {
+				if (binary) send(session, Frame.encode(Frame.COMMAND, command));
+				else sendLine(session, command);
+			}
+
+			void sendLine(Session session, String line) throws IOException {
+				send(session, (line + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+
+			void send(Session session, byte[] bytes) throws IOException {
+				send(session, ByteBuffer.wrap(bytes));
+			}
+
+		 /**
+		  * Writes to a session's socket, queueing what it cannot take yet.
+		  */
+			void send(Session session, ByteBuffer bytes) throws IOException {
+				if (session.closed) return;
+				session.pending.add(bytes);
+				if (session.pending.size() == 1) {
+					try {
+						flush(session);
+					} catch (IOException e) {
+						disconnected(session, e.toString());
+					}
+				}
+			}
+
+			void flush(Session session) throws IOException {
+				while (!session.pending.isEmpty()) {
+					ByteBuffer head = session.pending.peek();
+					session.channel.write(head);
+					if (head.hasRemaining()) {
+						session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					session.pending.poll();
+				}
+				session.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+	} // End of the class LoadGenerator
@@ -0,0 +1,280 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+/*
+ * ****************************
+ * Filename: MessageHistory.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * The most recent chat messages and server events, so that people who have
+  * just come in can see what was said before.
+  * </p>
+  * <p>
+  * The messages are kept already encoded, as {@linkplain Frame frames}, in
+  * one ring of bytes which may be allocated outside the Java heap. There is
+  * a limit on both the number of messages and the number of bytes, and the
+  * oldest messages are overwritten to stay within them, so the memory used
+  * never grows however busy the chat is.
+  * </p>
+  * Reading the history copies the chosen messages into one buffer, ready to
+  * be queued for a client as it is: a binary client gets the frames as they
+  * were stored, and a text client the payloads, each followed by a line
+  * separator.
+  *
+  * @author Jamil Triaa
+  */
+	final class MessageHistory {
+
+	 /**
+	  * The line separator, encoded, for text clients.
+	  */
+		private static final byte[] LINE_END = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+	 /**
+	  * The stored frames, one after another, wrapping round at the end.
+	  */
+		private final ByteBuffer data;
+
+	 /**
+	  * Where each message starts in {@link #data}. The messages are a ring
+	  * too: the oldest is at {@link #first}.
+	  */
+		private final int[] offsets;
+
+	 /**
+	  * The length of each message's frame.
+	  */
+		private final int[] lengths;
+
+	 /**
+	  * The room each message was said in, or null for a message to everyone.
+	  */
+		private final String[] rooms;
+
+	 /**
+	  * The session ID of each message's sender, or -1 for the server and
+	  * people on other servers.
+	  */
+		private final int[] senders;
+
+	 /**
+	  * The index of the oldest message.
+	  */
+		private int first = 0;
+
+	 /**
+	  * The number of messages kept.
+	  */
+		private int count = 0;
+
+	 /**
+	  * Where the next frame goes in {@link #data}.
+	  */
+		private int end = 0;
+
+	 /**
+	  * The number of bytes the kept messages take up.
+	  */
+		private int used = 0;
+
+	 /**
+	  * Guards everything above. A ReentrantLock rather than synchronized, so
+	  * that a virtual thread waiting for it does not pin its carrier.
+	  */
+		private final ReentrantLock lock = new ReentrantLock();
+
+	 /**
+	  * Creates an empty history.
+	  *
+	  * @param maxMessages
+	  *						the most messages to keep
+	  * @param maxBytes
+	  *						the most bytes the encoded messages may take up
+	  * @param offHeap
+	  *						whether to keep the bytes outside the Java heap
+	  * @throws IllegalArgumentException
+	  *						if a limit is not positive
+	  */
+		MessageHistory(int maxMessages, int maxBytes, boolean offHeap) {
+			if (maxMessages <= 0 || maxBytes <= 0) {
+				throw new IllegalArgumentException("The history needs room for at least one message");
+			}
+			data = offHeap ? ByteBuffer.allocateDirect(maxBytes) : ByteBuffer.allocate(maxBytes);
+			offsets = new int[maxMessages];
+			lengths = new int[maxMessages];
+			rooms = new String[maxMessages];
+			senders = new int[maxMessages];
+		}
+
+	 /**
+	  * Adds a message, overwriting the oldest ones if there is no more
+	  * room. A message bigger than the whole history is not kept.
+	  *
+	  * @param room
+	  *						the room it was said in, or null for everyone
+	  * @param sender
+	  *						the sender's session ID, or -1
+	  * @param message
+	  *						the message
+	  */
+		void add(String room, int sender, EncodedMessage message) {
+			ByteBuffer frame = message.frameView();
+			int length = frame.remaining();
+			if (length > data.capacity()) return;
+			lock.lock();
+			try {
+				while (count == offsets.length || used + length > data.capacity()) {
+					// Forget the oldest
+					used -= lengths[first];
+					rooms[first] = null;
+					first = next(first);
+					count--;
+				}
+				int index = (first + count) % offsets.length;
+				offsets[index] = end;
+				lengths[index] = length;
+				rooms[index] = room;
+				senders[index] = sender;
+				count++;
+				used += length;
+				end = copyIn(frame, end);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Gets the latest messages that can be seen in a room, oldest first.
+	  *
+	  * @param room
+	  *						the room
+	  * @param limit
+	  *						the most messages to get
+	  * @param hidden
+	  *						tells which senders' messages to leave out, by
+	  *						session ID, or null to leave none out
+	  * @param binary
+	  *						true to get frames, false to get lines of text
+	  * @return a buffer holding the messages, ready to be read, or null if
+	  *						there are none
+	  */
+		ByteBuffer recent(String room, int limit, IntPredicate hidden, boolean binary) {
+			lock.lock();
+			try {
+				// Walks back from the newest, picking the messages to send
+				int[] picked = new int[Math.min(limit, count)];
+				int found = 0;
+				for (int i = count - 1; i >= 0 && found < picked.length; i--) {
+					int index = (first + i) % offsets.length;
+					if (rooms[index] != null && !rooms[index].equals(room)) continue;
+					if (senders[index] >= 0 && hidden != null && hidden.test(senders[index])) continue;
+					picked[found++] = index;
+				}
+				if (found == 0) return null;
+				byte[][] lines = new byte[found][];
+				int size = 0;
+				for (int i = 0; i < found; i++) {
+					int index = picked[i];
+					if (binary) {
+						size += lengths[index];
+					} else {
+						lines[i] = toLine(index);
+						size += lines[i].length;
+					}
+				}
+				ByteBuffer out = ByteBuffer.allocate(size);
+				for (int i = found - 1; i >= 0; i--) {
+					if (binary) copyOut(offsets[picked[i]], lengths[picked[i]], out);
+					else out.put(lines[i]);
+				}
+				out.flip();
+				return out;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Gets the number of messages kept.
+	  *
+	  * @return the number of messages
+	  */
+		int size() {
+			lock.lock();
+			try {
+				return count;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Encodes a message as a line for a text client, from its frame.
+	  */
+		private byte[] toLine(int index) {
+			int length = lengths[index] - Frame.HEADER_LENGTH;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			copyOut((offsets[index] + Frame.HEADER_LENGTH) % data.capacity(), length, payload);
+			byte[] bytes = payload.array();
+			for (byte b : bytes) {
+				if (b == '\n' || b == '\r') {
+					// Rare: the line breaks need indenting, as EncodedMessage does
+					return (EncodedMessage.toLines(new String(bytes, StandardCharsets.UTF_8))
+						+ System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+				}
+			}
+			byte[] line = new byte[length + LINE_END.length];
+			System.arraycopy(bytes, 0, line, 0, length);
+			System.arraycopy(LINE_END, 0, line, length, LINE_END.length);
+			return line;
+		}
+
+	 /**
+	  * Copies a frame into the ring at a position, wrapping round at the end.
+	  *
+	  * @return the position after it
+	  */
+		private int copyIn(ByteBuffer frame, int at) {
+			int capacity = data.capacity();
+			ByteBuffer target = data.duplicate();
+			int head = Math.min(frame.remaining(), capacity - at);
+			ByteBuffer part = frame.duplicate();
+			part.limit(part.position() + head);
+			target.position(at);
+			target.put(part);
+			if (head < frame.remaining()) {
+				part.limit(frame.limit()).position(frame.position() + head);
+				target.position(0);
+				target.put(part);
+			}
+			return (at + frame.remaining()) % capacity;
+		}
+
+	 /**
+	  * Copies bytes out of the ring, wrapping round at the end.
+	  */
+		private void copyOut(int at, int length, ByteBuffer out) {
+			int capacity = data.capacity();
+			ByteBuffer source = data.duplicate();
+			int head = Math.min(length, capacity - at);
+			source.limit(at + head).position(at);
+			out.put(source);
+			if (head < length) {
+				source.limit(length - head).position(0);
+				out.put(source);
+			}
+		}
+
+		private int next(int index) {
+			return index + 1 == offsets.length ? 0 : index + 1;
+		}
+
+	} // End of the class MessageHistory
@@ -0,0 +1,431 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * ****************************
+ * Filename: NioEngine.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * NioEngine runs every client session on a small, fixed number of
+  * event-loop threads instead of one thread per client.
+  * </p>
+  * <p>
+  * Each event loop owns a {@link Selector} and the connections which were
+  * given to it. When a connection has bytes to read, the loop splits them
+  * into lines and hands each line to the connection's
+  * {@link Server.HandleSession}, so the line protocol and all the commands
+  * behave exactly as they do in the thread-per-client mode. The loop is
+  * also the writer of each session's {@link OutboundQueue}: it writes the
+  * queued messages as soon as the socket can take them.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	class NioEngine {
+
+	 /**
+	  * The server whose sessions run on this engine.
+	  */
+		private final Server server;
+
+	 /**
+	  * The event loops.
+	  */
+		private final EventLoop[] loops;
+
+	 /**
+	  * Counts the connections given out, so that each loop gets the next
+	  * one in turn, whichever thread accepted it.
+	  */
+		private final AtomicInteger nextLoop = new AtomicInteger();
+
+	 /**
+	  * Creates the engine and opens a selector for every event loop.
+	  *
+	  * @param server
+	  *						the server whose sessions run on this engine
+	  * @param loopCount
+	  *						the number of event-loop threads
+	  * @throws IOException
+	  *						if a selector cannot be opened
+	  */
+		NioEngine(Server server, int loopCount) throws IOException {
+			this.server = server;
+			loops = new EventLoop[Math.max(1, loopCount)];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(Selector.open());
+			}
+		}
+
+	 /**
+	  * Starts the event-loop threads.
+	  */
+		void start() {
+			for (int i = 0; i < loops.length; i++) {
+				Thread thread = new Thread(loops[i], "event-loop-" + i);
+				thread.start();
+			}
+		}
+
+	 /**
+	  * Hands a newly accepted connection to one of the event loops.
+	  *
+	  * @param channel
+	  *						the accepted connection
+	  * @throws IOException
+	  *						if the channel cannot be made non-blocking
+	  */
+		void register(SocketChannel channel) throws IOException {
+			channel.configureBlocking(false);
+			EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+			Connection connection = new Connection(channel, loop);
+			connection.session = server.newSession(connection);
+			connection.outbound = connection.session.outbound();
+			loop.registrations.add(connection);
+			loop.selector.wakeup();
+		}
+
+	 /**
+	  * One event-loop thread and the connections it looks after.
+	  */
+		private final class EventLoop implements Runnable {
+
+		 /**
+		  * Tells the loop which of its connections are ready.
+		  */
+			private final Selector selector;
+
+		 /**
+		  * Connections waiting to be registered with the selector.
+		  */
+			private final Queue<Connection> registrations = new ConcurrentLinkedQueue<Connection>();
+
+		 /**
+		  * Connections which have new output waiting to be written.
+		  */
+			private final Queue<Connection> flushes = new ConcurrentLinkedQueue<Connection>();
+
+		 /**
+		  * Connections waiting for the batching window to pass before they
+		  * are written, in the order their windows end. Only used by the
+		  * loop's own thread.
+		  */
+			private final ArrayDeque<Connection> delayed = new ArrayDeque<Connection>();
+
+		 /**
+		  * The buffer every read on this loop goes through.
+		  */
+			private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+			private EventLoop(Selector selector) {
+				this.selector = selector;
+			}
+
+		 /**
+		  * Waits for connections to become ready and serves them.
+		  *
+		  * @see java.lang.Runnable#run()
+		  */
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						if (delayed.isEmpty()) {
+							selector.select();
+						} else {
+							// Wake up in time for the first batching window to end
+							long wait = delayed.peek().flushDeadline - System.nanoTime();
+							if (wait <= 0) selector.selectNow();
+							else selector.select(Math.max(1, wait / 1000000));
+						}
+
+						Connection connection;
+						while ((connection = registrations.poll()) != null) {
+							try {
+								connection.attach();
+							} catch (RuntimeException e) {
+								connection.fail(e);
+							}
+						}
+						while ((connection = flushes.poll()) != null) {
+							long delay = WriteBatcher.delay(connection.outbound);
+							if (delay > 0) {
+								connection.flushDeadline = System.nanoTime() + delay;
+								delayed.add(connection);
+							} else {
+								try {
+									connection.flush();
+								} catch (RuntimeException e) {
+									connection.fail(e);
+								}
+							}
+						}
+
+						Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							SelectionKey key = keys.next();
+							keys.remove();
+							connection = (Connection) key.attachment();
+							try {
+								if (key.isValid() && key.isWritable()) {
+									connection.flush();
+								}
+								if (key.isValid() && key.isReadable()) {
+									connection.read();
+								}
+							} catch (RuntimeException e) {
+								connection.fail(e);
+							}
+						}
+
+						long now = System.nanoTime();
+						while (!delayed.isEmpty() && delayed.peek().flushDeadline - now <= 0) {
+							connection = delayed.poll();
+							try {
+								connection.flush();
+							} catch (RuntimeException e) {
+								connection.fail(e);
+							}
+						}
+					} catch (IOException | RuntimeException e) {
+						// Whatever went wrong, the loop's other connections still need serving
+						System.err.println(" Exception in event loop: " + e);
+					}
+				}
+			}
+		} // End of the class EventLoop
+
+	 /**
+	  * <p>
+	  * A client connection served by an event loop.
+	  * </p>
+	  * Messages may be queued from any thread (for example by another client's
+	  * broadcast), but the channel itself is only ever read, written and
+	  * closed by the connection's own event loop.
+	  */
+		final class Connection {
+
+		 /**
+		  * The client's channel.
+		  */
+			private final SocketChannel channel;
+
+		 /**
+		  * The loop serving this connection.
+		  */
+			private final EventLoop loop;
+
+		 /**
+		  * The session handling this client's lines.
+		  */
+			private Server.HandleSession session;
+
+		 /**
+		  * The session's messages waiting to be written.
+		  */
+			private OutboundQueue outbound;
+
+		 /**
+		  * Which of the session's connections this is: a resumed session
+		  * counts up, so that news from an older one can be told apart.
+		  */
+			private int transport = 0;
+
+		 /**
+		  * The selector registration, set once the loop has picked the
+		  * connection up.
+		  */
+			private SelectionKey key;
+
+		 /**
+		  * Writes the queued messages in batches, and keeps a batch which
+		  * could only be partly written.
+		  */
+			private final WriteBatcher batcher = new WriteBatcher();
+
+		 /**
+		  * When (System.nanoTime()) the batching window for the waiting
+		  * messages ends.
+		  */
+			private long flushDeadline;
+
+		 /**
+		  * Whether the connection is already in its loop's flush queue.
+		  */
+			private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+			private Connection(SocketChannel channel, EventLoop loop) {
+				this.channel = channel;
+				this.loop = loop;
+			}
+
+		 /**
+		  * Registers the channel with the loop's selector and greets the
+		  * client. Runs on the event loop.
+		  */
+			private void attach() {
+				try {
+					key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+					System.out.println(" Connection detected!");
+					session.greet();
+				} catch (IOException e) {
+					System.err.println(" Exception in attach(): " + e);
+					closeNow();
+				}
+			}
+
+		 /**
+		  * Hands the connection to a session which is resuming on it. Runs on
+		  * the event loop, while the session that greeted the client handles
+		  * its input.
+		  *
+		  * @param resumed
+		  *						the session carrying on
+		  * @param number
+		  *						which of the session's connections this is
+		  */
+			void adopt(Server.HandleSession resumed, int number) {
+				session = resumed;
+				outbound = resumed.outbound();
+				transport = number;
+			}
+
+		 /**
+		  * Reads whatever the client has sent and passes it to the session,
+		  * which handles every complete line or frame. Runs on the event loop.
+		  */
+			private void read() {
+				ByteBuffer buffer = loop.readBuffer;
+				buffer.clear();
+				int count;
+				try {
+					count = channel.read(buffer);
+				} catch (IOException e) {
+					count = -1;
+				}
+				if (count < 0) {
+					// The client has gone away, though its session may wait for it
+					closeNow();
+					session.transportLost(transport);
+					return;
+				}
+				buffer.flip();
+				try {
+					session.handleInput(buffer);
+					if (session.isFinished()) {
+						session.closeConnection();
+					}
+				} catch (IOException e) {
+					System.err.println(" Exception in read(): " + e.getMessage());
+					closeNow();
+					session.transportLost(transport);
+				}
+			}
+
+		 /**
+		  * Asks the loop to write the queued messages. Called by the
+		  * session's {@link OutboundQueue} from any thread.
+		  */
+			void scheduleFlush() {
+				if (flushScheduled.compareAndSet(false, true)) {
+					loop.flushes.add(this);
+					loop.selector.wakeup();
+				}
+			}
+
+		 /**
+		  * Writes as many of the queued messages as the socket will take,
+		  * with gathering writes. If a write is only partly done, the loop
+		  * waits until the socket is writable again. Once the queue has been
+		  * closed and emptied, the connection is closed. Runs on the event
+		  * loop.
+		  */
+			private void flush() {
+				flushScheduled.set(false);
+				if (key == null || !key.isValid()) return;
+				if (outbound.isDiscarded()) {
+					// The client is being disconnected
+					batcher.clear();
+					closeNow();
+					session.transportLost(transport);
+					return;
+				}
+				try {
+					// Checked before writing: nothing can be added once closed
+					boolean closed = outbound.isClosed();
+					if (!batcher.writeTo(outbound, channel)) {
+						// The socket is full; carry on when it is writable
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					if (closed) {
+						closeNow();
+						session.closeConnection();
+					}
+				} catch (IOException e) {
+					// The client is no longer reachable
+					outbound.discard();
+					closeNow();
+					session.transportLost(transport);
+				}
+			}
+
+		 /**
+		  * Has the channel been closed?
+		  *
+		  * @return true once the connection is closed
+		  */
+			boolean isClosed() {
+				return !channel.isOpen();
+			}
+
+		 /**
+		  * Drops the connection after its session failed with an unexpected
+		  * exception, ending the session, so that one bad session cannot
+		  * take the loop and every other connection on it down. Runs on the
+		  * event loop.
+		  *
+		  * @param e
+		  *						what the session threw
+		  */
+			private void fail(RuntimeException e) {
+				System.err.println(" Exception serving a client: " + e);
+				outbound.discard();
+				closeNow();
+				try {
+					session.closeConnection();
+				} catch (RuntimeException again) {
+					System.err.println(" Exception closing the session: " + again);
+				}
+			}
+
+		 /**
+		  * Closes the channel straight away. Runs on the event loop.
+		  */
+			private void closeNow() {
+				if (key != null) key.cancel();
+				try {
+					channel.close();
+				} catch (IOException e) {
+					System.err.println(" Closing: " + e.getMessage());
+				}
+			}
+		} // End of the class Connection
+
+	} // End of the class NioEngine
@@ -0,0 +1,603 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: OutboundQueue.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * The messages waiting to be written to one client.
+  * </p>
+  * <p>
+  * Other sessions only ever add to the queue, so a client that reads slowly
+  * (or not at all) can no longer hold up everybody else's broadcasts. The
+  * session's own writer takes the messages off the queue and writes them to
+  * the socket.
+  * </p>
+  * <p>
+  * The queue is bounded. What happens when it is full is decided by its
+  * {@link Overflow} policy.
+  * </p>
+  * For a client which can resume its session, the queue also keeps the
+  * latest messages in a bounded replay ring, numbered frame by frame as the
+  * client counts them (one message, such as a replay of the history, may
+  * hold many frames): when the client comes back on a new connection, the
+  * queue is {@linkplain #reopen(long, ByteBuffer) reopened} with just the
+  * frames it missed.
+  *
+  * @author Jamil Triaa
+  */
+	class OutboundQueue {
+
+	 /**
+	  * What to do when a message is added to a full queue.
+	  */
+		enum Overflow {
+		 /**
+		  * Throw away the oldest waiting message to make room.
+		  */
+			DROP_OLDEST,
+
+		 /**
+		  * Give up on the client: it is disconnected.
+		  */
+			DISCONNECT,
+
+		 /**
+		  * Make the sender wait for room, up to a timeout. If there is still
+		  * no room, the new message is thrown away.
+		  */
+			BLOCK;
+
+		 /**
+		  * Reads a policy from its option value, e.g. "drop-oldest".
+		  *
+		  * @param value
+		  *						"drop-oldest", "disconnect" or "block"
+		  * @return the policy
+		  * @throws IllegalArgumentException
+		  *						if the value is not a policy
+		  */
+			static Overflow parse(String value) {
+				try {
+					return valueOf(value.trim().toUpperCase().replace('-', '_'));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("--overflow must be drop-oldest, disconnect or block, not '"
+						+ value + "'");
+				}
+			}
+		}
+
+	 /**
+	  * The waiting messages, oldest first.
+	  */
+		private final ArrayDeque<ByteBuffer> messages;
+
+	 /**
+	  * The most messages the queue may hold.
+	  */
+		private final int capacity;
+
+	 /**
+	  * What to do when the queue is full.
+	  */
+		private final Overflow overflow;
+
+	 /**
+	  * How long (in nanoseconds) a sender waits for room with
+	  * {@link Overflow#BLOCK}.
+	  */
+		private final long blockNanos;
+
+	 /**
+	  * <p>
+	  * Guards the queue.
+	  * </p>
+	  * A ReentrantLock rather than synchronized, so that a virtual thread
+	  * waiting for room does not pin its carrier thread.
+	  */
+		private final ReentrantLock lock = new ReentrantLock();
+
+	 /**
+	  * Signalled when a message is taken off the queue.
+	  */
+		private final Condition notFull = lock.newCondition();
+
+	 /**
+	  * Told whenever there is something new for the writer: a message or the
+	  * queue being closed. Changes when a resumed session moves to a new
+	  * connection.
+	  */
+		private volatile Runnable writer;
+
+	 /**
+	  * Set once the session has finished; no more messages are accepted.
+	  */
+		private volatile boolean closed = false;
+
+	 /**
+	  * Set when the waiting messages were thrown away, so the writer should
+	  * not even finish the message it is in the middle of.
+	  */
+		private volatile boolean discarded = false;
+
+	 /**
+	  * The largest number of messages that have been waiting at once.
+	  */
+		private int highWater = 0;
+
+	 /**
+	  * How many messages have been thrown away because the queue was full.
+	  */
+		private long dropped = 0;
+
+	 /**
+	  * How many messages the writer has taken off the queue to send.
+	  */
+		private long taken = 0;
+
+	 /**
+	  * The total number of bytes waiting.
+	  */
+		private volatile long pendingBytes = 0;
+
+	 /**
+	  * The latest messages, oldest first, for a client which may resume;
+	  * null if the client cannot.
+	  */
+		private ArrayDeque<ByteBuffer> replay;
+
+	 /**
+	  * How many frames each message in the replay ring holds, in the same
+	  * order, and in all.
+	  */
+		private ArrayDeque<Integer> replayCounts;
+
+		private long replayFrames = 0;
+
+	 /**
+	  * The most messages and bytes the replay ring keeps.
+	  */
+		private int replayCapacity;
+
+		private long replayMaxBytes;
+
+		private long replayBytes = 0;
+
+	 /**
+	  * The number of frames offered since the replay ring was started,
+	  * which is the sequence number of the newest.
+	  */
+		private long sequence = 0;
+
+	 /**
+	  * Creates an empty queue.
+	  *
+	  * @param capacity
+	  *						the most messages the queue may hold
+	  * @param overflow
+	  *						what to do when the queue is full
+	  * @param blockMillis
+	  *						how long a sender may wait for room with
+	  *						{@link Overflow#BLOCK}
+	  */
+		OutboundQueue(int capacity, Overflow overflow, long blockMillis) {
+			this.capacity = Math.max(1, capacity);
+			this.overflow = overflow;
+			this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+			messages = new ArrayDeque<ByteBuffer>(Math.min(this.capacity, 64));
+		}
+
+	 /**
+	  * Sets what to run when there is something new for the writer. It must
+	  * not block: it should only wake or schedule the writer.
+	  *
+	  * @param writer
+	  *						wakes or schedules the writer
+	  */
+		void setWriter(Runnable writer) {
+			this.writer = writer;
+		}
+
+	 /**
+	  * Adds a message for the client.
+	  *
+	  * @param message
+	  *						the bytes to send; the queue takes ownership of the
+	  *						buffer's position
+	  * @return false if the queue is full and its policy is
+	  *						{@link Overflow#DISCONNECT}, meaning the client
+	  *						should be disconnected
+	  */
+		boolean offer(ByteBuffer message) {
+			lock.lock();
+			try {
+				if (replay != null) {
+					// Numbered and kept even while the client is away
+					remember(message);
+					if (closed) return true;
+					// A silent drop would leave the client's count wrong: it resumes instead
+					if (messages.size() >= capacity) return false;
+				}
+				if (closed) return true;
+				if (messages.size() >= capacity) {
+					switch (overflow) {
+						case DROP_OLDEST: {
+							pendingBytes -= messages.poll().remaining();
+							dropped++;
+							break;
+						}
+						case DISCONNECT: {
+							return false;
+						}
+						case BLOCK: {
+							long nanos = blockNanos;
+							try {
+								while (messages.size() >= capacity && !closed && nanos > 0) {
+									nanos = notFull.awaitNanos(nanos);
+								}
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+							if (closed) return true;
+							if (messages.size() >= capacity) {
+								// Still no room: the new message is lost
+								dropped++;
+								return true;
+							}
+							break;
+						}
+					}
+				}
+				messages.add(message);
+				pendingBytes += message.remaining();
+				if (messages.size() > highWater) highWater = messages.size();
+			} finally {
+				lock.unlock();
+			}
+			wakeWriter();
+			return true;
+		}
+
+	 /**
+	  * Queues a message which is not numbered, then starts keeping the
+	  * messages after it for a replay, numbering their frames from 1. Done
+	  * at once, so that no other thread's message can slip in between and
+	  * throw the client's count out.
+	  *
+	  * @param first
+	  *						the message which tells the client numbering has started
+	  * @param maxMessages
+	  *						the most messages kept
+	  * @param maxBytes
+	  *						the most bytes kept
+	  */
+		void keepForReplay(ByteBuffer first, int maxMessages, long maxBytes) {
+			lock.lock();
+			try {
+				if (!closed) {
+					messages.add(first);
+					pendingBytes += first.remaining();
+				}
+				// No more than the queue holds, or a replay would overflow it at once
+				replayCapacity = Math.max(1, Math.min(maxMessages, capacity));
+				replayMaxBytes = maxBytes;
+				replay = new ArrayDeque<ByteBuffer>(Math.min(replayCapacity, 64));
+				replayCounts = new ArrayDeque<Integer>(Math.min(replayCapacity, 64));
+			} finally {
+				lock.unlock();
+			}
+			wakeWriter();
+		}
+
+	 /**
+	  * Adds a message to the replay ring, forgetting the oldest ones if it is
+	  * full. Called with the lock held.
+	  */
+		private void remember(ByteBuffer message) {
+			// A view of its own, as the writer moves the message's position
+			ByteBuffer kept = message.duplicate();
+			int frames = countFrames(kept);
+			replay.add(kept);
+			replayCounts.add(frames);
+			replayBytes += kept.remaining();
+			replayFrames += frames;
+			sequence += frames;
+			while (replay.size() > replayCapacity || (replayBytes > replayMaxBytes && replay.size() > 1)) {
+				replayBytes -= replay.poll().remaining();
+				replayFrames -= replayCounts.poll();
+			}
+		}
+
+	 /**
+	  * Counts the frames in a message, by walking their length prefixes.
+	  *
+	  * @param message
+	  *						one or more whole frames; its position is not moved
+	  * @return the number of frames
+	  */
+		static int countFrames(ByteBuffer message) {
+			int frames = 0;
+			for (int at = message.position(); at + Frame.HEADER_LENGTH <= message.limit(); frames++) {
+				at += Frame.HEADER_LENGTH + message.getInt(at);
+			}
+			return frames;
+		}
+
+	 /**
+	  * Gets the rest of a message after some of its frames.
+	  *
+	  * @param message
+	  *						one or more whole frames
+	  * @param skip
+	  *						how many frames to leave out from the start
+	  * @return a view of the frames after them
+	  */
+		private static ByteBuffer skipFrames(ByteBuffer message, long skip) {
+			ByteBuffer rest = message.duplicate();
+			for (long i = 0; i < skip; i++) {
+				rest.position(rest.position() + Frame.HEADER_LENGTH + rest.getInt(rest.position()));
+			}
+			return rest;
+		}
+
+	 /**
+	  * <p>
+	  * Opens the queue again for a client which has come back on a new
+	  * connection, with only the frames it missed waiting: the ones after
+	  * the last it got. Numbering carries on where it was.
+	  * </p>
+	  * Whatever was waiting for the old connection is dropped first, as the
+	  * replay ring has it too, and the new connection's writer takes over.
+	  *
+	  * @param after
+	  *						the sequence number of the last frame the client got
+	  * @param first
+	  *						a message to send before them, which is not numbered
+	  * @param newWriter
+	  *						wakes or schedules the new connection's writer
+	  * @return false if the ring no longer goes back that far, or the queue
+	  *						keeps no replay; the queue is left as it was
+	  */
+		boolean reopen(long after, ByteBuffer first, Runnable newWriter) {
+			lock.lock();
+			try {
+				if (replay == null || after > sequence || after < sequence - replayFrames) return false;
+				messages.clear();
+				pendingBytes = 0;
+				messages.add(first);
+				pendingBytes += first.remaining();
+				// The number of the last frame before each message
+				long number = sequence - replayFrames;
+				Iterator<Integer> counts = replayCounts.iterator();
+				for (ByteBuffer kept : replay) {
+					int frames = counts.next();
+					if (number + frames > after) {
+						// The client may have got the first few frames of this one
+						ByteBuffer message = skipFrames(kept, Math.max(0, after - number));
+						messages.add(message);
+						pendingBytes += message.remaining();
+					}
+					number += frames;
+				}
+				closed = false;
+				discarded = false;
+				writer = newWriter;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			wakeWriter();
+			return true;
+		}
+
+	 /**
+	  * Takes the oldest message off the queue. Only the writer calls this.
+	  *
+	  * @return the oldest message, or null if there is none
+	  */
+		ByteBuffer poll() {
+			lock.lock();
+			try {
+				ByteBuffer message = messages.poll();
+				if (message != null) {
+					pendingBytes -= message.remaining();
+					taken++;
+					notFull.signal();
+				}
+				return message;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Takes as many of the oldest messages off the queue as fit in the
+	  * array, stopping early once a byte limit is reached. Only the writer
+	  * calls this.
+	  *
+	  * @param batch
+	  *						receives the messages
+	  * @param offset
+	  *						where in the array to put the first message
+	  * @param maxBytes
+	  *						stop once this many bytes have been taken
+	  * @return the number of messages taken
+	  */
+		int drainTo(ByteBuffer[] batch, int offset, long maxBytes) {
+			lock.lock();
+			try {
+				int count = 0;
+				long bytes = 0;
+				ByteBuffer message;
+				while (offset + count < batch.length && bytes < maxBytes
+					&& (message = messages.poll()) != null) {
+					batch[offset + count++] = message;
+					bytes += message.remaining();
+				}
+				if (count > 0) {
+					pendingBytes -= bytes;
+					taken += count;
+					notFull.signalAll();
+				}
+				return count;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Stops accepting messages. The writer still sends the ones that are
+	  * already waiting, then closes the connection.
+	  */
+		void close() {
+			lock.lock();
+			try {
+				closed = true;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			wakeWriter();
+		}
+
+	 /**
+	  * Stops accepting messages and throws away the ones that are waiting,
+	  * e.g. when the client is being disconnected.
+	  *
+	  * @return the number of messages thrown away
+	  */
+		int discard() {
+			int count;
+			lock.lock();
+			try {
+				closed = true;
+				discarded = true;
+				count = messages.size();
+				messages.clear();
+				pendingBytes = 0;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			wakeWriter();
+			return count;
+		}
+
+		private void wakeWriter() {
+			Runnable w = writer;
+			if (w != null) w.run();
+		}
+
+	 /**
+	  * Has the queue been closed?
+	  *
+	  * @return true once the queue accepts no more messages
+	  */
+		boolean isClosed() {
+			return closed;
+		}
+
+	 /**
+	  * Were the waiting messages thrown away?
+	  *
+	  * @return true once {@link #discard()} has been called
+	  */
+		boolean isDiscarded() {
+			return discarded;
+		}
+
+	 /**
+	  * Is there anything waiting?
+	  *
+	  * @return true if no message is waiting
+	  */
+		boolean isEmpty() {
+			return depth() == 0;
+		}
+
+	 /**
+	  * Gets the number of messages waiting.
+	  *
+	  * @return the queue depth
+	  */
+		int depth() {
+			lock.lock();
+			try {
+				return messages.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Gets the number of bytes waiting.
+	  *
+	  * @return the total size of the waiting messages
+	  */
+		long pendingBytes() {
+			return pendingBytes;
+		}
+
+	 /**
+	  * Gets the most messages the queue may hold.
+	  *
+	  * @return the capacity
+	  */
+		int capacity() {
+			return capacity;
+		}
+
+	 /**
+	  * Gets the largest number of messages that have been waiting at once.
+	  *
+	  * @return the high-water mark
+	  */
+		int highWater() {
+			lock.lock();
+			try {
+				return highWater;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Gets how many messages were thrown away because the queue was full.
+	  *
+	  * @return the number of dropped messages
+	  */
+		long dropped() {
+			lock.lock();
+			try {
+				return dropped;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Gets how many messages the writer has taken off the queue to send.
+	  *
+	  * @return the number of messages taken
+	  */
+		long taken() {
+			lock.lock();
+			try {
+				return taken;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	} // End of the class OutboundQueue
@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: PresenceBatcher.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Gathers the people coming into and going out of each room over a short
+  * window, so that the room is told about them together.
+  * </p>
+  * <p>
+  * Telling a room of N people about one arrival takes N messages, so when
+  * N people arrive at once, say after the server has restarted, telling
+  * them one by one takes N * N. Gathered up, everybody who arrived within a
+  * window is one message to each person, and the storm costs a few times N.
+  * Somebody who leaves and comes back, or comes and goes, within the same
+  * window cancels out and is not mentioned at all.
+  * </p>
+  * The events are gathered from any thread and handed over, a room at a
+  * time, on the batcher's own thread.
+  *
+  * @param <R>
+  *						the type of the rooms
+  * @param <S>
+  *						the type of the people's sessions
+  * @author Jamil Triaa
+  */
+	final class PresenceBatcher<R, S> {
+
+	 /**
+	  * Somebody coming into or going out of a room.
+	  */
+		static final class Event<S> {
+
+		 /**
+		  * The name of the person.
+		  */
+			final String name;
+
+		 /**
+		  * True if the person came in, false if they went out.
+		  */
+			final boolean joined;
+
+		 /**
+		  * What the room would be told about this event on its own, e.g. "bob
+		  * has left the chat room."
+		  */
+			final String text;
+
+		 /**
+		  * The person's session, which is not told about its own arrival.
+		  */
+			final S session;
+
+			Event(String name, boolean joined, String text, S session) {
+				this.name = name;
+				this.joined = joined;
+				this.text = text;
+				this.session = session;
+			}
+		}
+
+	 /**
+	  * Tells a room what has happened in it.
+	  */
+		interface Delivery<R, S> {
+
+		 /**
+		  * Called on the batcher's thread, for one room at a time.
+		  *
+		  * @param room
+		  *						the room
+		  * @param events
+		  *						what happened in the room during the window, in
+		  *						order, never empty
+		  */
+			void deliver(R room, List<Event<S>> events);
+		}
+
+		private final long windowNanos;
+
+		private final Delivery<R, S> delivery;
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final Condition added = lock.newCondition();
+
+	 /**
+	  * The events of the current window, by room and then by name. Rooms
+	  * are told about in the order they first had an event.
+	  */
+		private Map<R, Map<String, Event<S>>> pending = new LinkedHashMap<R, Map<String, Event<S>>>();
+
+	 /**
+	  * Creates a batcher and starts its thread.
+	  *
+	  * @param windowMillis
+	  *						how long to gather events for, from the first one
+	  * @param delivery
+	  *						what tells the rooms
+	  * @param name
+	  *						the name of the thread
+	  */
+		PresenceBatcher(long windowMillis, Delivery<R, S> delivery, String name) {
+			this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, windowMillis));
+			this.delivery = delivery;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					gather();
+				}
+			}, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+	 /**
+	  * Adds an event to the room's window. Never waits for the room to be
+	  * told.
+	  *
+	  * @param room
+	  *						the room
+	  * @param event
+	  *						what happened
+	  */
+		void add(R room, Event<S> event) {
+			lock.lock();
+			try {
+				boolean wake = pending.isEmpty();
+				Map<String, Event<S>> events = pending.get(room);
+				if (events == null) {
+					events = new LinkedHashMap<String, Event<S>>();
+					pending.put(room, events);
+				}
+				Event<S> earlier = events.remove(event.name);
+				// Going out and coming back (or the other way round) is no news
+				if (earlier == null || earlier.joined == event.joined) events.put(event.name, event);
+				if (wake) added.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Waits for an event, lets the window fill up behind it, then hands
+	  * over everything gathered, for ever.
+	  */
+		private void gather() {
+			while (true) {
+				Map<R, Map<String, Event<S>>> window;
+				lock.lock();
+				try {
+					while (pending.isEmpty()) added.awaitUninterruptibly();
+				} finally {
+					lock.unlock();
+				}
+				long end = System.nanoTime() + windowNanos;
+				long wait;
+				while ((wait = end - System.nanoTime()) > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch (InterruptedException e) {
+						// Only ever woken early; the window is still waited out
+					}
+				}
+				lock.lock();
+				try {
+					window = pending;
+					pending = new LinkedHashMap<R, Map<String, Event<S>>>();
+				} finally {
+					lock.unlock();
+				}
+				for (Map.Entry<R, Map<String, Event<S>>> entry : window.entrySet()) {
+					if (entry.getValue().isEmpty()) continue;
+					try {
+						delivery.deliver(entry.getKey(), new ArrayList<Event<S>>(entry.getValue().values()));
+					} catch (RuntimeException e) {
+						System.err.println(" Exception while announcing arrivals: " + e);
+					}
+				}
+			}
+		}
+
+	} // End of the class PresenceBatcher
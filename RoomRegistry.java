@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/*
+ * ****************************
+ * Filename: RoomRegistry.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * The chat rooms, each with its own set of members.
+  * </p>
+  * <p>
+  * Every user is in exactly one room, starting in the {@linkplain #LOBBY
+  * lobby}. A message only goes to the members of the sender's room, so the
+  * cost of a broadcast grows with the size of the room rather than with the
+  * number of users on the server, and broadcasts in different rooms never
+  * touch the same set.
+  * </p>
+  * A room is created when the first user joins it and removed when the last
+  * one leaves, except for the lobby, which always exists.
+  *
+  * @param <S>
+  *						the session type
+  * @author Jamil Triaa
+  */
+	final class RoomRegistry<S> {
+
+	 /**
+	  * The room every user starts in.
+	  */
+		static final String LOBBY = "lobby";
+
+	 /**
+	  * A chat room.
+	  *
+	  * @param <S>
+	  *						the session type
+	  */
+		static final class Room<S> {
+
+		 /**
+		  * The room's name.
+		  */
+			final String name;
+
+		 /**
+		  * The sessions of the users in the room.
+		  */
+			private final Set<S> members = ConcurrentHashMap.newKeySet();
+
+			private Room(String name) {
+				this.name = name;
+			}
+
+		 /**
+		  * Gets the members, for sending them a message. Members may join and
+		  * leave while it is being read.
+		  *
+		  * @return a live, read-only view of the members' sessions
+		  */
+			Set<S> members() {
+				return Collections.unmodifiableSet(members);
+			}
+
+		 /**
+		  * Gets the number of people in the room.
+		  *
+		  * @return the number of members
+		  */
+			int size() {
+				return members.size();
+			}
+		}
+
+	 /**
+	  * The rooms by name.
+	  */
+		private final ConcurrentHashMap<String, Room<S>> rooms = new ConcurrentHashMap<String, Room<S>>();
+
+		RoomRegistry() {
+			rooms.put(LOBBY, new Room<S>(LOBBY));
+		}
+
+	 /**
+	  * Puts a user in a room, creating the room if it does not exist.
+	  *
+	  * @param name
+	  *						the room's name
+	  * @param session
+	  *						the user's session
+	  * @return the room
+	  */
+		Room<S> join(String name, final S session) {
+			// Joining inside compute() means the room cannot be removed meanwhile
+			return rooms.compute(name, new BiFunction<String, Room<S>, Room<S>>() {
+				@Override
+				public Room<S> apply(String key, Room<S> room) {
+					if (room == null) room = new Room<S>(key);
+					room.members.add(session);
+					return room;
+				}
+			});
+		}
+
+	 /**
+	  * Takes a user out of a room, removing the room if it is now empty
+	  * (unless it is the lobby).
+	  *
+	  * @param room
+	  *						the room
+	  * @param session
+	  *						the user's session
+	  */
+		void leave(Room<S> room, final S session) {
+			rooms.computeIfPresent(room.name, new BiFunction<String, Room<S>, Room<S>>() {
+				@Override
+				public Room<S> apply(String key, Room<S> current) {
+					current.members.remove(session);
+					return current.members.isEmpty() && !key.equals(LOBBY) ? null : current;
+				}
+			});
+		}
+
+	 /**
+	  * Gets a room.
+	  *
+	  * @param name
+	  *						the room's name
+	  * @return the room, or null if nobody is in it
+	  */
+		Room<S> get(String name) {
+			return rooms.get(name);
+		}
+
+	 /**
+	  * Gets the rooms, sorted by name.
+	  *
+	  * @return a snapshot of the rooms
+	  */
+		List<Room<S>> list() {
+			List<Room<S>> list = new ArrayList<Room<S>>(rooms.values());
+			Collections.sort(list, new Comparator<Room<S>>() {
+				@Override
+				public int compare(Room<S> a, Room<S> b) {
+					return a.name.compareTo(b.name);
+				}
+			});
+			return list;
+		}
+
+	} // End of the class RoomRegistry
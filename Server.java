@@ -1,8 +1,22 @@
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+import java.util.concurrent.locks.LockSupport;
 
 /*
  * ****************************
@@ -71,25 +85,81 @@ import java.util.concurrent.ConcurrentHashMap;
 		private static long serverStartTime = System.currentTimeMillis();
 
  	 /**
-  	* socket: The server socket
+  	* The server sockets the clients connect to: one, or one per accept
+  	* thread with '--reusePort'. Null until the server starts listening.
 		*/
-		private ServerSocket ss; // For the method "shutDown"
+		private volatile ServerSocketChannel[] listeners; // For the method "drain"
+
+	 /**
+	  * How long (in milliseconds) a new connection may wait for one of the
+	  * {@linkplain #handshakes handshake permits} before it is turned away.
+	  */
+		private long admissionWaitMillis = 100;
+
+	 /**
+	  * The options the server was started with.
+	  */
+		private ServerOptions options;
+
+	 /**
+	  * The event loops serving the clients when the server runs with
+	  * '--engine=nio'. Null in the thread-per-client mode.
+	  */
+		private NioEngine engine;
+
+	 /**
+	  * Starts a thread for each session in the 'thread' and 'virtual'
+	  * modes. Null in the NIO mode.
+	  */
+		private Executor sessionThreads;
+
+	 /**
+	  * Runs the sessions' writers in the 'thread' and 'virtual' modes. In
+	  * the NIO mode the event loops are the writers.
+	  */
+		private Executor writerThreads;
+
+	 /**
+	  * The most messages that may wait in a session's outbound queue.
+	  */
+		private int queueCapacity = 1024;
+
+	 /**
+	  * What to do when a session's outbound queue is full.
+	  */
+		private OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP_OLDEST;
+
+	 /**
+	  * How long (in milliseconds) a sender waits for room in a full queue
+	  * with the 'block' policy.
+	  */
+		private long blockMillis = 2000;
+
+	 /**
+	  * How long (in milliseconds) a shutdown waits for the clients' queued
+	  * messages to be written before it cuts them off.
+	  */
+		private long shutdownMillis = 5000;
 
 	 /**
     * <p>
-    * The Map storing each user's name(key) and its corresponding
-    * PrintWriter(value).
+    * The users in the chat room. Each one's name is resolved to an integer
+    * session ID once, when they log in.
     * </p>
-    * In the multi-threading environment, A CurrentHashMap can perform more
-    * safely and efficiently than a HashMap.
+    * Broadcasts go through the sessions by ID, without touching the names.
     */
-    private static ConcurrentHashMap<String, PrintWriter> clients;
+    private static SessionRegistry<HandleSession> clients;
 
 	 /**
-    * The block list in which each user (name) is a Key while each Value is the
-    * set of users (name) that have been blocked by this user.
+    * The block lists: for each user (session ID), the set of users that have
+    * been blocked by this user, and the set of users who have blocked them.
     */
-    private static ConcurrentHashMap<String, HashSet<String>> blockList;
+    private static BlockIndex blockList;
+
+	 /**
+	  * The chat rooms and their members.
+	  */
+		private static RoomRegistry<HandleSession> rooms;
 
 	 /**
     * <P>
@@ -101,20 +171,316 @@ import java.util.concurrent.ConcurrentHashMap;
     private static int adminPassword;
 
    /**
-    * The set of names of Administrators.
+    * The session IDs of Administrators.
     */
-    private static HashSet<String> admins;
+    private static IntBitSet admins;
+
+	 /**
+	  * Makes sure the server is only shut down once, whether by an
+	  * Administrator or by a signal. Once set, it stays set.
+	  */
+		private static final AtomicBoolean shuttingDown = new AtomicBoolean(false);
+
+	 /**
+	  * The links to the other servers sharing the chat, when the server is
+	  * started with '--cluster'. Null when it runs on its own.
+	  */
+		private static Federation federation;
+
+	 /**
+	  * The latest chat messages and server events, or null if the server
+	  * was started with '--historyMessages=0'.
+	  */
+		private static MessageHistory history;
+
+	 /**
+	  * How many of the latest messages people are shown when they come into
+	  * a room.
+	  */
+		private static int replayOnJoin = 20;
+
+	 /**
+	  * Are people told when somebody enters, leaves or moves into their
+	  * room? Every such notice goes to the whole room, which in a very big
+	  * room is most of the traffic. Turned off with
+	  * '--announcePresence=false'; the benchmarks also turn it off while
+	  * they log users in.
+	  */
+		static volatile boolean announcePresence = true;
+
+	 /**
+	  * Gathers the people coming into and going out of each room, so that
+	  * the room is told about them together; null if the server was started
+	  * with '--presenceWindowMs=0', which tells the room about each of them
+	  * straight away.
+	  */
+		private static PresenceBatcher<RoomRegistry.Room<HandleSession>, HandleSession> presence;
+
+	 /**
+	  * The most names a notice about several people coming or going lists.
+	  */
+		private static final int PRESENCE_NAMES = 10;
+
+	 /**
+	  * The longest timeout an option may give, in seconds: a year. Longer
+	  * ones would overflow the timer wheel's nanoseconds.
+	  */
+		private static final int MAX_TIMEOUT_SECONDS = 365 * 24 * 60 * 60;
+
+	 /**
+	  * The most messages an option may let a queue or buffer hold.
+	  */
+		private static final int MAX_CAPACITY = 1 << 24;
+
+	 /**
+	  * The record on disk of what the server relays, or null unless the
+	  * server was started with '--logDir'.
+	  */
+		private static ChatLog chatLog;
+
+	 /**
+	  * How many messages a second each client may send, and how many at
+	  * once; 0 for no limit.
+	  */
+		private static double messageRate = 20;
+
+		private static long messageBurst = 40;
 
 	 /**
- 		* Gets the current time in a specific format.
+	  * How many bytes a second each client may send, and how many at once;
+	  * 0 for no limit.
+	  */
+		private static double byteRate = 64 * 1024;
+
+		private static long byteBurst = 256 * 1024;
+
+	 /**
+	  * The limits on all the clients together, or null if there are none.
+	  */
+		private static TokenBucket serverMessages, serverBytes;
+
+	 /**
+	  * How many of a client's messages may be dropped, for going over the
+	  * limits, before the client is kicked out; 0 never kicks anybody out.
+	  */
+		private static int kickAfterThrottled = 0;
+
+	 /**
+	  * May binary clients ask for their frames to be {@linkplain Compression
+	  * compressed}? Turned off with '--compression=false'.
+	  */
+		private static boolean compressionAllowed = true;
+
+	 /**
+	  * Watches every session for silence; null until the server starts
+	  * listening.
+	  */
+		private static TimerWheel timers;
+
+	 /**
+	  * How long (in milliseconds) a client may take to log in, and how long
+	  * a logged in client may be silent, binary or text, before it is
+	  * disconnected. 0 never disconnects anybody. A binary client is pinged
+	  * once it has been silent for the heartbeat, so only a dead one stays
+	  * silent; a text client cannot answer pings, so by default it may be
+	  * silent for ever.
+	  */
+		private static long loginTimeoutMillis = 60000, idleTimeoutMillis = 90000, textIdleTimeoutMillis = 0;
+
+		private static long heartbeatMillis = 30000;
+
+	 /**
+	  * How long (in milliseconds) the session of a binary client which has
+	  * lost its connection is kept for it to resume; 0 keeps none. And the
+	  * most messages and bytes kept to replay to it when it does.
+	  */
+		private static long resumeGraceMillis = 30000;
+
+		private static int resumeBufferMessages = 1024;
+
+		private static long resumeBufferBytes = 1024 * 1024;
+
+	 /**
+	  * The sessions which may be resumed, by their tokens.
+	  */
+		private static final ConcurrentHashMap<String, HandleSession> resumeTokens =
+			new ConcurrentHashMap<String, HandleSession>();
+
+		private static final SecureRandom tokenRandom = new SecureRandom();
+
+	 /**
+	  * Caps the clients logging in at once: each connection takes a permit
+	  * when it is accepted and gives it back once its client has logged in,
+	  * resumed or gone. When they are all taken, a new connection waits a
+	  * little for one and is then turned away, so that a login storm cannot
+	  * pile up without limit. Null if there is no cap ('--maxHandshakes=0').
+	  */
+		private static Semaphore handshakes;
+
+	 /**
+	  * What the server counts about its own performance, published over JMX
+	  * and shown by '-stats'.
+	  */
+		private static ServerMetrics metrics;
+
+	 /**
+	  * The commands clients can send, in the order the help screen lists
+	  * them.
+	  */
+		private static final CommandRegistry<HandleSession> commands = createCommands();
+
+	 /**
+	  * Registers the commands clients can send. A new command only needs to
+	  * be registered here.
+	  *
+	  * @return the commands
+	  */
+		private static CommandRegistry<HandleSession> createCommands() {
+			CommandRegistry<HandleSession> registry = new CommandRegistry<HandleSession>();
+			registry.register("-help", "Displays a list of commands",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showHelp();
+					}
+				});
+			registry.register("-serverTime", "Displays how long the server has been running for",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showSRun();
+					}
+				});
+			registry.register("-clientTime", "Displays how long you have been in the chat room",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showCRun();
+					}
+				});
+			registry.register("-address", "Displays the server's IP address",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showIP();
+					}
+				});
+			registry.register("-clientNo", "Displays the number of people in the chat room",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showClientNo();
+					}
+				});
+			registry.register("-private username: message", "Send a private message to another user",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.privateMsg(argument);
+					}
+				});
+			registry.register("-block username", "Block all messages from other user",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.block(argument);
+					}
+				});
+			registry.register("-unblock username", "Unblock messages from other user",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.unBlock(argument);
+					}
+				});
+			registry.register("-join room", "Move to another chat room, which is created if need be",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.joinRoom(argument.trim());
+					}
+				});
+			registry.register("-leave", "Go back to the lobby",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.leaveRoom();
+					}
+				});
+			registry.register("-rooms", "Lists the chat rooms and how many people are in each",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showRooms();
+					}
+				});
+			registry.register("-history count", "Shows the latest messages in your room",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showHistory(argument);
+					}
+				});
+			registry.register("-cls", "Clears the screen",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.clearScreen();
+					}
+				});
+			registry.register("-quit", "Leave the chat room",
+				CommandRegistry.Audience.EVERYONE, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.quit();
+					}
+				});
+			registry.register("-kick username", "Kick a user out of the chat room",
+				CommandRegistry.Audience.ADMINS, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.kick(argument);
+					}
+				});
+			registry.register("-queues", "Displays each user's waiting outbound messages",
+				CommandRegistry.Audience.ADMINS, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showQueues();
+					}
+				});
+			registry.register("-stats", "Displays the server's traffic, backlog and timings",
+				CommandRegistry.Audience.ADMINS, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.showStats();
+					}
+				});
+			registry.register("-shutdown", "Shut down the server",
+				CommandRegistry.Audience.ADMINS, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.shutDown();
+					}
+				});
+			registry.register("-admin password", "Enter the password to become an Administrator",
+				CommandRegistry.Audience.NON_ADMINS, new CommandRegistry.Handler<HandleSession>() {
+					@Override
+					public void handle(HandleSession session, String argument) {
+						session.verifyAdmin(argument);
+					}
+				});
+			return registry;
+		}
+
+	 /**
+ 		* Gets the current time in a specific format. The text is cached by
+ 		* {@link ChatClock} and only changes once per second.
  		*
  		* @return the current time in the format of [HH:mm:ss]
  		*/
 		public static String getCurrentTime() {
-			// Convert the current time into the format of [HH:mm:ss]
-			SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-			String currentTime = sdf.format(System.currentTimeMillis());
-			return "[" + currentTime + "] ";
+			return ChatClock.prefix();
 		}
 
 
@@ -128,11 +494,109 @@ import java.util.concurrent.ConcurrentHashMap;
 		*/
 		public static void main (String[] args) throws IOException {
 
+	 	 /*
+	  	* Sets the server up, then calls start() method
+	  	*/
+			configure(args).start();
+		}
+
+	 /**
+	  * Sets up a server and the chat from the command line options, without
+	  * listening for clients yet. The benchmarks use it to drive sessions in
+	  * memory.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @return the server
+	  * @throws IOException
+	  *						may occur if local host name cannot be resolved
+	  *						into an address.
+	  */
+		static Server configure(String[] args) throws IOException {
+
 	 	 /*
 	   	* Instantiates a new instance of the server class
 		 	*/
 			Server server = new Server();
 
+		 /*
+		  * Reads the start-up options, e.g. '--engine=nio --eventLoops=4'
+		  */
+			try {
+				server.options = new ServerOptions(args);
+				server.portNumber = server.options.getInt("port", server.portNumber, 0, 65535);
+				server.queueCapacity = server.options.getInt("queueCapacity", server.queueCapacity, 1, MAX_CAPACITY);
+				server.blockMillis = server.options.getLong("blockTimeoutMs", server.blockMillis, 0, Integer.MAX_VALUE);
+				server.shutdownMillis = server.options.getLong("shutdownTimeoutMs", server.shutdownMillis, 0, Integer.MAX_VALUE);
+				server.overflow = OutboundQueue.Overflow.parse(server.options.getString("overflow", "drop-oldest"));
+				WriteBatcher.configure(server.options.getLong("flushWindowMicros", 0, 0, 1000000),
+					server.options.getInt("flushBytes", 16 * 1024, 1, 64 * 1024 * 1024));
+				int historyMessages = server.options.getInt("historyMessages", 1000, 0, MAX_CAPACITY);
+				int historyBytes = server.options.getInt("historyBytes", 1024 * 1024, 1, Integer.MAX_VALUE);
+				boolean historyOffHeap = server.options.getBoolean("historyOffHeap", false);
+				if (historyMessages > 0) {
+					history = new MessageHistory(historyMessages, historyBytes, historyOffHeap);
+				}
+				replayOnJoin = server.options.getInt("historyReplay", replayOnJoin, 0, MAX_CAPACITY);
+				announcePresence = server.options.getBoolean("announcePresence", true);
+				long presenceWindow = server.options.getLong("presenceWindowMs", 250, 0, 60000);
+				presence = presenceWindow > 0 ? new PresenceBatcher<RoomRegistry.Room<HandleSession>, HandleSession>(
+					presenceWindow, new PresenceBatcher.Delivery<RoomRegistry.Room<HandleSession>, HandleSession>() {
+						@Override
+						public void deliver(RoomRegistry.Room<HandleSession> room,
+								List<PresenceBatcher.Event<HandleSession>> events) {
+							tellRoom(room, events);
+						}
+					}, "presence") : null;
+				messageRate = server.options.getInt("rateLimit", (int) messageRate, 0, Integer.MAX_VALUE);
+				messageBurst = server.options.getInt("rateBurst", (int) messageBurst, 1, Integer.MAX_VALUE);
+				byteRate = server.options.getInt("byteRateLimit", (int) byteRate, 0, Integer.MAX_VALUE);
+				byteBurst = server.options.getInt("byteBurst", (int) byteBurst, 1, Integer.MAX_VALUE);
+				int serverRate = server.options.getInt("serverRateLimit", 0, 0, Integer.MAX_VALUE);
+				int serverRateBurst = server.options.getInt("serverRateBurst", Math.max(1, serverRate), 1, Integer.MAX_VALUE);
+				serverMessages = serverRate > 0 ? new TokenBucket(serverRate, serverRateBurst) : null;
+				int serverByteRate = server.options.getInt("serverByteRateLimit", 0, 0, Integer.MAX_VALUE);
+				int serverByteBurst = server.options.getInt("serverByteBurst", Math.max(1, serverByteRate), 1, Integer.MAX_VALUE);
+				serverBytes = serverByteRate > 0 ? new TokenBucket(serverByteRate, serverByteBurst) : null;
+				kickAfterThrottled = server.options.getInt("kickAfterThrottled", 0, 0, Integer.MAX_VALUE);
+				loginTimeoutMillis = Math.multiplyExact(server.options.getLong("loginTimeoutSeconds", 60, 0, MAX_TIMEOUT_SECONDS), 1000);
+				heartbeatMillis = Math.multiplyExact(server.options.getLong("heartbeatSeconds", 30, 0, MAX_TIMEOUT_SECONDS), 1000);
+				idleTimeoutMillis = Math.multiplyExact(server.options.getLong("idleTimeoutSeconds", 90, 0, MAX_TIMEOUT_SECONDS), 1000);
+				textIdleTimeoutMillis = Math.multiplyExact(server.options.getLong("textIdleTimeoutSeconds", 0, 0, MAX_TIMEOUT_SECONDS), 1000);
+				resumeGraceMillis = Math.multiplyExact(server.options.getLong("resumeGraceSeconds", 30, 0, MAX_TIMEOUT_SECONDS), 1000);
+				resumeBufferMessages = server.options.getInt("resumeBufferMessages", resumeBufferMessages, 0, MAX_CAPACITY);
+				resumeBufferBytes = server.options.getLong("resumeBufferBytes", resumeBufferBytes, 0, Long.MAX_VALUE);
+				compressionAllowed = server.options.getBoolean("compression", true);
+				Compression.configure(server.options.getInt("compressionMinBytes", 32, 0, Integer.MAX_VALUE),
+					server.options.getInt("compressionLevel", 6, 1, 9));
+				String logDir = server.options.getString("logDir", null);
+				int logSegmentBytes = server.options.getInt("logSegmentBytes", 64 * 1024 * 1024, 4096, Integer.MAX_VALUE);
+				int logQueueCapacity = server.options.getInt("logQueueCapacity", 65536, 1, MAX_CAPACITY);
+				if (logDir != null) {
+					// Like a client's queue, a full log queue must never stall an event loop
+					chatLog = new ChatLog(Paths.get(logDir), logSegmentBytes, logQueueCapacity,
+						server.options.getString("engine", "thread").equals("nio")
+							? OutboundQueue.Overflow.DROP_OLDEST : OutboundQueue.Overflow.BLOCK);
+				}
+			 /*
+			  * Also runs on System.exit(), e.g. after -shutdown, when the
+			  * clients have already been drained
+			  */
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						server.drain(" The server is shutting down.", null);
+						if (chatLog != null) chatLog.close(5000);
+					}
+				}, "shutdown"));
+			} catch (IllegalArgumentException e) {
+				System.err.println(" " + e.getMessage());
+				System.exit(1);
+			} catch (IOException e) {
+				System.err.println(" Cannot open the chat log: " + e.getMessage());
+				System.exit(1);
+			}
+
 	 	 /*
 	  	* Finds out the IP Address of the server. Assumes that it will not
 	  	* change during the server is running.
@@ -140,21 +604,47 @@ import java.util.concurrent.ConcurrentHashMap;
 			serverIP = InetAddress.getLocalHost().getHostAddress();
 
 		 /*
-	 		* Creates a new ConcurrentHashMap to store user names and their
-	 		* PrintWriters.
+	 		* Creates a new SessionRegistry to store user names, their session
+	 		* IDs and their sessions.
+	 		*/
+			clients = new SessionRegistry<HandleSession>();
+
+		 /*
+	 		* Creates a new BlockIndex to store users' block lists.
 	 		*/
-			clients = new ConcurrentHashMap<String, PrintWriter>();
+			blockList = new BlockIndex();
 
 		 /*
-	 		* Creates a new ConcurrentHashMap to store user names and their block
-	 		* lists.
+	 		* Creates a new RoomRegistry, with just the lobby in it.
 	 		*/
-			blockList = new ConcurrentHashMap<String, HashSet<String>>();
+			rooms = new RoomRegistry<HandleSession>();
+
+		 /*
+			*Creates a new IntBitSet to store the session IDs of Administrators.
+			*/
+			admins = new IntBitSet();
 
 		 /*
-			*Creates a new HashSet to store the names of Administrators.
+			* Creates the metrics, which look at the sessions only when asked
 			*/
-			admins = new HashSet<String>();
+			metrics = new ServerMetrics(commands, new ServerMetrics.Sessions() {
+				@Override
+				public int limit() {
+					return clients.limit();
+				}
+
+				@Override
+				public String name(int id) {
+					HandleSession session = clients.get(id);
+					return session == null ? null : session.name;
+				}
+
+				@Override
+				public OutboundQueue queue(int id) {
+					HandleSession session = clients.get(id);
+					return session == null ? null : session.outbound;
+				}
+			});
 
 		 /*
 	 		* For the sake of security, every time the server restarts, it will
@@ -163,10 +653,43 @@ import java.util.concurrent.ConcurrentHashMap;
 	 		*/
 			adminPassword = (int) ((Math.random() * 9000) + 1000);
 
-	 	 /*
-	  	* Calls start() method
-	  	*/
-			server.start();
+		 /*
+		  * Joins the other servers, e.g. '--cluster=localhost:7001
+		  * --peers=localhost:7001,localhost:7002'
+		  */
+			String node = server.options.getString("cluster", null);
+			String peers = server.options.getString("peers", "");
+			int linkQueueCapacity = server.options.getInt("linkQueueCapacity", 65536, 1, MAX_CAPACITY);
+			String secret = server.options.getString("clusterSecret", null);
+			String secretFile = server.options.getString("clusterSecretFile", null);
+			if (node != null) {
+				try {
+					if (secretFile != null) {
+						// Unlike an option, a file is not on show to everybody listing the processes
+						secret = new String(Files.readAllBytes(Paths.get(secretFile)),
+							StandardCharsets.UTF_8).trim();
+					}
+					if (secret == null) {
+						System.err.println(" Warning: no --clusterSecret, so links are only checked by"
+							+ " the host they come from.");
+					}
+					federation = createFederation(node, Arrays.asList(peers.split(",")), linkQueueCapacity, secret);
+				} catch (IllegalArgumentException e) {
+					System.err.println(" " + e.getMessage());
+					System.exit(1);
+				} catch (IOException e) {
+					System.err.println(" Cannot read the cluster secret: " + e.getMessage());
+					System.exit(1);
+				}
+				try {
+					federation.start();
+				} catch (IOException e) {
+					System.err.println(" Cannot accept links from the other servers: " + e.getMessage());
+					System.exit(1);
+				}
+				System.out.println(" Cluster node " + node + ".");
+			}
+			return server;
 		}
 
  	 	 /**
@@ -177,164 +700,1483 @@ import java.util.concurrent.ConcurrentHashMap;
 			*						into an address.
 			*/
 			private void start() throws IOException {
-				ss = new ServerSocket(portNumber);
+				String mode;
+				int eventLoops, maxHandshakes, acceptThreads, backlog;
+				boolean reusePort;
+				try {
+					mode = options.getString("engine", "thread");
+					eventLoops = options.getInt("eventLoops", Runtime.getRuntime().availableProcessors(), 1, 1024);
+					maxHandshakes = options.getInt("maxHandshakes", 1024, 0, Integer.MAX_VALUE);
+					admissionWaitMillis = options.getLong("admissionWaitMs", admissionWaitMillis, 0, Integer.MAX_VALUE);
+					acceptThreads = options.getInt("acceptThreads", 1, 1, 256);
+					reusePort = options.getBoolean("reusePort", false);
+					backlog = options.getInt("backlog", 1024, 1, Integer.MAX_VALUE);
+					// Every option has been read by now, so any other is a mistake
+					options.checkAllRead();
+				} catch (IllegalArgumentException e) {
+					System.err.println(" " + e.getMessage());
+					System.exit(1);
+					return;
+				}
+				if (mode.equals("nio")) {
+					if (overflow == OutboundQueue.Overflow.BLOCK) {
+						// A blocked sender would stall every client on its event loop
+						System.err.println(" --overflow=block cannot be used with --engine=nio.");
+						System.exit(1);
+					}
+					// All sessions share a few event-loop threads
+					engine = new NioEngine(this, eventLoops);
+					engine.start();
+				} else {
+					// Every session gets a (platform or virtual) thread of its own
+					try {
+						sessionThreads = SessionThreads.forEngine(mode);
+						writerThreads = SessionThreads.forWriters(mode);
+					} catch (IllegalArgumentException e) {
+						System.err.println(" " + e.getMessage());
+						System.exit(1);
+					}
+				}
+				// One thread watches all the sessions; a tick is as precise as timeouts of seconds need
+				timers = new TimerWheel(100, 512, "timers");
+				handshakes = maxHandshakes > 0 ? new Semaphore(maxHandshakes) : null;
+				ServerSocketChannel[] channels = listen(acceptThreads, reusePort, backlog);
+				listeners = channels;
+				metrics.start(portNumber);
 
 				// Shows server information
 				System.out.println(" Server running! Hosted at "
 					+ serverIP + " and waiting for connections...");
 				System.out.println(" Administrator password: " + adminPassword);
 
-					Socket socket;
-					Thread thread;
+				// The other accept threads share the sockets out; this one takes the first
+				for (int i = 1; i < acceptThreads; i++) {
+					final ServerSocketChannel channel = channels[i % channels.length];
+					new Thread(new Runnable() {
+						@Override
+						public void run() {
+							accept(channel);
+						}
+					}, "acceptor-" + i).start();
+				}
+				accept(channels[0]);
+			}
+
+		 /**
+		  * Opens the server sockets: one, which all the accept threads share,
+		  * or with '--reusePort', one per thread, all bound to the same port,
+		  * so that the kernel spreads new connections across them.
+		  *
+		  * @param acceptThreads
+		  *						how many threads will accept connections
+		  * @param reusePort
+		  *						should each have a socket of its own?
+		  * @param backlog
+		  *						how many connections the kernel may hold for each
+		  *						socket until they are accepted
+		  * @return the sockets
+		  * @throws IOException
+		  *						if the port cannot be bound
+		  */
+			private ServerSocketChannel[] listen(int acceptThreads, boolean reusePort, int backlog)
+					throws IOException {
+				ServerSocketChannel first = ServerSocketChannel.open();
+				int count = 1;
+				if (reusePort && acceptThreads > 1) {
+					if (first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+						count = acceptThreads;
+					} else {
+						System.err.println(" SO_REUSEPORT is not supported here; the accept threads share one socket.");
+					}
+				}
+				ServerSocketChannel[] channels = new ServerSocketChannel[count];
+				for (int i = 0; i < count; i++) {
+					ServerSocketChannel channel = i == 0 ? first : ServerSocketChannel.open();
+					if (count > 1) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					channel.bind(new InetSocketAddress(portNumber), backlog);
+					channels[i] = channel;
+				}
+				return channels;
+			}
+
+		 /**
+		  * Accepts connections and starts their sessions, until the socket is
+		  * closed. An error accepting one, such as running out of file
+		  * descriptors, is reported and the thread tries again shortly; the
+		  * server keeps serving the clients it has.
+		  *
+		  * @param channel
+		  *						the server socket
+		  */
+			private void accept(ServerSocketChannel channel) {
+				while (true) {
+					SocketChannel client;
+					try {
+						client = channel.accept();
+					} catch (ClosedChannelException e) {
+						// Closed by drain(): the server is shutting down
+						return;
+					} catch (IOException e) {
+						if (!channel.isOpen()) return;
+						System.err.println(" Cannot accept a connection: " + e.getMessage());
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+						continue;
+					}
+					metrics.accepted();
+					admit(client);
+				}
+			}
+
+		 /**
+		  * Starts a session for a new connection, once it has a {@linkplain
+		  * #handshakes handshake permit}. If none comes free within
+		  * '--admissionWaitMs', the client is told the server is busy and the
+		  * connection is closed; those still waiting meanwhile queue up in the
+		  * socket's backlog.
+		  *
+		  * @param client
+		  *						the new connection
+		  */
+			private void admit(SocketChannel client) {
+				Semaphore permits = handshakes;
+				boolean admitted;
+				try {
+					admitted = permits == null || permits.tryAcquire(admissionWaitMillis, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					admitted = false;
+				}
+				if (!admitted) {
+					metrics.turnedAway();
+					try {
+						client.write(ByteBuffer.wrap(" Sorry, the server is busy. Please try again later.\r\n"
+							.getBytes(StandardCharsets.UTF_8)));
+					} catch (IOException e) {
+						// It is being closed anyway
+					}
+					closeQuietly(client);
+					return;
+				}
+				HandleSession session = null;
+				try {
+					if (engine != null) {
+						engine.register(client);
+					} else {
+						session = new HandleSession(client.socket());
+						sessionThreads.execute(session);
+					}
+				} catch (IOException | RuntimeException e) {
+					// E.g. no more threads: this client goes, the others carry on
+					System.err.println(" Cannot start a session: " + e);
+					if (session != null) session.handshakeOver(false);
+					else if (permits != null) permits.release();
+					closeQuietly(client);
+				}
+			}
+
+			private static void closeQuietly(SocketChannel client) {
+				try {
+					client.close();
+				} catch (IOException e) {
+					// Nothing more to do with it
+				}
+			}
+
+		 /**
+		  * <p>
+		  * Shuts the server down in stages, so that the clients get what was
+		  * already sent to them and a restart still finishes in a known time:
+		  * </p>
+		  * <ol>
+		  * <li>Stops accepting connections.</li>
+		  * <li>Tells everybody.</li>
+		  * <li>Closes every session's outbound queue. Each session's writer
+		  * sends what is waiting and then closes the connection, all at once,
+		  * on the writer threads or the event loops.</li>
+		  * <li>Waits for them, until the '--shutdownTimeoutMs' deadline, and
+		  * then cuts off whoever is still writing.</li>
+		  * <li>Reports how many messages were flushed and dropped.</li>
+		  * </ol>
+		  * Does nothing if the server is not listening, or is already shutting
+		  * down. It does not exit.
+		  *
+		  * @param notice
+		  *						what to tell everybody
+		  * @param except
+		  *						a session not to tell, or null
+		  * @return false if there was nothing to do
+		  */
+			private boolean drain(String notice, HandleSession except) {
+				ServerSocketChannel[] channels = listeners;
+				if (channels == null || !shuttingDown.compareAndSet(false, true)) return false;
+				long start = System.nanoTime();
+				long deadline = start + TimeUnit.MILLISECONDS.toNanos(shutdownMillis);
+				for (ServerSocketChannel channel : channels) {
 					try {
-						while (true) {
-							socket = ss.accept();
-							thread = new Thread(new HandleSession(socket));
-							thread.start();
+						channel.close();
+					} catch (IOException e) {
+						System.err.println(" Closing: " + e.getMessage());
+					}
+				}
+				// Counted from the sessions' own queues, not every write, which
+				// would include the cluster links'
+				List<HandleSession> sessions = new ArrayList<HandleSession>();
+				long takenBefore = 0;
+				for (int i = 0, limit = clients.limit(); i < limit; i++) {
+					HandleSession session = clients.get(i);
+					if (session != null) {
+						sessions.add(session);
+						takenBefore += session.outbound.taken();
+					}
+				}
+				tellEveryone(notice, except);
+				for (HandleSession session : sessions) {
+					session.outbound.close();
+				}
+				for (HandleSession session : sessions) {
+					while (!session.isDisconnected() && deadline - System.nanoTime() > 0) {
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+					}
+				}
+				long dropped = 0;
+				int cutOff = 0;
+				long flushed = -takenBefore;
+				for (HandleSession session : sessions) {
+					if (!session.isDisconnected()) {
+						cutOff++;
+						dropped += session.cutOff();
+					}
+					flushed += session.outbound.taken();
+				}
+				System.out.println(" Shut down in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+					+ " ms: " + flushed + " messages flushed to " + (sessions.size() - cutOff) + " of "
+					+ sessions.size() + " clients, " + dropped + " dropped for " + cutOff
+					+ " still writing at the deadline.");
+				return true;
+			}
+
+		 /**
+		  * Creates the federation, with what this server does with messages
+		  * from the other servers.
+		  *
+		  * @param node
+		  *						this server's name in the cluster, host:port
+		  * @param peers
+		  *						every server's name in the cluster
+		  * @param queueCapacity
+		  *						the most messages waiting to be sent to one server
+		  * @param secret
+		  *						the secret every server in the cluster shares, or null
+		  * @return the federation, not started yet
+		  */
+			private static Federation createFederation(String node, List<String> peers, int queueCapacity,
+					String secret) {
+				List<String> others = new ArrayList<String>();
+				for (String peer : peers) {
+					if (peer.trim().length() > 0) others.add(peer.trim());
+				}
+				return new Federation(node, others, queueCapacity, secret, new Federation.Local() {
+					@Override
+					public List<String> userNames() {
+						List<String> names = new ArrayList<String>();
+						for (int i = 0, limit = clients.limit(); i < limit; i++) {
+							HandleSession session = clients.get(i);
+							if (session != null) names.add(session.name);
+						}
+						return names;
+					}
+
+					@Override
+					public boolean hasUser(String name) {
+						return clients.find(name) != null;
+					}
+
+					@Override
+					public void nameTaken(String name) {
+						HandleSession session = clients.find(name);
+						if (session != null) {
+							session.send(Frame.SYSTEM, " Sorry, the username " + name
+								+ " is already being used on another server.");
+							session.closeConnection();
+						}
+					}
+
+					@Override
+					public void toRoom(String room, byte opcode, String sender, String line) {
+						RoomRegistry.Room<HandleSession> to = rooms.get(room);
+						if (to == null) return; // Nobody here is in it
+						EncodedMessage message = new EncodedMessage(opcode, line);
+						for (HandleSession session : to.members()) {
+							if (sender == null || !session.hasBlocked(sender)) session.send(message);
+						}
+						if (opcode == Frame.CHAT) {
+							if (history != null) history.add(room, -1, message);
+							record(ChatLog.CHAT, room + "\n" + line);
+						}
+					}
+
+					@Override
+					public void toEveryone(String content) {
+						tellEveryone(content, null);
+					}
+
+					@Override
+					public void toUser(String name, byte opcode, String sender, String line) {
+						HandleSession session = clients.find(name);
+						if (session != null && sender != null && session.hasBlocked(sender)) {
+							federation.notice(sender, " Failed. You have been blocked by " + name + ".");
+						} else if (session != null) {
+							session.send(opcode, line);
+							if (opcode == Frame.PRIVATE) record(ChatLog.PRIVATE, name + "\n" + line);
 						}
-					}	catch (Exception e)  {
-					 /*
-	     			* The socket may be closed by shutDown() method so we do not need
-	     			* to handle the exception caused by the close of socket, but we do
-	     			* need to handle other I/O exceptions.
-	     			*/
-						if (!ss.isClosed())	{
-							System.out.println(e.getMessage());
-							System.exit(1);
+					}
+
+					@Override
+					public void kick(String target, String by) {
+						HandleSession session = clients.find(target);
+						if (session == null) {
+							federation.notice(by, " Failed. Cannot find a user named " + target + ".");
+						} else if (admins.get(session.id)) {
+							federation.notice(by, " Failed. You cannot kick out another Administrator.");
+						} else {
+							session.kickOut();
+							String event = target + " has been kicked out of the chat room by " + by;
+							tellEveryone(event, null);
+							federation.toEveryone(event);
 						}
 					}
+				});
+			}
+
+		 /**
+		  * Tells every user on this server about a server event, and prints
+		  * it on the server's screen.
+		  *
+		  * @param content
+		  *						the event
+		  * @param except
+		  *						a session not to tell, or null
+		  */
+			private static void tellEveryone(String content, HandleSession except) {
+				EncodedMessage message = new EncodedMessage(Frame.SYSTEM, "[Server] " + content);
+				for (int i = 0, limit = clients.limit(); i < limit; i++) {
+					HandleSession session = clients.get(i);
+					if (session != null && session != except) {
+						session.send(message);
+					}
 				}
+				if (history != null) history.add(null, -1, message);
+				record(ChatLog.EVENT, content);
+				System.out.println(getCurrentTime() + content);
+			}
 
- /**
-  * <p>
-	* HandleSession receives messages or commands from a client and make
-  * responses.
-	* </p>
-	* <p>
-  * Before a client can enter the chat room, he/she will be required to enter
-  * a user name. After HandleSession validates the name, a feedback will
-  * be given to the client and he/she will be allowed to chat with others.
-	* </p>
-	*/
-	public class HandleSession implements Runnable {
+		 /**
+		  * Adds a record to the chat log, if there is one.
+		  *
+		  * @param kind
+		  *						one of the {@link ChatLog} kinds
+		  * @param text
+		  *						what to record
+		  */
+			private static void record(byte kind, String text) {
+				if (chatLog != null) chatLog.append(kind, text);
+			}
+
+		 /**
+		  * Creates a session for a client served by the NIO engine.
+		  *
+		  * @param connection
+		  *						the client's connection
+		  * @return the new session
+		  */
+			HandleSession newSession(NioEngine.Connection connection) {
+				return new HandleSession(connection);
+			}
+
+		 /**
+		  * Creates a session with no connection, for driving the server in
+		  * memory: input is given to {@link HandleSession#handleInput(ByteBuffer)}
+		  * and output is taken off its {@linkplain HandleSession#outbound()
+		  * outbound queue}.
+		  *
+		  * @param writer
+		  *						told whenever there is something new on the queue;
+		  *						it must not block
+		  * @return the new session
+		  */
+			HandleSession newSession(Runnable writer) {
+				return new HandleSession(writer);
+			}
 
 	 /**
-	  * The client socket.
+	  * Tells a room about the people who came in and went out of it. One
+	  * event on its own is told as it is, to everybody but the person
+	  * concerned; several are summed up in one notice, and those it names
+	  * get their own, leaving themselves out. Binary clients which asked for
+	  * {@link Frame#PRESENCE} get the changes as a list instead, encoded once
+	  * for the whole room.
+	  *
+	  * @param to
+	  *						the room
+	  * @param events
+	  *						what happened, in order
 	  */
-		private Socket socket; // For one client
+		private static void tellRoom(RoomRegistry.Room<HandleSession> to,
+				List<PresenceBatcher.Event<HandleSession>> events) {
+			List<String> joined = new ArrayList<String>(), left = new ArrayList<String>();
+			Map<HandleSession, PresenceBatcher.Event<HandleSession>> concerned =
+				new HashMap<HandleSession, PresenceBatcher.Event<HandleSession>>();
+			for (PresenceBatcher.Event<HandleSession> event : events) {
+				(event.joined ? joined : left).add(event.name);
+				concerned.put(event.session, event);
+			}
+			String content = events.size() == 1 ? events.get(0).text : summarise(joined, left, null);
+			EncodedMessage message = new EncodedMessage(Frame.SYSTEM, "[Server] " + content);
+			EncodedMessage changes = null;
+			for (HandleSession session : to.members()) {
+				PresenceBatcher.Event<HandleSession> own = concerned.get(session);
+				if (own != null && events.size() == 1) continue;
+				if (own != null && !session.wantsPresence) {
+					// Nobody is told about their own coming or going, only the others'
+					session.send(Frame.SYSTEM, "[Server] " + summarise(joined, left, own));
+					continue;
+				}
+				if (session.wantsPresence) {
+					if (changes == null) {
+						StringBuilder list = new StringBuilder();
+						for (PresenceBatcher.Event<HandleSession> event : events) {
+							if (list.length() > 0) list.append('\n');
+							list.append(event.joined ? '+' : '-').append(event.name);
+						}
+						changes = new EncodedMessage(Frame.PRESENCE, list.toString());
+					}
+					session.send(changes);
+				}
+				else session.send(message);
+			}
+			if (federation != null) federation.toRoom(to.name, Frame.SYSTEM, null, message.text());
+			metrics.presence(events.size());
+			// Prints out events on server's screen
+			System.out.println(getCurrentTime() + content);
+		}
+
+	 /**
+	  * Sums up several people coming and going, e.g. "12 people have joined
+	  * the room: a, b, ... and 2 more." It only looks at the names it lists,
+	  * so it is cheap to sum up for each of the people concerned.
+	  *
+	  * @param joined
+	  *						the names of those who came in
+	  * @param left
+	  *						the names of those who went out
+	  * @param except
+	  *						the event of somebody to leave out, or null
+	  * @return the notice
+	  */
+		private static String summarise(List<String> joined, List<String> left,
+				PresenceBatcher.Event<HandleSession> except) {
+			String skip = except == null ? null : except.name;
+			StringBuilder content = new StringBuilder();
+			summarise(content, joined, except != null && except.joined ? skip : null, "joined");
+			summarise(content, left, except != null && !except.joined ? skip : null, "left");
+			return content.toString();
+		}
+
+		private static void summarise(StringBuilder content, List<String> names, String skip, String what) {
+			int count = names.size() - (skip == null ? 0 : 1);
+			if (count <= 0) return;
+			if (content.length() > 0) content.append(' ');
+			if (count > 1) content.append(count).append(" people have ").append(what).append(" the room: ");
+			int listed = count <= PRESENCE_NAMES ? count : PRESENCE_NAMES - 1;
+			int i = 0;
+			for (String name : names) {
+				if (i == listed) break;
+				if (name.equals(skip)) continue;
+				if (i > 0) content.append(i == count - 1 ? " and " : ", ");
+				content.append(name);
+				i++;
+			}
+			if (count == 1) content.append(" has ").append(what).append(" the room.");
+			else {
+				if (listed < count) content.append(" and ").append(count - listed).append(" more");
+				content.append('.');
+			}
+		}
+
+ /**
+  * <p>
+	* HandleSession receives messages or commands from a client and make
+  * responses.
+	* </p>
+	* <p>
+  * Before a client can enter the chat room, he/she will be required to enter
+  * a user name. After HandleSession validates the name, a feedback will
+  * be given to the client and he/she will be allowed to chat with others.
+	* </p>
+	*/
+	public class HandleSession implements Runnable {
+
+	 /**
+	  * The client socket. A resumed session moves to the new one.
+	  */
+		private volatile Socket socket; // For one client
+
+	 /**
+	  * The client connection when the session runs on the NIO engine.
+	  */
+		private volatile NioEngine.Connection connection;
+
+	 /**
+	  * The name of the client.
+	  */
+		private String name; // For the current client
+
+	 /**
+	  * The client's session ID, or -1 until the username is accepted.
+	  */
+		private int id = -1;
+
+	 /**
+	  * The chat room the client is in, or null until the username is
+	  * accepted.
+	  */
+		private volatile RoomRegistry.Room<HandleSession> room;
+
+	 /**
+	  * Reads bytes from the client. Only used in the 'thread' and 'virtual'
+	  * modes; the NIO engine reads for the session.
+	  */
+		private InputStream in = null;
+
+	 /**
+	  * Splits the client's bytes into lines.
+	  */
+		private final LineDecoder lines = new LineDecoder();
+
+	 /**
+	  * Splits the client's bytes into frames, once the client has switched
+	  * to the binary protocol; null until then.
+	  */
+		private FrameDecoder frames;
+
+	 /**
+	  * Does the client use the binary protocol? Decides how every message
+	  * to it is encoded.
+	  */
+		private volatile boolean binary = false;
+
+	 /**
+	  * Has the binary client asked for compressed frames?
+	  */
+		private volatile boolean compress = false;
+
+	 /**
+	  * Prints text to the client. Everything printed is put on the
+	  * session's outbound queue when the PrintWriter is flushed.
+	  */
+		private PrintWriter out;
+
+	 /**
+	  * The messages waiting to be written to the client.
+	  */
+		private final OutboundQueue outbound = new OutboundQueue(queueCapacity, overflow, blockMillis);
+
+	 /**
+	  * Whether a writer task is running (or about to run) for this session.
+	  * Only used in the 'thread' and 'virtual' modes.
+	  */
+		private final AtomicBoolean writerScheduled = new AtomicBoolean(false);
+
+	 /**
+	  * Writes the queued messages in batches. Only used in the 'thread' and
+	  * 'virtual' modes; the NIO engine keeps its own per connection.
+	  */
+		private final WriteBatcher batcher = new WriteBatcher();
+
+	 /**
+	  * Has the client been disconnected for not reading its messages?
+	  */
+		private final AtomicBoolean slowConsumer = new AtomicBoolean(false);
+
+	 /**
+	  * The time (in milliseconds) at which the client enters the chat room.
+	  */
+		private long clientStartTime = System.currentTimeMillis();
+
+	 /**
+	 	* Has the client decided to finish the chat?
+	 	*/
+		private volatile boolean finished = false;
+
+	 /**
+	  * Has the connection already been closed?
+	  */
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	 /**
+	  * The client's own rate limits, or null if there are none. Only the
+	  * session's reader takes from them.
+	  */
+		private final TokenBucket messageBucket = messageRate > 0 ? new TokenBucket(messageRate, messageBurst) : null;
+
+		private final TokenBucket byteBucket = byteRate > 0 ? new TokenBucket(byteRate, byteBurst) : null;
+
+	 /**
+	  * The number of the client's messages dropped since it last kept to
+	  * its limits for a second, and when the last one was dropped.
+	  */
+		private int throttled = 0;
+
+		private long lastThrottled;
+
+	 /**
+	  * When (in {@link TimerWheel#now()} time) the client last sent anything.
+	  */
+		private volatile long lastInput;
+
+	 /**
+	  * The timer which next checks the client for silence; null if the
+	  * session is not watched.
+	  */
+		private volatile TimerWheel.Timeout idleTimer;
+
+	 /**
+	  * Has the client been disconnected for being silent too long?
+	  */
+		private volatile boolean timedOut = false;
+
+	 /**
+	  * Checks the client for silence, on the timer wheel's thread.
+	  */
+		private final Runnable idleCheck = new Runnable() {
+			@Override
+			public void run() {
+				checkIdle();
+			}
+		};
+
+	 /**
+	  * Has the binary client asked to be able to resume its session?
+	  */
+		private boolean wantsResume = false;
+
+	 /**
+	  * Has the binary client asked to be told who comes and goes as
+	  * {@link Frame#PRESENCE} frames?
+	  */
+		private volatile boolean wantsPresence = false;
+
+	 /**
+	  * The names of the users on other servers this client has blocked.
+	  * Users on this server are in the {@link BlockIndex} instead, by id.
+	  */
+		private final Set<String> remoteBlocks = ConcurrentHashMap.newKeySet();
+
+	 /**
+	  * The token with which the client can resume its session; null if it
+	  * cannot, or no longer may.
+	  */
+		private volatile String resumeToken;
+
+	 /**
+	  * Is the session waiting for its client to come back?
+	  */
+		private final AtomicBoolean parked = new AtomicBoolean(false);
+
+	 /**
+	  * Which of its connections the session is on. It counts up each time
+	  * the session is resumed, so that news of an older one is ignored.
+	  */
+		private volatile int transport = 0;
+
+	 /**
+	  * The session whose client this one greeted has resumed, and which of
+	  * that session's connections this one's is; null until then. From then
+	  * on, this session only passes the client's input on to it.
+	  */
+		private volatile HandleSession handedTo;
+
+		private volatile int handedToTransport;
+
+	 /**
+	  * Ends a parked session whose client has not come back in time.
+	  */
+		private volatile TimerWheel.Timeout graceTimer;
+
+	 /**
+	  * When (System.nanoTime()) the session was created, which for a
+	  * client is when its connection was accepted.
+	  */
+		private final long acceptedAt = System.nanoTime();
+
+	 /**
+	  * Is the client still logging in? Only sessions with a connection
+	  * start out so, each holding one of the {@linkplain #handshakes
+	  * handshake permits} if there is a cap.
+	  */
+		private final AtomicBoolean handshaking = new AtomicBoolean(false);
+
+	 /**
+	  * Creates a new instance of HandleSession.
+	  *
+	  * @param socket
+	  *            the client socket
+	  */
+		private HandleSession (Socket socket) {
+			this.socket = socket;
+			handshaking.set(true);
+			out = new PrintWriter(new OutputStreamWriter(new QueueStream(),
+				StandardCharsets.UTF_8));
+			outbound.setWriter(new Runnable() {
+				@Override
+				public void run() {
+					scheduleWriter();
+				}
+			});
+			watchForSilence();
+		}
+
+	 /**
+	  * Creates a new instance of HandleSession for a client served by the
+	  * NIO engine. The engine feeds it bytes through
+	  * {@link #handleInput(ByteBuffer)} instead of it reading them itself.
+	  *
+	  * @param connection
+	  *            the client connection
+	  */
+		private HandleSession (final NioEngine.Connection connection) {
+			this.connection = connection;
+			handshaking.set(true);
+			out = new PrintWriter(new OutputStreamWriter(new QueueStream(),
+				StandardCharsets.UTF_8));
+			outbound.setWriter(new Runnable() {
+				@Override
+				public void run() {
+					connection.scheduleFlush();
+				}
+			});
+			watchForSilence();
+		}
+
+	 /**
+	  * Creates a new instance of HandleSession with no connection.
+	  *
+	  * @param writer
+	  *            takes the messages off the outbound queue
+	  */
+		private HandleSession (Runnable writer) {
+			out = new PrintWriter(new OutputStreamWriter(new QueueStream(),
+				StandardCharsets.UTF_8));
+			outbound.setWriter(writer);
+		}
+
+	 /**
+	  * Collects what the session's PrintWriter prints and puts it on the
+	  * outbound queue, as one message, whenever the PrintWriter is flushed.
+	  * For a binary client the message is a {@link Frame#SYSTEM} frame.
+	  */
+		private class QueueStream extends OutputStream {
+
+			private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+			@Override
+			public void write(int b) {
+				pending.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				pending.write(b, off, len);
+			}
+
+			@Override
+			public void flush() {
+				if (pending.size() > 0) {
+					byte[] text = pending.toByteArray();
+					if (binary) {
+						// One frame, without the last line terminator
+						int length = text.length;
+						if (length > 0 && text[length - 1] == '\n') length--;
+						if (length > 0 && text[length - 1] == '\r') length--;
+						ByteBuffer frame = compress ? Compression.encode(Frame.SYSTEM, text, 0, length) : null;
+						deliver(frame != null ? frame : Frame.encode(Frame.SYSTEM, text, 0, length));
+					} else {
+						deliver(ByteBuffer.wrap(text));
+					}
+					pending.reset();
+				}
+			}
+		} // End of the class QueueStream
+
+	 /**
+	  * Asks the client to enter a valid name. <br>
+	  * Broadcasts chat messages to all clients. <br>
+	  * Responds to client requests.<br>
+	  *
+	  * @see java.lang.Runnable#run()
+	  */
+	  @Override
+		public void run() {
+			try {
+				createStreams();
+				greet();
+				listenForClientMessages();
+			}
+			catch (IOException e) {
+				// A shutdown or a timeout closes connections under the readers' feet
+				if (!shuttingDown.get() && !timedOut) System.out.println(e);
+			}
+			finally {
+				// The reader only ever serves the session's first socket
+				transportLost(0);
+			}
+		} // End of run() in the class HandleSession
+
+	 /**
+	  * Detects a user connecting to the server.
+		*/
+		private void createStreams() {
+			try {
+				in = socket.getInputStream();
+				System.out.println(" Connection detected!");
+			}
+			catch (IOException e) {
+				System.err.println(" Exception in createStreams(): " + e);
+			}
+		} // End of createStreams() in the class HandleSession
+
+	 /**
+	  * Asks the client to enter a username.
+	  */
+		void greet() {
+			out.println(welcome); out.flush();
+		}
+
+	 /**
+	  * Accepts the username if it is valid and not yet taken, otherwise asks
+	  * the client for another one.
+	  *
+	  * @param candidate
+	  *            the username the client entered
+	  */
+		private void processUserName(String candidate) {
+			/*
+			* Registers the client's session under his/her name, which gives
+			* it a session ID
+			*/
+			if (candidate.indexOf('\n') >= 0 || candidate.indexOf('\r') >= 0) {
+				// Only possible with the binary protocol
+				out.println(" Sorry, a username cannot contain line breaks.");
+				greet();
+				return;
+			}
+			int newId = candidate.length() > 0 ? register(candidate) : -1;
+			if (newId >= 0)  {
+				id = newId;
+				name = candidate;
+
+				send(Frame.LOGIN, accepted + " Please type messages.");
+				handshakeOver(true);
+
+				if (wantsResume) {
+					// Messages are numbered from here on, so the client can say which it missed
+					String token = newToken();
+					resumeToken = token;
+					resumeTokens.put(token, this);
+					outbound.keepForReplay(Frame.encode(Frame.SESSION, token), resumeBufferMessages,
+						resumeBufferBytes);
+				}
+
+				// Everybody starts in the lobby
+				room = rooms.join(RoomRegistry.LOBBY, this);
+
+				// Sends notification to the other clients in the room
+				announce(room, true, name + " has entered the chat room!");
+
+				// Shows what was said before he/she came in
+				replay(replayOnJoin);
+			} else {
+				out.println(" Sorry, this username is already being used.");
+				greet();
+			}
+		}	// End of processUserName() in the class HandleSession
+
+	 /**
+	  * Registers the session under a name, unless it is taken on this server
+	  * or, in a cluster, on another one.
+	  *
+	  * @param candidate
+	  *            the username
+	  * @return the new session ID, or -1 if the name is taken
+	  */
+		private int register(final String candidate) {
+			if (federation == null) return clients.register(candidate, this);
+			return federation.admit(candidate, new IntSupplier() {
+				@Override
+				public int getAsInt() {
+					return clients.register(candidate, HandleSession.this);
+				}
+			});
+		}
+
+	 /**
+	  * Handles bytes which have arrived from the client: lines, or frames
+	  * once the client has switched to the binary protocol. An incomplete
+	  * line or frame is kept until the rest arrives.
+	  *
+	  * @param input
+	  *            the bytes read from the client, ready to be read
+	  * @throws IOException
+	  *            if the client sent a line or frame which is too long
+	  */
+		void handleInput(ByteBuffer input) throws IOException {
+			HandleSession resumed = handedTo;
+			if (resumed != null) {
+				resumed.handleInput(input);
+				return;
+			}
+			metrics.bytesIn(input.remaining());
+			if (timers != null) {
+				// At most one write a tick, however often the client sends
+				long now = timers.now();
+				if (lastInput != now) lastInput = now;
+			}
+			decode(input);
+		}
+
+	 /**
+	  * Handles every complete line or frame in the bytes. Once the client
+	  * has resumed another session, the rest of them are that session's.
+	  *
+	  * @param input
+	  *            the bytes read from the client, ready to be read
+	  * @throws IOException
+	  *            if the client sent a line or frame which is too long
+	  */
+		private void decode(ByteBuffer input) throws IOException {
+			while (!finished) {
+				if (frames != null) {
+					Frame frame = frames.next(input);
+					if (frame == null) return;
+					handleFrame(frame);
+					HandleSession resumed = handedTo;
+					if (resumed != null) {
+						resumed.decode(input);
+						return;
+					}
+				} else {
+					String line = lines.nextLine(input);
+					if (line == null) return;
+					handleLine(line);
+				}
+			}
+		}
+
+	 /**
+	  * Handles one line from a text client: the username until one has been
+	  * accepted, then messages and commands. Before the username, the
+	  * client may ask for the binary protocol instead.
+	  *
+	  * @param line
+	  *            the line the client sent, without its line terminator
+	  */
+		private void handleLine(String line) {
+			metrics.messageIn();
+			if (name == null) {
+				if (line.equals(Frame.HELLO_LINE) || line.startsWith(Frame.HELLO_LINE + " ")) switchToBinary(line);
+				else processUserName(line);
+			}
+			else if (withinLimits(lines.lastLength() + 1)) processClientMessage(line);
+		}
+
+	 /**
+	  * Switches the client to the binary protocol and asks it, in a frame
+	  * this time, for its username. After {@link Frame#HELLO_LINE}, the
+	  * client may list what else it can do, such as {@link Compression#NAME}
+	  * {@link Frame#RESUME_FEATURE} or {@link Frame#PRESENCE_FEATURE}; the
+	  * server's {@link Frame#HELLO} says which of them it will use.
+	  *
+	  * @param hello
+	  *            the line the client sent
+	  */
+		private void switchToBinary(String hello) {
+			frames = new FrameDecoder();
+			binary = true;
+			List<String> features = Arrays.asList(hello.split(" "));
+			boolean compressed = compressionAllowed && features.contains(Compression.NAME);
+			wantsResume = resumeGraceMillis > 0 && timers != null && features.contains(Frame.RESUME_FEATURE);
+			send(Frame.HELLO, Frame.HELLO_LINE.substring(1) + (compressed ? " " + Compression.NAME : "")
+				+ (wantsResume ? " " + Frame.RESUME_FEATURE : "")
+				+ (features.contains(Frame.PRESENCE_FEATURE) ? " " + Frame.PRESENCE_FEATURE : ""));
+			wantsPresence = features.contains(Frame.PRESENCE_FEATURE);
+			// Only after the HELLO, which the client must be able to read as it is
+			compress = compressed;
+			greet();
+		}
+
+	 /**
+	  * Handles one frame from a binary client. The opcode says what it is,
+	  * so a chat message may start with "-" or contain line breaks.
+	  *
+	  * @param frame
+	  *            the frame the client sent
+	  */
+		private void handleFrame(Frame frame) {
+			metrics.messageIn();
+			// Only there to show the client is alive, which any input does
+			if (frame.opcode == Frame.PONG) return;
+			if (name == null) {
+				if (frame.opcode == Frame.LOGIN) processUserName(frame.payload);
+				else if (frame.opcode == Frame.RESUME) resume(frame.payload);
+				else greet();
+				return;
+			}
+			if (!withinLimits(frames.lastLength())) return;
+			switch (frame.opcode) {
+				case Frame.CHAT: {
+					chat(frame.payload);
+					break;
+				}
+				case Frame.COMMAND: {
+					processClientRequest(frame.payload);
+					break;
+				}
+				case Frame.PING: {
+					send(Frame.PONG, frame.payload);
+					break;
+				}
+				case Frame.PRIVATE: {
+					int split = frame.payload.indexOf('\n');
+					if (split < 0) {
+						out.println(" Failed. Invalid format.");
+						out.println(" A private message frame must be 'name\\nmessage'.");
+						out.flush();
+					} else {
+						sendPrivate(frame.payload.substring(0, split), frame.payload.substring(split + 1));
+					}
+					break;
+				}
+				default: {
+					out.println(" Failed. The server does not accept frames of type " + frame.opcode + ".");
+					out.flush();
+				}
+			}
+		}
+
+	 /**
+	  * Has the client decided to finish the chat?
+	  *
+	  * @return true once the client has left
+	  */
+		boolean isFinished() {
+			HandleSession resumed = handedTo;
+			return resumed != null ? resumed.isFinished() : finished;
+		}
+
+	 /**
+	  * Makes a token for the client to resume its session with: too long
+	  * and too random to guess.
+	  *
+	  * @return the token
+	  */
+		private String newToken() {
+			byte[] bytes = new byte[18];
+			tokenRandom.nextBytes(bytes);
+			return Base64.getUrlEncoder().encodeToString(bytes);
+		}
+
+	 /**
+	  * Resumes the session a {@link Frame#RESUME} frame names, whose client
+	  * has come back on this session's connection. If it cannot be resumed,
+	  * the client has to log in again.
+	  *
+	  * @param request
+	  *            "token\nframes": the frames the client got before its
+	  *            connection dropped
+	  */
+		private void resume(String request) {
+			int split = request.indexOf('\n');
+			HandleSession old = split > 0 ? resumeTokens.get(request.substring(0, split)) : null;
+			long after = -1;
+			try {
+				if (old != null) after = Long.parseLong(request.substring(split + 1));
+			} catch (NumberFormatException e) {
+				old = null;
+			}
+			if (old != null && !old.parked.get() && !old.closed.get()) {
+				// The server has not noticed the old connection drop yet: it goes, and the client tries again
+				old.cutOff();
+				quit();
+				return;
+			}
+			if (old == null || !old.adopt(this, after)) {
+				out.println(" Your session could not be resumed. Please log in again.");
+				greet();
+				return;
+			}
+			handshakeOver(true);
+		}
+
+	 /**
+	  * Ends the client's handshake, the first time it is called: gives back
+	  * its permit, if it holds one, and if the client logged in, records
+	  * how long that took.
+	  *
+	  * @param loggedIn
+	  *            true if the client logged in or resumed its session,
+	  *            false if it went before it did
+	  */
+		private void handshakeOver(boolean loggedIn) {
+			if (!handshaking.compareAndSet(true, false)) return;
+			Semaphore permits = handshakes;
+			if (permits != null) permits.release();
+			if (loggedIn) metrics.handshake(System.nanoTime() - acceptedAt);
+		}
+
+	 /**
+	  * Carries on a parked session on the connection a returning client has
+	  * opened: sends it a {@link Frame#RESUME} and then the messages it
+	  * missed, and from then on takes its input from the session which
+	  * greeted it there.
+	  *
+	  * @param greeter
+	  *            the session the client resumed from
+	  * @param after
+	  *            how many of the session's messages the client got
+	  * @return false if the session is not parked, or no longer has every
+	  *            message the client missed; it is then ended
+	  */
+		private boolean adopt(HandleSession greeter, long after) {
+			if (!parked.compareAndSet(true, false)) return false;
+			TimerWheel.Timeout timer = graceTimer;
+			if (timer != null) timer.cancel();
+			// The writer must find the new connection as soon as the queue wakes it
+			Socket oldSocket = socket;
+			NioEngine.Connection oldConnection = connection;
+			Runnable writer;
+			if (greeter.connection != null) {
+				final NioEngine.Connection moved = greeter.connection;
+				connection = moved;
+				writer = new Runnable() {
+					@Override
+					public void run() {
+						moved.scheduleFlush();
+					}
+				};
+			} else {
+				socket = greeter.socket;
+				batcher.clear();
+				writerScheduled.set(false);
+				writer = new Runnable() {
+					@Override
+					public void run() {
+						scheduleWriter();
+					}
+				};
+			}
+			int number = transport + 1;
+			transport = number;
+			frames = new FrameDecoder();
+			compress = greeter.compress;
+			if (!outbound.reopen(after, Frame.encode(Frame.RESUME, Long.toString(after)), writer)) {
+				socket = oldSocket;
+				connection = oldConnection;
+				System.out.println(getCurrentTime() + name + " came back too late to resume their session.");
+				closeConnection();
+				return false;
+			}
+			// On the greeter's event loop, before its connection next flushes
+			if (greeter.connection != null) greeter.connection.adopt(this, number);
+			TimerWheel.Timeout greeterTimer = greeter.idleTimer;
+			if (greeterTimer != null) greeterTimer.cancel();
+			greeter.handedToTransport = number;
+			greeter.handedTo = this;
+			slowConsumer.set(false);
+			timedOut = false;
+			TimerWheel.Timeout idle = idleTimer;
+			if (idle != null) idle.cancel();
+			watchForSilence();
+			metrics.resumed();
+			System.out.println(getCurrentTime() + name + " resumed their session.");
+			return true;
+		}
+
+	 /**
+	  * Handles the loss of one of the session's connections. A client which
+	  * may resume has its session parked for a while; otherwise the session
+	  * ends.
+	  *
+	  * @param number
+	  *            which of the session's connections it was; news of one it
+	  *            has already moved on from is ignored
+	  */
+		void transportLost(int number) {
+			HandleSession resumed = handedTo;
+			if (resumed != null) {
+				resumed.transportLost(handedToTransport);
+				return;
+			}
+			if (number != transport || parked.get()) return;
+			if (canPark()) park();
+			else closeConnection();
+		}
+
+	 /**
+	  * May the session wait for its client to come back?
+	  *
+	  * @return true if the client may resume, and has not left, been kicked
+	  *            out or gone silent
+	  */
+		private boolean canPark() {
+			return resumeToken != null && !finished && !timedOut && !shuttingDown.get() && timers != null
+				&& !closed.get();
+		}
+
+	 /**
+	  * <p>
+	  * Keeps the session, still in its room and under its name, while the
+	  * client is away. Its messages go on being numbered and kept in the
+	  * outbound queue's replay ring, and nobody is told it has gone.
+	  * </p>
+	  * If the client has not {@linkplain #adopt(HandleSession, long)
+	  * resumed} it by the end of the grace period, the session ends as if
+	  * the connection had just been lost.
+	  */
+		private void park() {
+			if (!parked.compareAndSet(false, true)) return;
+			TimerWheel.Timeout idle = idleTimer;
+			if (idle != null) idle.cancel();
+			System.out.println(getCurrentTime() + name + " lost their connection; their session is kept for "
+				+ resumeGraceMillis / 1000 + " seconds.");
+			// The replay ring has whatever was waiting
+			cutOff();
+			graceTimer = timers.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (parked.compareAndSet(true, false)) {
+						System.out.println(getCurrentTime() + name + " did not come back in time.");
+						closeConnection();
+					}
+				}
+			}, resumeGraceMillis);
+		}
+
+	 /**
+	  * Kicks the client out of the chat room. It may not resume its session,
+	  * and a parked session ends at once.
+	  */
+		void kickOut() {
+			String token = resumeToken;
+			if (token != null) {
+				resumeToken = null;
+				resumeTokens.remove(token, this);
+			}
+			send(Frame.KICK, "[Server] [Kicked Out]");
+			if (parked.compareAndSet(true, false)) closeConnection();
+		}
+
+	 /**
+	  * Gets the messages waiting to be written to the client.
+	  *
+	  * @return the session's outbound queue
+	  */
+		OutboundQueue outbound() {
+			return outbound;
+		}
+
+	 /**
+	  * Sends a message to this client. It is only queued, so the caller (often
+	  * another client's session) never waits for this client's socket.
+	  *
+	  * @param opcode
+	  *            the kind of message, one of the {@link Frame} opcodes
+	  * @param line
+	  *            the text to send, without a line terminator
+	  */
+		void send(byte opcode, String line) {
+			send(new EncodedMessage(opcode, line));
+		}
 
 	 /**
-	  * The name of the client.
+	  * Sends an already encoded message to this client, as a line or a frame
+	  * depending on the client's protocol. The client gets its own view of
+	  * the bytes, so the same message can be sent to many clients.
+	  *
+	  * @param message
+	  *            the encoded message
 	  */
-		private String name; // For the current client
+		void send(EncodedMessage message) {
+			if (!binary) {
+				deliver(message.view());
+			} else if (compress) {
+				deliver(message.compressedView());
+				Compression.sent(message.compressionSaving());
+			} else {
+				deliver(message.frameView());
+			}
+		}
 
 	 /**
-	  * Reads text from InputStream.
+	  * Puts a message on the outbound queue, and disconnects the client if
+	  * the queue is full and the overflow policy says so.
+	  *
+	  * @param message
+	  *            the encoded message
 	  */
-		private BufferedReader in = null;
+		private void deliver(ByteBuffer message) {
+			if (!outbound.offer(message)) {
+				dropSlowConsumer();
+			}
+		}
 
 	 /**
-	  * Prints text to OutputStream.
+	  * Disconnects a client whose outbound queue overflowed. The waiting
+	  * messages are thrown away and the connection is closed, which ends the
+	  * session the same way as a lost connection.
 	  */
-		private PrintWriter out;
+		private void dropSlowConsumer() {
+			if (!slowConsumer.compareAndSet(false, true)) return;
+			System.out.println(getCurrentTime() + (name == null ? "A client" : name)
+				+ " was disconnected for not reading their messages.");
+			outbound.discard();
+			if (socket != null) {
+				try {
+					// Also wakes up a writer stuck on the full socket
+					socket.close();
+				} catch (IOException e) {
+					System.err.println(" Closing: " + e.getMessage());
+				}
+			}
+		}
 
 	 /**
-	  * The time (in milliseconds) at which the client enters the chat room.
+	  * Starts watching the client for silence, if the server is listening.
 	  */
-		private long clientStartTime = System.currentTimeMillis();
+		private void watchForSilence() {
+			if (timers == null) return;
+			lastInput = timers.now();
+			long first = Long.MAX_VALUE;
+			for (long millis : new long[] {loginTimeoutMillis, heartbeatMillis, idleTimeoutMillis, textIdleTimeoutMillis}) {
+				if (millis > 0) first = Math.min(first, millis);
+			}
+			if (first != Long.MAX_VALUE) idleTimer = timers.schedule(idleCheck, first);
+		}
 
 	 /**
-	 	* Has the client decided to finish the chat?
-	 	*/
-		private boolean finished = false;
-
+	  * <p>
+	  * Disconnects the client if it has been silent too long for what it is
+	  * doing: logging in, or chatting with the binary or the text protocol.
+	  * Otherwise pings a binary client that has been silent for the
+	  * heartbeat, and checks again when something might be due.
+	  * </p>
+	  * Runs on the timer wheel's thread, so it only queues and closes, and
+	  * the session is only looked at again when its timer comes round: a
+	  * client which keeps talking costs nothing in between.
+	  */
+		private void checkIdle() {
+			// A parked session has its own timer, and a greeter is done with
+			if (closed.get() || parked.get() || handedTo != null) return;
+			long silent = timers.now() - lastInput;
+			long limit = name == null ? loginTimeoutMillis : binary ? idleTimeoutMillis : textIdleTimeoutMillis;
+			if (limit > 0 && silent >= limit) {
+				timedOut = true;
+				metrics.timedOut();
+				System.out.println(getCurrentTime() + (name == null ? "A client" : name)
+					+ " was disconnected after " + silent / 1000 + " seconds of silence.");
+				cutOff();
+				return;
+			}
+			long next = limit > 0 ? limit - silent : Long.MAX_VALUE;
+			if (name == null) {
+				// Whatever the client logs in as, its own timeouts start from now on
+				next = Math.min(next, Math.max(1000, heartbeatMillis));
+			} else if (binary && heartbeatMillis > 0) {
+				if (silent >= heartbeatMillis) {
+					send(Frame.PING, "");
+					next = Math.min(next, heartbeatMillis);
+				} else {
+					next = Math.min(next, heartbeatMillis - silent);
+				}
+			}
+			idleTimer = next == Long.MAX_VALUE ? null : timers.schedule(idleCheck, next);
+		}
 
 	 /**
-	  * Creates a new instance of HandleSession.
+	  * Has the session's connection been closed? A session with no
+	  * connection counts as closed once its queue is empty.
 	  *
-	  * @param socket
-	  *            the client socket
+	  * @return true once the writer has nothing more to do
 	  */
-		private HandleSession (Socket socket) {
-			this.socket = socket;
+		boolean isDisconnected() {
+			if (socket != null) return socket.isClosed();
+			if (connection != null) return connection.isClosed();
+			return outbound.isEmpty();
 		}
 
 	 /**
-	  * Asks the client to enter a valid name. <br>
-	  * Broadcasts chat messages to all clients. <br>
-	  * Responds to client requests.<br>
+	  * Throws away the waiting messages and closes the connection, e.g. when
+	  * a shutdown cannot wait for them any longer.
 	  *
-	  * @see java.lang.Runnable#run()
+	  * @return the number of messages thrown away
 	  */
-	  @Override
-		public void run() {
-			try {
-				createStreams();
-				getClientUserName();
-				while (!finished)	{
-					listenForClientMessages();
+		int cutOff() {
+			// The NIO engine closes the connection when it sees the discard
+			int count = outbound.discard();
+			if (socket != null) {
+				try {
+					// Also wakes up a writer stuck on the full socket
+					socket.close();
+				} catch (IOException e) {
+					System.err.println(" Closing: " + e.getMessage());
 				}
 			}
-			catch (IOException e) {
-				System.out.println(e);
-			}
-			finally {
-				closeConnection();
-			}
-		} // End of run() in the class HandleSession
+			return count;
+		}
 
 	 /**
-	  * Detects a user connecting to the server.
-		*/
-		private void createStreams() {
-			try {
-				in = new BufferedReader(new
-					InputStreamReader(socket.getInputStream()));
-				out = new PrintWriter(new
-					OutputStreamWriter(socket.getOutputStream()));
-				System.out.println(" Connection detected!");
-			}
-			catch (IOException e) {
-				System.err.println(" Exception in createStreams(): " + e);
+	  * Starts the session's writer, unless it is already running.
+	  */
+		private void scheduleWriter() {
+			if (writerScheduled.compareAndSet(false, true)) {
+				writerThreads.execute(new Runnable() {
+					@Override
+					public void run() {
+						writeOutbound();
+					}
+				});
 			}
-		} // End of createStreams() in the class HandleSession
+		}
 
 	 /**
-	  * Asks for and retrieves a valid username from the client.
-		*/
-		private void getClientUserName() {
-			while (true) {
-				out.println(welcome); out.flush();
-				try { name = in.readLine(); }
-				catch (IOException e) {
-					System.err.println(" Exception in getClientUserName: " + e);
-				}
-				if (name == null) return;
-				if (name.length() > 0 && !clients.containsKey(name))  {
-
-					/*
-					* Puts the client's PrintWriter into the HashMap,
-					* using his/her name as the key
-					*/
-					clients.putIfAbsent(name, out);
-
-					/*
-				 	* Creates an empty block list(HashSet) for the new
-				 	* client
-				 	*/
-					blockList.putIfAbsent(name, new HashSet<String>());
-
-					break;
+	  * <p>
+	  * Writes the queued messages to the socket until the queue is empty,
+	  * many messages per system call.
+	  * </p>
+	  * Once the queue has been closed and emptied, the socket is closed.
+	  */
+		private void writeOutbound() {
+			// A resumed session moves to a new socket; this writer keeps to its own
+			Socket s = socket;
+			SocketChannel channel = s.getChannel();
+			do {
+				try {
+					// Checked before writing: nothing can be added once closed
+					boolean closing = outbound.isClosed();
+					batcher.writeAllTo(outbound, channel);
+					if (closing) {
+						s.close();
+						return;
+					}
+				} catch (IOException e) {
+					// The client is no longer reachable; the reader will notice
+					if (s == socket) outbound.discard();
+					try { s.close(); }
+					catch (IOException ignored) { }
+					return;
 				}
-				out.println(" Sorry, this username is already being used.");
-				out.flush();
-			}
-			out.println(accepted + " Please type messages.");
-			out.flush(); // Otherwise the client may not see the message
-
-			// Sends notification to the other clients
-			broadcast(name + " has entered the chat room!", "Server");
-		}	// End of getClientUserName() in the class HandleSession
+				writerScheduled.set(false);
+			} while ((outbound.isClosed() || !outbound.isEmpty())
+				&& writerScheduled.compareAndSet(false, true));
+		}
 
 	 /**
 	  * Sends messages to the server until the client
@@ -345,29 +2187,113 @@ import java.util.concurrent.ConcurrentHashMap;
 		*
 		*/
 		private void listenForClientMessages() throws IOException {
-			String line; // Input from a remote client
-			while (!finished) {
-				line = in.readLine();
-				if (line == null)	{
-					finished = true;
-				}
-				else if (line.length() == 0)	{
-					out.println(" You are not allowed to send an empty message.");
-					out.flush();
-				}
-				else if (line.startsWith("-")) {
-					processClientRequest(line);
+			byte[] input = new byte[8 * 1024]; // Input from a remote client
+			while (!isFinished()) {
+				int count = in.read(input);
+				if (count < 0)	{
+					// Gone, though the session may wait for the client to come back
+					return;
 				}
-				else broadcast(line, name);
+				else handleInput(ByteBuffer.wrap(input, 0, count));
 			}
 		} // End of listenForClientMessages() in the class HandleSession
 
+	 /**
+	  * <p>
+	  * Checks a message from the client against the rate limits, before it
+	  * is broadcast or carried out: the client's own limits on messages and
+	  * bytes, then the server's.
+	  * </p>
+	  * A message over a limit is dropped. The client is told the first time
+	  * and, if the server says so, kicked out once too many have been
+	  * dropped. Going over the server's limits is not held against anybody.
+	  *
+	  * @param bytes
+	  *            the size of the message
+	  * @return true if the message may go ahead
+	  */
+		private boolean withinLimits(int bytes) {
+			if (messageBucket != null && !messageBucket.tryTake(1)) {
+				return throttle(true);
+			}
+			if (byteBucket != null && !byteBucket.tryTake(bytes)) {
+				if (messageBucket != null) messageBucket.giveBack(1);
+				return throttle(true);
+			}
+			if ((serverMessages != null && !serverMessages.tryTake(1))
+				|| (serverBytes != null && !serverBytes.tryTake(bytes))) {
+				if (messageBucket != null) messageBucket.giveBack(1);
+				if (byteBucket != null) byteBucket.giveBack(bytes);
+				return throttle(false);
+			}
+			return true;
+		}
+
+	 /**
+	  * Drops a message which went over a rate limit.
+	  *
+	  * @param own
+	  *            true if it was the client's own limit
+	  * @return false, so that the message is not carried out
+	  */
+		private boolean throttle(boolean own) {
+			metrics.throttled();
+			long now = System.nanoTime();
+			if (throttled > 0 && now - lastThrottled > 1000000000L) {
+				// Kept to the limits for a second, so this is a new flood
+				throttled = 0;
+			}
+			lastThrottled = now;
+			if (++throttled == 1) {
+				out.println(own ? " You are sending messages too fast. Some of them have been dropped."
+					: " The server is too busy. Some of your messages have been dropped.");
+				out.flush();
+			}
+			if (own && kickAfterThrottled > 0 && throttled >= kickAfterThrottled && !finished) {
+				kickOut();
+				broadcast(name + " has been kicked out of the chat room for flooding it", "Server");
+				quit();
+			}
+			return false;
+		}
+
+	 /**
+	  * Broadcasts a chat message or carries out a command.
+	  *
+	  * @param line
+	  *            a line sent by a client who has entered the chat room
+	  */
+		private void processClientMessage(String line) {
+			if (line.startsWith("-")) {
+				processClientRequest(line);
+			}
+			else chat(line);
+		}
+
+	 /**
+	  * Broadcasts a chat message, unless it is empty.
+	  *
+	  * @param content
+	  *            the message
+	  */
+		private void chat(String content) {
+			if (content.length() == 0)	{
+				out.println(" You are not allowed to send an empty message.");
+				out.flush();
+			}
+			else broadcast(content, name);
+		}
+
 	 /**
 	  * <p>
 		* Broadcasts a message to all the other clients.
 		* </p>
 		* There are two kinds of broadcasts, one is the server's broadcast and
 	  * another is the client's broadcast. <br>
+		* The server's broadcasts go to everybody on the server; a client's
+		* only go to the people in his/her room. <br>
+		* The message is formatted and encoded only once; every receiver gets a
+		* view of the same bytes. Only the sender's "(You)" copy differs.
 		*
 		* @param content
 		*						 the content of the broadcast.
@@ -375,134 +2301,90 @@ import java.util.concurrent.ConcurrentHashMap;
 								 "Server" or client.
 		*/
 		private void broadcast (String content, String sender)	{
-			String message = "";
-
 			// If the sender is the server
 		 	if (sender.equals("Server")) {
-	 			message = "[Server] " + content;
-	 			for (PrintWriter writer : clients.values()) {
-					if (!writer.equals(out)) {
-		 			// Sends messages to all other clients
-		 			writer.println(message);
-		 			writer.flush();
-			 		}
-	 			}
-	 			// Prints out events on server's screen
-	 			System.out.println(getCurrentTime() + content);
+	 			// Sends messages to all other clients, here and on the other servers
+	 			tellEveryone(content, this);
+	 			if (federation != null) federation.toEveryone(content);
 		 	}	else	{
 				// If the sender is a client
-				for (Map.Entry<String, PrintWriter> entry : clients.entrySet()){
-		    	String receiver = entry.getKey();
+				long start = System.nanoTime();
+				String time = getCurrentTime();
+				// Message sent to others
+				EncodedMessage message = new EncodedMessage(Frame.CHAT, " " + time + sender + ": " + content);
+				// Feedback given to the sender
+				EncodedMessage echo = new EncodedMessage(Frame.CHAT, " " + time + sender + "(You): " + content);
+				// The users who have blocked the sender; almost always none
+				IntBitSet blockers = blockList.blockersOf(id);
+				boolean anyBlockers = !blockers.isEmpty();
+				for (HandleSession session : room.members()){
 		    	// Check whether the sender is blocked by the receiver
-		    	if (!blockList.get(receiver).contains(sender)){
-						if (!receiver.equals(sender)){
-			    	// Message sent to others
-			    	message = " " + getCurrentTime() + sender + ": " + content;
-					} else {
-			    	// Feedback given to the sender
-			    	message = " " + getCurrentTime() + sender + "(You): " + content;
-					}
-					PrintWriter writer = entry.getValue();
-					writer.println(message);
-					writer.flush();
+		    	if (!anyBlockers || !blockers.get(session.id)){
+					session.send(session == this ? echo : message);
 		    }
 		    // If the sender is blocked by this receiver, do not send to him/her
 			}
+				// The people in the room on the other servers
+				if (federation != null) federation.toRoom(room.name, Frame.CHAT, sender, message.text());
+				// And those who come in later
+				if (history != null) history.add(room.name, id, message);
+				record(ChatLog.CHAT, room.name + "\n" + message.text());
+				metrics.fanOut(System.nanoTime() - start);
 		}
 	}
 
 	 /**
-	 * Processes the request commands and calls the corresponding methods to
-	 * deal with them.
+	  * Tells the other people in a room that the client has come in or gone
+	  * out, unless presence notices are {@linkplain #announcePresence turned
+	  * off}. Unless the window is 0, they are told a little later, together
+	  * with whoever else came and went at about the same time.
+	  *
+	  * @param to
+	  *						the room
+	  * @param joined
+	  *						true if the client came in, false if it went out
+	  * @param content
+	  *						the event
+	  */
+		private void announce(RoomRegistry.Room<HandleSession> to, boolean joined, String content) {
+			if (!announcePresence) return;
+			PresenceBatcher.Event<HandleSession> event =
+				new PresenceBatcher.Event<HandleSession>(name, joined, content, this);
+			PresenceBatcher<RoomRegistry.Room<HandleSession>, HandleSession> batcher = presence;
+			if (batcher != null) batcher.add(to, event);
+			else tellRoom(to, Collections.singletonList(event));
+		}
+
+	 /**
+	 * Looks the command up in the {@linkplain #commands command registry}
+	 * and runs it, or tells the client what is wrong with it.
 	 *
 	 * @param command
-	 *            the whole command, starting with "- "
+	 *            the whole command, starting with "-"
 	 */
 		private void processClientRequest (String command) {
-
-			// Complex commands that require parameters
-			if (command.startsWith("-private "))	{
-				// The client wants to private message someone
-				privateMsg(command);
-
-			} else if (command.startsWith("-block "))	{
-					// The client wants to block someone
-					block(command);
-
-			} else if (command.startsWith("-unblock "))	{
-					// The client wants to unblock someone
-					unBlock(command);
-
-			} else if (command.startsWith("-admin ")) {
-					// The client wants Admin rights
-					verifyAdmin(command);
-
-	    } else if (command.startsWith("-kick ")) {
-					// The client wants to kick someone out of the chat room
-					kick(command);
-
-			}	else	{
-
-				// Simple commands that need no parameters
-				switch (command)	{
-
-					// The client asks for the list of commands
-		    	case "-help":	{
-						showHelp();
-						break;
-					}
-
-					// The client asks how long the server has been running for
-					case "-serverTime":	{
-						showSRun();
-						break;
-					}
-
-					// The client asks how long they've been in the chat room
-					case "-clientTime":	{
-						showCRun();
-						break;
-					}
-
-					// The client asks for the server's IP address
-					case "-address":	{
-						showIP();
-						break;
-					}
-
-					// The client asks how many users are connected to the chat room
-					case "-clientNo":	{
-						showClientNo();
-						break;
-					}
-
-					// The client wants to clear their screen
-					case "-cls":	{
-						clearScreen();
-						break;
-					}
-
-					// The client wants to leave the chat room
-					case "-quit":	{
-						finished = true;
-						break;
-					}
-
-					// The client wants to shut down the server
-					case "-shutdown": {
-		    		shutDown();
-		    		break;
-					}
-
-					// Does not match any command
-					default: {
-						out.println(" " + command + " is not a recognised command.");
-						out.println(" To see a list of the available commands, type '-help'.");
-						out.flush();
-					}
-				}
+			CommandRegistry.Command<HandleSession> match = commands.find(command);
+			if (match == null) {
+				// Does not match any command
+				out.println(" " + command + " is not a recognised command.");
+				out.println(" To see a list of the available commands, type '-help'.");
+				out.flush();
+			} else if (!match.accepts(command)) {
+				// A missing argument, or one the command does not take
+				out.println(" Failed. Invalid format.");
+				out.println(" Valid Format: '" + match.usage + "'.");
+				out.flush();
+			} else {
+				match.run(this, command);
 			}
-			return;
+		}
+
+	 /**
+	  * Leaves the chat room. The connection is closed once the current
+	  * input has been handled.
+	  */
+		void quit() {
+			finished = true;
 		}
 
 	 /**
@@ -514,24 +2396,14 @@ import java.util.concurrent.ConcurrentHashMap;
 			// Formats of each command is on the left hand side.
 			out.println(" -------------------------------------------------------------------------");
 			out.println(" List of commands:");
-			out.println(" -help | Displays a list of commands");
-			out.println(" -serverTime | Displays how long the server has been running for");
-			out.println(" -clientTime | Displays how long you have been in the chat room");
-			out.println(" -address | Displays the server's IP address");
-			out.println(" -clientNo | Displays the number of people in the chat room");
-			out.println(" -private username: message | Send a private message to another user");
-			out.println(" -block username | Block all messages from other user");
-			out.println(" -unblock username | Unblock messages from other user");
-			out.println(" -cls | Clears the screen");
-			out.println(" -quit | Leave the chat room");
-			// If the client is an administrator, he/she has two extra commands
-		 if (admins.contains(name)) {
-	 	 		out.println(" -kick username | Kick a user out of the chat room");
-	 			out.println(" -shutdown |shut down the server.");
-		 } else {
-	 	 		// If not, he can become an administrator with the command "-admin password"
-	 			out.println(" -admin password | Enter the password to become an Administrator");
-		 }
+			// Administrators have extra commands; the others can become one
+			boolean admin = admins.get(id);
+			for (CommandRegistry.Command<HandleSession> command : commands.commands()) {
+				if (command.audience == CommandRegistry.Audience.EVERYONE
+					|| (command.audience == CommandRegistry.Audience.ADMINS) == admin) {
+					out.println(" " + command.usage + " | " + command.description);
+				}
+			}
 		 		out.println(" -------------------------------------------------------------------------");
 	    	out.flush();
 		}
@@ -578,6 +2450,45 @@ import java.util.concurrent.ConcurrentHashMap;
 			out.flush();
 		}
 
+	 /**
+	  * Shows how many messages are waiting to be written to each client,
+	  * which is one of the privileges of Administrator.
+	  */
+		public void showQueues() {
+			if (!admins.get(id)) {
+				out.println(" Sorry, you can't use this command as you're not an Administrator.");
+				out.flush();
+				return;
+			}
+			out.println(" Writes: " + WriteBatcher.report());
+			if (chatLog != null) out.println(" Log: " + chatLog.report());
+			out.println(" Outbound queues (waiting/capacity, peak, dropped):");
+			for (int i = 0, limit = clients.limit(); i < limit; i++) {
+				HandleSession session = clients.get(i);
+				if (session == null) continue;
+				OutboundQueue queue = session.outbound;
+				out.println(" " + session.name + ": " + queue.depth() + "/" + queue.capacity()
+					+ ", peak " + queue.highWater() + ", dropped " + queue.dropped());
+			}
+			out.flush();
+		}
+
+	 /**
+	  * Shows what the server has counted about its own performance, which
+	  * is one of the privileges of Administrator.
+	  */
+		public void showStats() {
+			if (!admins.get(id)) {
+				out.println(" Sorry, you can't use this command as you're not an Administrator.");
+				out.flush();
+				return;
+			}
+			for (String line : metrics.report()) {
+				out.println(line);
+			}
+			out.flush();
+		}
+
 	 /**
 	  * Shows the server's IP address
 		*/
@@ -586,16 +2497,130 @@ import java.util.concurrent.ConcurrentHashMap;
 			out.flush();
 		}
 
+	 /**
+	  * Moves the client to another chat room, creating it if nobody is in
+	  * it yet.
+	  *
+	  * @param roomName
+	  *            the name of the room
+	  */
+		public void joinRoom(String roomName) {
+			if (roomName.length() == 0) {
+				out.println(" Failed. Invalid format.");
+				out.println(" Valid Format: '-join room'.");
+				out.flush();
+				return;
+			}
+			if (roomName.indexOf('\n') >= 0 || roomName.indexOf('\r') >= 0) {
+				// Only possible with the binary protocol
+				out.println(" Sorry, a room name cannot contain line breaks.");
+				out.flush();
+				return;
+			}
+			RoomRegistry.Room<HandleSession> old = room;
+			if (roomName.equals(old.name)) {
+				out.println(" You are already in " + roomName + ".");
+				out.flush();
+				return;
+			}
+			rooms.leave(old, this);
+			announce(old, false, name + " has moved to " + roomName + ".");
+			room = rooms.join(roomName, this);
+			if (closed.get()) {
+				// The connection was closed while moving; it left the old room
+				rooms.leave(room, this);
+				return;
+			}
+			int size = room.size();
+			out.println(" You are now in " + roomName + ". There " + (size == 1
+				? "is 1 person" : "are " + size + " people") + " here.");
+			out.flush();
+			announce(room, true, name + " has joined " + roomName + ".");
+			replay(replayOnJoin);
+		}
+
+	 /**
+	  * Takes the client back to the lobby.
+	  */
+		public void leaveRoom() {
+			if (room.name.equals(RoomRegistry.LOBBY)) {
+				out.println(" You are already in the " + RoomRegistry.LOBBY + ".");
+				out.flush();
+			}
+			else joinRoom(RoomRegistry.LOBBY);
+		}
+
+	 /**
+	  * Shows the chat rooms and how many people are in each.
+	  */
+		public void showRooms() {
+			out.println(" Chat rooms:");
+			for (RoomRegistry.Room<HandleSession> r : rooms.list()) {
+				int size = r.size();
+				out.println(" " + r.name + " (" + size + (size == 1 ? " person)" : " people)")
+					+ (r == room ? " <- you are here" : ""));
+			}
+			out.flush();
+		}
+
+	 /**
+	  * Shows the latest messages in the client's room.
+	  *
+	  * @param argument
+	  *            how many messages to show
+	  */
+		public void showHistory(String argument) {
+			int count;
+			try {
+				count = Integer.parseInt(argument.trim());
+			} catch (NumberFormatException e) {
+				count = 0;
+			}
+			if (count <= 0) {
+				out.println(" Failed. Invalid format.");
+				out.println(" Valid Format: '-history count', where count is a positive number.");
+				out.flush();
+			} else if (!replay(count)) {
+				out.println(" There are no messages to show.");
+				out.flush();
+			}
+		}
+
+	 /**
+	  * Sends the client the latest messages in its room, leaving out those
+	  * from people it has blocked. They are copied from the history as they
+	  * were encoded and queued as one message, so they go out in one write.
+	  *
+	  * @param count
+	  *            the most messages to send
+	  * @return false if there were none
+	  */
+		private boolean replay(int count) {
+			if (history == null || count <= 0) return false;
+			ByteBuffer messages = history.recent(room.name, count, new IntPredicate() {
+				@Override
+				public boolean test(int sender) {
+					return blockList.isBlocked(id, sender);
+				}
+			}, binary);
+			if (messages == null) return false;
+			out.flush();
+			deliver(messages);
+			return true;
+		}
+
 	 /**
 		* Shoes the number of people who are currently connected to
 		* the chat room.
 		*/
 		public void showClientNo() {
-			if (clients.size() == 1)	{
+			// In a cluster, the people on the other servers count too
+			int count = clients.size() + (federation == null ? 0 : federation.remoteUserCount());
+			if (count == 1)	{
 				out.println(" There is 1 person currently in the chat room.");
 			}
 			else	{
-	    	out.println(" There are " + clients.size() + " people currently in the chat room.");
+	    	out.println(" There are " + count + " people currently in the chat room.");
 			}
 			out.flush();
 		}
@@ -608,47 +2633,84 @@ import java.util.concurrent.ConcurrentHashMap;
 	* The message is only visible to the receiver and the sender.
 	* </p>
 	*
-	* @param command
-  *            the whole command, "-private name: message"
+	* @param argument
+  *            the receiver's name and the message, "name: message"
+	*/
+	public void privateMsg(String argument) {
+			int colon = argument.indexOf(':');
+			if (colon < 0) {
+				// If the command is not in the correct format
+				out.println(" Failed. Invalid format.");
+				out.println(" Valid Format: '-private name: message'.");
+				out.flush();
+				return;
+			}
+			// The name of the target receiver, then the message to be sent
+			sendPrivate(argument.substring(0, colon), argument.substring(colon + 1).trim());
+	}
+
+ /**
+	* Sends a private message, unless the receiver cannot get it.
+	*
+	* @param receiver
+	*            the name of the receiver
+	* @param message
+	*            the message
 	*/
-	public void privateMsg(String command) {
-	    try {
-				// Gets the name of the target receiver
-				String receiver = command.substring(9,command.indexOf(":"));
-				// Gets the message to be sent
-				String message = command.substring(command.indexOf(":")+1).trim();
-				if (!blockList.containsKey(receiver)) {
+	private void sendPrivate(String receiver, String message) {
+				HandleSession target = clients.find(receiver);
+				if (target == null) {
+					if (federation != null && federation.sendPrivate(receiver, name, privateLine(message))) {
+						// The receiver is on another server
+						out.println(" You've sent a private message to " + receiver + ".");
+					} else {
 		    	// The target client does not exist
 		    	out.println(" Failed. Cannot find a user named " + receiver + ".");
+					}
 					out.flush();
 				} else if (receiver.equals(name)) {
 		    	// Cannot send a private message to oneself
 		    	out.println(" You cannot send a private message to yourself!");
 					out.flush();
 				} else {
-		    	if (blockList.get(receiver).contains(name)) {
+		    	if (blockList.isBlocked(target.id, id)) {
 						// If the client has been blocked by the target receiver
 						out.println(" Failed. You have been blocked by " + receiver + ".");
 						out.flush();
 		    	} else {
-						// Creates a private message with a fixed format
-						String finalMsg = " " + getCurrentTime() + name + ": " + message + " [Private Message]";
 						// Sends it to the target receiver
-						clients.get(receiver).println(finalMsg);
-						clients.get(receiver).flush();
+						String line = privateLine(message);
+						target.send(Frame.PRIVATE, line);
+						record(ChatLog.PRIVATE, receiver + "\n" + line);
 						// Gives a feedback to the client(sender)
 						out.println(" You've sent a private message to " + receiver + ".");
 						out.flush();
 		    	}
 				}
-	    	} catch (Exception e) {
-					// If the command is not in the correct format
-					out.println(" Failed. Invalid format.");
-					out.println(" Valid Format: '-private name: message'.");
-					out.flush();
-	    }
 	}
 
+	 /**
+	  * Formats a private message from this client.
+	  *
+	  * @param message
+	  *            the message
+	  * @return the message as the receiver will see it
+	  */
+		private String privateLine(String message) {
+			return " " + getCurrentTime() + name + ": " + message + " [Private Message]";
+		}
+
+	 /**
+	  * Has this client blocked a user on another server?
+	  *
+	  * @param remoteName
+	  *            the user's name
+	  * @return true if messages from them are not to be delivered
+	  */
+		boolean hasBlocked(String remoteName) {
+			return !remoteBlocks.isEmpty() && remoteBlocks.contains(remoteName);
+		}
+
 	 /**
 	 	* <p>
 	 	* Blocks all the messages from another client with his/her name.
@@ -656,13 +2718,10 @@ import java.util.concurrent.ConcurrentHashMap;
 	 	* The client can also {@linkplain #unBlock(String) unblock} another
 	 	* client.
 	 	*
-	 	* @param command
-	 	*            the whole command, '-block name'
+	 	* @param blockName
+	 	*            the name of the client to block
 	 	*/
-		public void block(String command) {
-
-	    // Gets the name which the client wants to block
-	    String blockName = command.substring(7);
+		public void block(String blockName) {
 
 	    if (blockName.equals(name)) {
 				// Cannot not block oneself
@@ -671,9 +2730,15 @@ import java.util.concurrent.ConcurrentHashMap;
 				return;
 	    }
 
-	    if (clients.containsKey(blockName)) {
-				// Adds the name to the current client's block list
-				blockList.get(name).add(blockName);
+	    HandleSession target = clients.find(blockName);
+	    if (target != null) {
+				// Adds the user to the current client's block list
+				blockList.block(id, target.id);
+				out.println(" You will no longer receive messages from " + blockName + ".");
+				out.flush();
+	    } else if (federation != null && federation.isRemoteUser(blockName)) {
+				// On another server, which sends the name with every message
+				remoteBlocks.add(blockName);
 				out.println(" You will no longer receive messages from " + blockName + ".");
 				out.flush();
 	    } else {
@@ -686,17 +2751,19 @@ import java.util.concurrent.ConcurrentHashMap;
 		/**
  		 * Unblocks another client (receive messages from him/her again).
  	 	 *
- 	 	 * @param command
- 	 	 *            the whole command, '-unblock name'
+		 * @param unBlockName
+ 	 	 *            the name of the client to unblock
  	 	 */
-		 public void unBlock(String command) {
+		 public void unBlock(String unBlockName) {
 
-			 // Gets the name which the client wants to unblock
-			 String unBlockName = command.substring(9);
-
-			 if (clients.containsKey(unBlockName)) {
-				 // Removes the name from the current client's block list
-				 blockList.get(name).remove(unBlockName);
+			 HandleSession target = clients.find(unBlockName);
+			 if (target != null) {
+				 // Removes the user from the current client's block list
+				 blockList.unblock(id, target.id);
+				 out.println(" You will now receive messages from " + unBlockName + ".");
+				 out.flush();
+			 } else if (remoteBlocks.remove(unBlockName)
+					 || (federation != null && federation.isRemoteUser(unBlockName))) {
 				 out.println(" You will now receive messages from " + unBlockName + ".");
 				 out.flush();
 			 } else {
@@ -717,13 +2784,13 @@ import java.util.concurrent.ConcurrentHashMap;
 		 /**
 	 		* Verifies the password entered by the client.
 	 		*
-	 		* @param command
-	 		*            the whole command, '-admin password'
+	 		* @param password
+	 		*            the password the client entered
 	 		*/
-			public void verifyAdmin(String command) {
-	    	if (command.equals("-admin " + adminPassword)) {
+			public void verifyAdmin(String password) {
+	    	if (password.equals(Integer.toString(adminPassword))) {
 					// Password matches
-					admins.add(name);
+					admins.set(id);
 					out.println(" ---------------------------------------------");
 					out.println(" You are now an Administrator. Congratulations!");
 					out.println(" Enter '-help' to see your extra commands.");
@@ -748,20 +2815,21 @@ import java.util.concurrent.ConcurrentHashMap;
 	 		* become an Administrator}.
 	 		* </p>
 	 		*
-	 		* @param command
-	 		*            the whole command, '-kick name'
+	 		* @param kickedUser
+	 		*            the name of the client to kick out
 	 		*/
-			public void kick(String command) {
-
-	    	// The name to be kicked is after "-kick "
-	    	String kickedUser = command.substring(6);
+			public void kick(String kickedUser) {
 
 	    	// Checks if the client is an Administrator
-	    	if (admins.contains(name)) {
+	    	if (admins.get(id)) {
 
 					// Only the Administrator has the right to kick others
-					PrintWriter target = clients.get(kickedUser);
-					if (target == null) {
+					HandleSession target = clients.find(kickedUser);
+					if (target == null && federation != null && federation.kick(kickedUser, name)) {
+
+		    	// The user is on another server, which checks and tells everybody
+		    	return;
+				} else if (target == null) {
 
 		    	// Targetted client does not exist
 		    	out.println(" Failed. Cannot find a user named " + kickedUser + ".");
@@ -769,7 +2837,7 @@ import java.util.concurrent.ConcurrentHashMap;
 				} else {
 
 		    		// Cannot kick another administrator
-		    		if (admins.contains(kickedUser)) {
+		    		if (admins.get(target.id)) {
 							out.println(" Failed. You cannot kick out another Administrator.");
 							out.flush();
 		    		} else {
@@ -777,8 +2845,7 @@ import java.util.concurrent.ConcurrentHashMap;
 								/*
 			 					 * Sends a signal to the targetted client then
 			 				 	 */
-								 target.println("[Server] [Kicked Out]");
-								 target.flush();
+								 target.kickOut();
 								 broadcast(kickedUser + " has been kicked out of the chat room by " + name, "Server");
 		    	 	}
 				 	}
@@ -793,31 +2860,39 @@ import java.util.concurrent.ConcurrentHashMap;
 	   	* Finishes the client's connection to the server.
 		 	*/
 			public void closeConnection() {
+				if (!closed.compareAndSet(false, true)) return;
+				handshakeOver(false);
+				TimerWheel.Timeout timer = idleTimer;
+				if (timer != null) timer.cancel();
+				String token = resumeToken;
+				if (token != null) resumeTokens.remove(token, this);
 				if (name != null) {
 					// Removes the client from the chat
-					clients.remove(name, out);
+					clients.unregister(id, name);
+					if (federation != null) federation.userLeft(name);
 
-					// Removes his/her block list
-		    	blockList.remove(name);
+					// Removes his/her block list and other users' blocks on him/her
+		    	blockList.removeUser(id);
 
 					// If user is an admin, removes them from the Administrator list
-					admins.remove(name);
+					admins.clear(id);
 
-					// Sends notifications to other clients
-					broadcast(name + " has left the chat room.", "Server");
-				}
-				try	{
-					in.close();
-					if (out != null) {
-						out.flush();
-						out.close();
-					}
-					if (socket != null)	{
-						socket.close();
-					}
-				}	catch (IOException e) {
-						System.err.println(" Closing: " + e.getMessage());
+					// Only now may the session ID be given to somebody else
+					clients.release(id);
+
+					// Takes him/her out of the room and tells the others there
+					RoomRegistry.Room<HandleSession> last = room;
+					if (last != null) {
+						rooms.leave(last, this);
+						announce(last, false, name + " has left the chat room.");
 					}
+				}
+				/*
+				 * The writer sends whatever is still queued and then closes
+				 * the connection
+				 */
+				out.flush();
+				outbound.close();
 				} // End of closeConnection() in the class HandleSession
 
 				/**
@@ -826,25 +2901,29 @@ import java.util.concurrent.ConcurrentHashMap;
 				 * To use it, the client needs to first {@linkplain #verifyAdmin(String)
 				 * become an Administrator}.
 				 * </p>
+				 * The clients are {@linkplain Server#drain(String, HandleSession)
+				 * drained} on a thread of its own, as this may be an event loop
+				 * which has messages of its own to write, and then the server
+				 * exits.
 				 */
-				 public synchronized void shutDown() {
+				 public void shutDown() {
 
 					// Checks if the client is an Administrator
-					if (admins.contains(name))	{
-						try {
-
-							// Sends notification to the other clients in the chat room
-							broadcast(" Uh-oh! The server has been shut down by " + name, "Server");
-
-							// Sends a feedback message to the client who made the request
-							out.println(" You have shut down the server."); out.flush();
-							ss.close();
-
-						}	catch (Exception e) {
-								System.err.println(" There is a problem shutting down the server: " + e.getMessage());
-						} finally {
-								System.exit(0);
+					if (admins.get(id))	{
+						if (shuttingDown.get()) {
+							out.println(" The server is already shutting down."); out.flush();
+							return;
 						}
+						// Sends a feedback message to the client who made the request
+						out.println(" You have shut down the server."); out.flush();
+						final String notice = " Uh-oh! The server has been shut down by " + name;
+						new Thread(new Runnable() {
+							@Override
+							public void run() {
+								// Only this server's clients are told: the others carry on
+								if (drain(notice, HandleSession.this)) System.exit(0);
+							}
+						}, "shutdown").start();
 					} else	{
 
 							// If not an admin, abort the action
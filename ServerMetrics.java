@@ -0,0 +1,521 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * ****************************
+ * Filename: ServerMetrics.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Counts what the server does, so that its performance can be watched
+  * while it runs: over JMX (see {@link ServerMetricsMXBean}) and with the
+  * Administrators' "-stats" command.
+  * </p>
+  * <p>
+  * Everything counted on the way through is a {@link LongAdder} increment
+  * or a {@link LatencyHistogram} record, so sessions never wait for each
+  * other to count. What can be worked out when it is asked for, such as
+  * the outbound queues' backlog, is not counted at all. The messages and
+  * bytes written are counted by {@link WriteBatcher}, once per system call,
+  * and the time each command takes by {@link CommandRegistry}.
+  * </p>
+  * A thread samples the counters every second, and the rates are worked out
+  * over the last ten samples.
+  *
+  * @author Jamil Triaa
+  */
+	final class ServerMetrics implements ServerMetricsMXBean {
+
+	 /**
+	  * What the metrics need to know about the sessions.
+	  */
+		interface Sessions {
+
+		 /**
+		  * Gets one more than the highest session ID in use.
+		  */
+			int limit();
+
+		 /**
+		  * Gets a session's name, or null if there is no session with the ID.
+		  */
+			String name(int id);
+
+		 /**
+		  * Gets a session's outbound queue, or null if there is no session
+		  * with the ID.
+		  */
+			OutboundQueue queue(int id);
+		}
+
+	 /**
+	  * The number of one-second samples the rates are worked out over.
+	  */
+		private static final int WINDOW = 10;
+
+	 /**
+	  * The counters sampled, in this order.
+	  */
+		private static final int MESSAGES_IN = 0, BYTES_IN = 1, MESSAGES_OUT = 2, BYTES_OUT = 3, ACCEPTED = 4;
+
+		private final LongAdder messagesIn = new LongAdder();
+
+		private final LongAdder bytesIn = new LongAdder();
+
+		private final LongAdder accepted = new LongAdder();
+
+		private final LongAdder throttled = new LongAdder();
+
+		private final LongAdder timedOut = new LongAdder();
+
+		private final LongAdder resumed = new LongAdder();
+
+	 /**
+	  * People coming into and going out of rooms, and the notices they were
+	  * told to the rooms in.
+	  */
+		private final LongAdder presenceEvents = new LongAdder(), presenceNotices = new LongAdder();
+
+		private final LatencyHistogram fanOut = new LatencyHistogram();
+
+	 /**
+	  * Connections closed straight away because too many others were still
+	  * logging in.
+	  */
+		private final LongAdder turnedAway = new LongAdder();
+
+	 /**
+	  * How long from a connection being accepted to its client logging in.
+	  */
+		private final LatencyHistogram handshakes = new LatencyHistogram();
+
+		private final CommandRegistry<?> commands;
+
+		private final Sessions sessions;
+
+	 /**
+	  * The latest samples, a ring of {@link #WINDOW} + 1: the time and the
+	  * counters.
+	  */
+		private final long[][] samples = new long[WINDOW + 1][6];
+
+	 /**
+	  * The number of samples taken.
+	  */
+		private long sampled = 0;
+
+	 /**
+	  * Guards the samples.
+	  */
+		private final ReentrantLock lock = new ReentrantLock();
+
+	 /**
+	  * Creates the metrics.
+	  *
+	  * @param commands
+	  *						the commands, whose times are reported
+	  * @param sessions
+	  *						the sessions, whose queues are reported
+	  */
+		ServerMetrics(CommandRegistry<?> commands, Sessions sessions) {
+			this.commands = commands;
+			this.sessions = sessions;
+		}
+
+	 /**
+	  * Starts sampling the counters and publishes the metrics over JMX.
+	  *
+	  * @param port
+	  *						the port the server listens on, to tell servers on
+	  *						the same machine apart
+	  */
+		void start(int port) {
+			Thread sampler = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						sample();
+						try {
+							Thread.sleep(1000);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}, "metrics");
+			sampler.setDaemon(true);
+			sampler.start();
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("ChatRoom:type=Server,port=" + port));
+			} catch (JMException e) {
+				System.err.println(" Cannot publish the metrics over JMX: " + e.getMessage());
+			}
+		}
+
+	 /**
+	  * Counts a message (a line or a frame) from a client.
+	  */
+		void messageIn() {
+			messagesIn.increment();
+		}
+
+	 /**
+	  * Counts bytes read from a client.
+	  *
+	  * @param count
+	  *						the number of bytes
+	  */
+		void bytesIn(int count) {
+			bytesIn.add(count);
+		}
+
+	 /**
+	  * Counts a connection accepted.
+	  */
+		void accepted() {
+			accepted.increment();
+		}
+
+	 /**
+	  * Counts a connection turned away because the server was busy.
+	  */
+		void turnedAway() {
+			turnedAway.increment();
+		}
+
+	 /**
+	  * Records how long a client took from being accepted to logging in.
+	  *
+	  * @param nanos
+	  *						the time it took
+	  */
+		void handshake(long nanos) {
+			handshakes.record(nanos);
+		}
+
+	 /**
+	  * Counts a message dropped for going over a rate limit.
+	  */
+		void throttled() {
+			throttled.increment();
+		}
+
+	 /**
+	  * Counts a client disconnected for being silent too long.
+	  */
+		void timedOut() {
+			timedOut.increment();
+		}
+
+	 /**
+	  * Counts a session resumed by its client on a new connection.
+	  */
+		void resumed() {
+			resumed.increment();
+		}
+
+	 /**
+	  * Counts a notice to a room about people coming and going.
+	  *
+	  * @param events
+	  *						how many came or went
+	  */
+		void presence(int events) {
+			presenceEvents.add(events);
+			presenceNotices.increment();
+		}
+
+	 /**
+	  * Records how long a broadcast took to queue.
+	  *
+	  * @param nanos
+	  *						the time taken
+	  */
+		void fanOut(long nanos) {
+			fanOut.record(nanos);
+		}
+
+	 /**
+	  * Takes a sample of the counters.
+	  */
+		private void sample() {
+			lock.lock();
+			try {
+				long[] sample = samples[(int) (sampled++ % samples.length)];
+				sample[0] = System.nanoTime();
+				sample[MESSAGES_IN + 1] = messagesIn.sum();
+				sample[BYTES_IN + 1] = bytesIn.sum();
+				sample[MESSAGES_OUT + 1] = WriteBatcher.messagesWritten();
+				sample[BYTES_OUT + 1] = WriteBatcher.bytesWritten();
+				sample[ACCEPTED + 1] = accepted.sum();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Works out a counter's rate over the samples, which is 0 until there
+	  * are two of them.
+	  */
+		private double rate(int counter) {
+			lock.lock();
+			try {
+				if (sampled < 2) return 0;
+				long[] newest = samples[(int) ((sampled - 1) % samples.length)];
+				long[] oldest = samples[(int) (Math.max(0, sampled - samples.length) % samples.length)];
+				long nanos = newest[0] - oldest[0];
+				return nanos <= 0 ? 0 : (newest[counter + 1] - oldest[counter + 1]) * 1e9 / nanos;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public long getMessagesIn() {
+			return messagesIn.sum();
+		}
+
+		@Override
+		public long getBytesIn() {
+			return bytesIn.sum();
+		}
+
+		@Override
+		public long getMessagesOut() {
+			return WriteBatcher.messagesWritten();
+		}
+
+		@Override
+		public long getBytesOut() {
+			return WriteBatcher.bytesWritten();
+		}
+
+		@Override
+		public long getConnectionsAccepted() {
+			return accepted.sum();
+		}
+
+		@Override
+		public double getMessagesInPerSecond() {
+			return rate(MESSAGES_IN);
+		}
+
+		@Override
+		public double getBytesInPerSecond() {
+			return rate(BYTES_IN);
+		}
+
+		@Override
+		public double getMessagesOutPerSecond() {
+			return rate(MESSAGES_OUT);
+		}
+
+		@Override
+		public double getBytesOutPerSecond() {
+			return rate(BYTES_OUT);
+		}
+
+		@Override
+		public double getAcceptsPerSecond() {
+			return rate(ACCEPTED);
+		}
+
+		@Override
+		public long getThrottledMessages() {
+			return throttled.sum();
+		}
+
+		@Override
+		public long getSessionsTimedOut() {
+			return timedOut.sum();
+		}
+
+		@Override
+		public long getSessionsResumed() {
+			return resumed.sum();
+		}
+
+		@Override
+		public long getPresenceEvents() {
+			return presenceEvents.sum();
+		}
+
+		@Override
+		public long getPresenceNotices() {
+			return presenceNotices.sum();
+		}
+
+		@Override
+		public int getSessions() {
+			int count = 0;
+			for (int i = 0, limit = sessions.limit(); i < limit; i++) {
+				if (sessions.queue(i) != null) count++;
+			}
+			return count;
+		}
+
+		@Override
+		public long getOutboundBacklog() {
+			long total = 0;
+			for (int i = 0, limit = sessions.limit(); i < limit; i++) {
+				OutboundQueue queue = sessions.queue(i);
+				if (queue != null) total += queue.depth();
+			}
+			return total;
+		}
+
+		@Override
+		public int getLargestOutboundBacklog() {
+			int largest = 0;
+			for (int i = 0, limit = sessions.limit(); i < limit; i++) {
+				OutboundQueue queue = sessions.queue(i);
+				if (queue != null) largest = Math.max(largest, queue.depth());
+			}
+			return largest;
+		}
+
+		@Override
+		public long getBroadcasts() {
+			return fanOut.count();
+		}
+
+		@Override
+		public long getFanOutP50Nanos() {
+			return fanOut.percentile(0.5);
+		}
+
+		@Override
+		public long getFanOutP99Nanos() {
+			return fanOut.percentile(0.99);
+		}
+
+		@Override
+		public long getFanOutMaxNanos() {
+			return fanOut.max();
+		}
+
+		@Override
+		public long getConnectionsTurnedAway() {
+			return turnedAway.sum();
+		}
+
+		@Override
+		public long getHandshakes() {
+			return handshakes.count();
+		}
+
+		@Override
+		public long getHandshakeP50Nanos() {
+			return handshakes.percentile(0.5);
+		}
+
+		@Override
+		public long getHandshakeP99Nanos() {
+			return handshakes.percentile(0.99);
+		}
+
+		@Override
+		public Map<String, Long> getCommandCounts() {
+			Map<String, Long> counts = new LinkedHashMap<String, Long>();
+			for (CommandRegistry.Command<?> command : commands.commands()) {
+				counts.put(command.name, command.time.count());
+			}
+			return counts;
+		}
+
+		@Override
+		public Map<String, Long> getCommandP99Nanos() {
+			Map<String, Long> times = new LinkedHashMap<String, Long>();
+			for (CommandRegistry.Command<?> command : commands.commands()) {
+				times.put(command.name, command.time.percentile(0.99));
+			}
+			return times;
+		}
+
+		@Override
+		public double getCompressionRatio() {
+			return Compression.ratio();
+		}
+
+		@Override
+		public double getCompressionNanosPerPayload() {
+			return Compression.nanosPerPayload();
+		}
+
+		@Override
+		public long getCompressionBytesSaved() {
+			return Compression.bytesSaved();
+		}
+
+	 /**
+	  * Describes the metrics for the Administrators, a line at a time.
+	  *
+	  * @return the lines of the report
+	  */
+		String[] report() {
+			long backlog = 0;
+			int largest = 0;
+			int count = 0;
+			String fullest = null;
+			for (int i = 0, limit = sessions.limit(); i < limit; i++) {
+				OutboundQueue queue = sessions.queue(i);
+				if (queue == null) continue;
+				count++;
+				int depth = queue.depth();
+				backlog += depth;
+				if (depth > largest) {
+					largest = depth;
+					fullest = sessions.name(i);
+				}
+			}
+			StringBuilder times = new StringBuilder(" Commands (runs, mean, p99 in us):");
+			for (CommandRegistry.Command<?> command : commands.commands()) {
+				LatencyHistogram time = command.time;
+				if (time.count() == 0) continue;
+				times.append(' ').append(command.name).append(' ').append(time.count()).append(", ")
+					.append(micros(time.mean())).append(", ").append(micros(time.percentile(0.99))).append(';');
+			}
+			return new String[] {
+				" In: " + getMessagesIn() + " messages (" + perSecond(rate(MESSAGES_IN)) + "), "
+					+ getBytesIn() + " bytes (" + perSecond(rate(BYTES_IN)) + ")",
+				" Out: " + getMessagesOut() + " messages (" + perSecond(rate(MESSAGES_OUT)) + "), "
+					+ getBytesOut() + " bytes (" + perSecond(rate(BYTES_OUT)) + ")",
+				" Connections accepted: " + getConnectionsAccepted() + " (" + perSecond(rate(ACCEPTED)) + "), "
+					+ turnedAway.sum() + " turned away while busy",
+				" Logins: " + handshakes.count() + ", from accept p50 " + micros(handshakes.percentile(0.5))
+					+ " us, p99 " + micros(handshakes.percentile(0.99)) + " us",
+				" Messages dropped by the rate limits: " + throttled.sum(),
+				" Clients disconnected for silence: " + timedOut.sum(),
+				" Sessions resumed after a dropped connection: " + resumed.sum(),
+				" People coming and going: " + presenceEvents.sum() + ", told in "
+					+ presenceNotices.sum() + " notices",
+				" Sessions: " + count + ", " + backlog + " messages waiting"
+					+ (fullest == null ? "" : ", most for " + fullest + " (" + largest + ")"),
+				" Broadcasts: " + fanOut.count() + ", fan-out p50 " + micros(fanOut.percentile(0.5))
+					+ " us, p99 " + micros(fanOut.percentile(0.99)) + " us, max " + micros(fanOut.max()) + " us",
+				times.toString(),
+				" Compression: " + Compression.report()
+			};
+		}
+
+		private static String perSecond(double rate) {
+			return String.format(Locale.ROOT, "%.1f/s", rate);
+		}
+
+		private static String micros(double nanos) {
+			return String.format(Locale.ROOT, "%.1f", nanos / 1000);
+		}
+
+	} // End of the class ServerMetrics
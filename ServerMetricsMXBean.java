@@ -0,0 +1,132 @@
+import java.util.Map;
+
+/*
+ * ****************************
+ * Filename: ServerMetricsMXBean.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * What the server publishes about its own performance over JMX, under
+  * "ChatRoom:type=Server,port=N". Rates are per second over the last ten
+  * seconds; times are in nanoseconds.
+  *
+  * @author Jamil Triaa
+  */
+	public interface ServerMetricsMXBean {
+
+		long getMessagesIn();
+
+		long getBytesIn();
+
+	 /**
+	  * Messages written to clients and to the other servers of a cluster.
+	  */
+		long getMessagesOut();
+
+		long getBytesOut();
+
+		long getConnectionsAccepted();
+
+		double getMessagesInPerSecond();
+
+		double getBytesInPerSecond();
+
+		double getMessagesOutPerSecond();
+
+		double getBytesOutPerSecond();
+
+		double getAcceptsPerSecond();
+
+	 /**
+	  * Messages from clients dropped for going over a rate limit.
+	  */
+		long getThrottledMessages();
+
+	 /**
+	  * Clients disconnected for being silent too long.
+	  */
+		long getSessionsTimedOut();
+
+	 /**
+	  * Sessions resumed by their clients after a dropped connection.
+	  */
+		long getSessionsResumed();
+
+	 /**
+	  * People who came into or went out of a room, after those who came
+	  * and went within one window had cancelled out.
+	  */
+		long getPresenceEvents();
+
+	 /**
+	  * The notices the rooms were told about them in.
+	  */
+		long getPresenceNotices();
+
+		int getSessions();
+
+	 /**
+	  * The messages waiting in all the sessions' outbound queues.
+	  */
+		long getOutboundBacklog();
+
+	 /**
+	  * The messages waiting in the fullest outbound queue.
+	  */
+		int getLargestOutboundBacklog();
+
+	 /**
+	  * The number of chat messages broadcast to a room.
+	  */
+		long getBroadcasts();
+
+	 /**
+	  * How long it takes to queue a chat message for everybody in its room.
+	  */
+		long getFanOutP50Nanos();
+
+		long getFanOutP99Nanos();
+
+		long getFanOutMaxNanos();
+
+	 /**
+	  * Connections closed straight away because too many clients were
+	  * already logging in.
+	  */
+		long getConnectionsTurnedAway();
+
+	 /**
+	  * Clients which logged in (or resumed their session), and how long it
+	  * took them from their connection being accepted.
+	  */
+		long getHandshakes();
+
+		long getHandshakeP50Nanos();
+
+		long getHandshakeP99Nanos();
+
+	 /**
+	  * How many times each command has been run, by name.
+	  */
+		Map<String, Long> getCommandCounts();
+
+		Map<String, Long> getCommandP99Nanos();
+
+	 /**
+	  * Compressed payloads' size over their size before, for the clients
+	  * which asked for compression.
+	  */
+		double getCompressionRatio();
+
+		double getCompressionNanosPerPayload();
+
+	 /**
+	  * The bytes not written because clients were sent compressed frames.
+	  */
+		long getCompressionBytesSaved();
+
+	} // End of the interface ServerMetricsMXBean
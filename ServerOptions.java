@@ -0,0 +1,198 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * ****************************
+ * Filename: ServerOptions.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * The start-up options of the {@link Server}, given on the command line in
+  * the form {@code --name=value} (or just {@code --name} for a switch).
+  * </p>
+  * For example: {@code java Server --engine=nio --eventLoops=4}. The
+  * options remember which of them were asked for, so that a program can
+  * {@linkplain #checkAllRead() refuse} one it does not know, such as a
+  * misspelt one, rather than silently ignore it.
+  *
+  * @author Jamil Triaa
+  */
+	class ServerOptions {
+
+	 /**
+	  * The option names (without the leading "--") and their values.
+	  */
+		private final Map<String, String> values = new HashMap<String, String>();
+
+	 /**
+	  * The names of the options the program has asked for, given or not.
+	  */
+		private final Set<String> read = new HashSet<String>();
+
+	 /**
+	  * Parses the command line arguments.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @throws IllegalArgumentException
+	  *						if an argument is not in the form --name=value
+	  */
+		ServerOptions(String[] args) {
+			for (String arg : args) {
+				if (!arg.startsWith("--") || arg.length() == 2) {
+					throw new IllegalArgumentException("Unrecognised option: " + arg);
+				}
+				int equals = arg.indexOf('=');
+				if (equals < 0) {
+					// A switch such as "--verbose"
+					values.put(arg.substring(2), "true");
+				} else {
+					values.put(arg.substring(2, equals), arg.substring(equals + 1));
+				}
+			}
+		}
+
+	 /**
+	  * Gets a text option.
+	  *
+	  * @param name
+	  *						the option name
+	  * @param defaultValue
+	  *						returned when the option was not given
+	  * @return the value of the option
+	  */
+		String getString(String name, String defaultValue) {
+			read.add(name);
+			String value = values.get(name);
+			return value == null ? defaultValue : value;
+		}
+
+	 /**
+	  * Gets a whole number option which may be any int.
+	  *
+	  * @param name
+	  *						the option name
+	  * @param defaultValue
+	  *						returned when the option was not given
+	  * @return the value of the option
+	  * @throws IllegalArgumentException
+	  *						if the value is not a number, or does not fit in an
+	  *						int
+	  */
+		int getInt(String name, int defaultValue) {
+			return getInt(name, defaultValue, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		}
+
+	 /**
+	  * Gets a whole number option, which must be within a range.
+	  *
+	  * @param name
+	  *						the option name
+	  * @param defaultValue
+	  *						returned when the option was not given
+	  * @param min
+	  *						the smallest value allowed
+	  * @param max
+	  *						the largest value allowed
+	  * @return the value of the option
+	  * @throws IllegalArgumentException
+	  *						if the value is not a number, or is out of range
+	  */
+		int getInt(String name, int defaultValue, int min, int max) {
+			return (int) getLong(name, defaultValue, min, max);
+		}
+
+	 /**
+	  * Gets a whole number option which may be any long.
+	  *
+	  * @param name
+	  *						the option name
+	  * @param defaultValue
+	  *						returned when the option was not given
+	  * @return the value of the option
+	  * @throws IllegalArgumentException
+	  *						if the value is not a number
+	  */
+		long getLong(String name, long defaultValue) {
+			return getLong(name, defaultValue, Long.MIN_VALUE, Long.MAX_VALUE);
+		}
+
+	 /**
+	  * Gets a whole number option, which must be within a range.
+	  *
+	  * @param name
+	  *						the option name
+	  * @param defaultValue
+	  *						returned when the option was not given
+	  * @param min
+	  *						the smallest value allowed
+	  * @param max
+	  *						the largest value allowed
+	  * @return the value of the option
+	  * @throws IllegalArgumentException
+	  *						if the value is not a number, or is out of range
+	  */
+		long getLong(String name, long defaultValue, long min, long max) {
+			read.add(name);
+			String value = values.get(name);
+			if (value == null) return defaultValue;
+			long number;
+			try {
+				number = Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("--" + name + " must be a number, not '" + value + "'");
+			}
+			if (number < min || number > max) {
+				throw new IllegalArgumentException("--" + name + " must be between " + min + " and " + max
+					+ ", not " + number);
+			}
+			return number;
+		}
+
+	 /**
+	  * Gets an on/off option.
+	  *
+	  * @param name
+	  *						the option name
+	  * @param defaultValue
+	  *						returned when the option was not given
+	  * @return the value of the option
+	  * @throws IllegalArgumentException
+	  *						if the value is neither true nor false
+	  */
+		boolean getBoolean(String name, boolean defaultValue) {
+			read.add(name);
+			String value = values.get(name);
+			if (value == null) return defaultValue;
+			if (value.trim().equalsIgnoreCase("true")) return true;
+			if (value.trim().equalsIgnoreCase("false")) return false;
+			throw new IllegalArgumentException("--" + name + " must be true or false, not '" + value + "'");
+		}
+
+	 /**
+	  * Refuses any option given which the program never asked for. Called
+	  * once every option has been read.
+	  *
+	  * @throws IllegalArgumentException
+	  *						naming the options nothing reads
+	  */
+		void checkAllRead() {
+			Set<String> unknown = new TreeSet<String>(values.keySet());
+			unknown.removeAll(read);
+			if (unknown.isEmpty()) return;
+			StringBuilder names = new StringBuilder();
+			for (String name : unknown) {
+				names.append(names.length() == 0 ? "" : ", ").append("--").append(name);
+			}
+			throw new IllegalArgumentException("Unknown option" + (unknown.size() == 1 ? ": " : "s: ") + names);
+		}
+
+	} // End of the class ServerOptions
@@ -0,0 +1,188 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * ****************************
+ * Filename: SessionRegistry.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * The users in the chat room, each with a small integer session ID.
+  * </p>
+  * <p>
+  * A username is turned into an ID once, when the user logs in. From then on
+  * broadcasts, block checks and Administrator checks work with the ID: the
+  * sessions are kept in an array indexed by ID, and the sets of IDs are
+  * {@link IntBitSet}s. Names are only looked up when a command names a user.
+  * </p>
+  * IDs of users who have left are given out again, so the array stays as
+  * small as the largest number of users online at once.
+  *
+  * @param <S>
+  *						the session type
+  * @author Jamil Triaa
+  */
+	final class SessionRegistry<S> {
+
+	 /**
+	  * Each online user's name and session ID.
+	  */
+		private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	 /**
+	  * The sessions, indexed by session ID. Replaced by a bigger copy when
+	  * it is full.
+	  */
+		private volatile AtomicReferenceArray<S> slots = new AtomicReferenceArray<S>(64);
+
+	 /**
+	  * One more than the highest ID given out so far.
+	  */
+		private volatile int limit = 0;
+
+	 /**
+	  * The number of users online.
+	  */
+		private volatile int size = 0;
+
+	 /**
+	  * IDs which are free to be given out again.
+	  */
+		private int[] freeIds = new int[16];
+
+	 /**
+	  * The number of entries in {@link #freeIds}.
+	  */
+		private int freeCount = 0;
+
+	 /**
+	  * Serialises logins and logouts. Readers never take it.
+	  */
+		private final ReentrantLock lock = new ReentrantLock();
+
+	 /**
+	  * Registers a user, unless the name is already taken.
+	  *
+	  * @param name
+	  *						the username
+	  * @param session
+	  *						the user's session
+	  * @return the user's session ID, or -1 if the name is taken
+	  */
+		int register(String name, S session) {
+			lock.lock();
+			try {
+				if (ids.containsKey(name)) return -1;
+				int id = freeCount > 0 ? freeIds[--freeCount] : limit;
+				AtomicReferenceArray<S> s = slots;
+				if (id >= s.length()) {
+					AtomicReferenceArray<S> bigger = new AtomicReferenceArray<S>(s.length() * 2);
+					for (int i = 0; i < s.length(); i++) {
+						bigger.set(i, s.get(i));
+					}
+					slots = s = bigger;
+				}
+				s.set(id, session);
+				ids.put(name, id);
+				if (id == limit) limit = id + 1;
+				size++;
+				return id;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * <p>
+	  * Takes a user out of the chat room. Their name can be used again
+	  * straight away.
+	  * </p>
+	  * Their ID is not given out again until {@link #release(int)} is
+	  * called, so that anything else keyed by the ID can be cleared first.
+	  *
+	  * @param id
+	  *						the user's session ID
+	  * @param name
+	  *						the username
+	  */
+		void unregister(int id, String name) {
+			lock.lock();
+			try {
+				if (ids.remove(name, id)) {
+					slots.set(id, null);
+					size--;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Lets an unregistered user's ID be given out again.
+	  *
+	  * @param id
+	  *						the session ID
+	  */
+		void release(int id) {
+			lock.lock();
+			try {
+				if (freeCount == freeIds.length) {
+					freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+				}
+				freeIds[freeCount++] = id;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	 /**
+	  * Gets a session by ID.
+	  *
+	  * @param id
+	  *						a session ID
+	  * @return the session, or null if nobody has that ID
+	  */
+		S get(int id) {
+			AtomicReferenceArray<S> s = slots;
+			return id < s.length() ? s.get(id) : null;
+		}
+
+	 /**
+	  * Finds an online user's session by name.
+	  *
+	  * @param name
+	  *						the username
+	  * @return the session, or null if nobody of that name is online
+	  */
+		S find(String name) {
+			Integer id = ids.get(name);
+			return id == null ? null : get(id);
+		}
+
+	 /**
+	  * Gets the upper bound for going through all the sessions with
+	  * {@link #get(int)}: every ID in use is below it.
+	  *
+	  * @return one more than the highest ID given out so far
+	  */
+		int limit() {
+			return limit;
+		}
+
+	 /**
+	  * Gets the number of users online.
+	  *
+	  * @return the number of registered sessions
+	  */
+		int size() {
+			return size;
+		}
+
+	} // End of the class SessionRegistry
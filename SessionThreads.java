@@ -0,0 +1,108 @@
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * ****************************
+ * Filename: SessionThreads.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Chooses what kind of thread each blocking {@link Server.HandleSession}
+  * runs on.
+  * </p>
+  * <ul>
+  * <li>'thread': a new platform thread per session (the original
+  * behaviour).</li>
+  * <li>'virtual': a new virtual thread per session. The session code still
+  * blocks in readLine() and println(), but a blocked virtual thread only
+  * costs a small heap object instead of a whole OS thread and stack.</li>
+  * </ul>
+  *
+  * @author Jamil Triaa
+  */
+	class SessionThreads {
+
+	 /**
+	  * Gets the executor for the given engine.
+	  *
+	  * @param engine
+	  *						'thread' or 'virtual'
+	  * @return an executor which starts one new thread per session
+	  * @throws IllegalArgumentException
+	  *						if the engine is unknown, or 'virtual' is asked for
+	  *						on a Java version without virtual threads
+	  */
+		static Executor forEngine(String engine) {
+			if (engine.equals("thread")) {
+				return new Executor() {
+					@Override
+					public void execute(Runnable session) {
+						new Thread(session).start();
+					}
+				};
+			}
+			if (engine.equals("virtual")) {
+				return virtualThreadPerTask();
+			}
+			throw new IllegalArgumentException("Unknown engine '" + engine
+				+ "'. Use 'thread', 'virtual' or 'nio'.");
+		}
+
+	 /**
+	  * <p>
+	  * Gets the executor that runs the sessions' writers for the given
+	  * engine.
+	  * </p>
+	  * A writer only runs while its session has messages waiting, so with
+	  * platform threads a pool is used and an idle session holds no writer
+	  * thread at all.
+	  *
+	  * @param engine
+	  *						'thread' or 'virtual'
+	  * @return an executor for writer tasks
+	  */
+		static Executor forWriters(String engine) {
+			if (engine.equals("virtual")) {
+				return virtualThreadPerTask();
+			}
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable writer) {
+					Thread thread = new Thread(writer, "writer-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+	 /**
+	  * Creates Executors.newVirtualThreadPerTaskExecutor(). It is looked up
+	  * at run time so the server still compiles and runs on Java versions
+	  * older than 21 in the other modes.
+	  *
+	  * @return an executor which runs every task on a new virtual thread
+	  */
+		private static Executor virtualThreadPerTask() {
+			try {
+				return (Executor) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (NoSuchMethodException | IllegalAccessException e) {
+				throw new IllegalArgumentException("Virtual threads need Java 21 or later (running "
+					+ System.getProperty("java.version") + ").");
+			} catch (InvocationTargetException e) {
+				// e.g. Java 19/20 without --enable-preview
+				throw new IllegalArgumentException("Virtual threads are not available: "
+					+ e.getCause().getMessage());
+			}
+		}
+
+	} // End of the class SessionThreads
@@ -0,0 +1,230 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * ****************************
+ * Filename: TimerWheel.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Runs tasks after a delay, for many thousands of timers at once, on one
+  * thread: a hashed timer wheel.
+  * </p>
+  * <p>
+  * The wheel is a ring of buckets, one per tick. A timer goes in the bucket
+  * of the tick it is due in, counting how many times round the wheel that
+  * is; each tick, the thread walks that one bucket only. So starting or
+  * cancelling a timer costs the same however many there are, and time is
+  * only as precise as a tick, which is all that timeouts of seconds need.
+  * </p>
+  * Timers may be started and cancelled from any thread: new ones are handed
+  * to the wheel's thread through a queue, and cancelling only marks them, so
+  * the buckets themselves are only ever touched by the wheel's thread. Tasks
+  * run on that thread too, so they must be short and must not block.
+  *
+  * @author Jamil Triaa
+  */
+	final class TimerWheel {
+
+	 /**
+	  * A timer, which can be cancelled until its task has run.
+	  */
+		static final class Timeout {
+
+			private final Runnable task;
+
+		 /**
+		  * The tick the timer is due in.
+		  */
+			private final long deadline;
+
+		 /**
+		  * How many more times round the wheel before it is due.
+		  */
+			private long rounds;
+
+			private volatile boolean cancelled = false;
+
+		 /**
+		  * The neighbours in the bucket; only the wheel's thread uses them.
+		  */
+			private Timeout previous, next;
+
+			private Timeout(Runnable task, long deadline) {
+				this.task = task;
+				this.deadline = deadline;
+			}
+
+		 /**
+		  * Stops the task from running, if it has not run yet. The wheel takes
+		  * the timer out of its bucket when it next comes round to it.
+		  */
+			void cancel() {
+				cancelled = true;
+			}
+		}
+
+	 /**
+	  * How long (in nanoseconds) a tick is.
+	  */
+		private final long tickNanos;
+
+	 /**
+	  * The buckets; their number is a power of two.
+	  */
+		private final Timeout[] buckets;
+
+		private final int mask;
+
+	 /**
+	  * Timers started but not yet put in their buckets.
+	  */
+		private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+	 /**
+	  * When (System.nanoTime()) the wheel started.
+	  */
+		private final long start;
+
+	 /**
+	  * The tick the wheel has got to. Every timer started is due after it.
+	  */
+		private volatile long tick = 0;
+
+	 /**
+	  * The timers waiting, including cancelled ones not yet taken out.
+	  */
+		private volatile int pending = 0;
+
+	 /**
+	  * Creates a wheel and starts its thread.
+	  *
+	  * @param tickMillis
+	  *						how long a tick is
+	  * @param ticksPerWheel
+	  *						how many buckets there are, rounded up to a power of
+	  *						two; timers further ahead than one turn wait rounds
+	  * @param name
+	  *						the name of the thread
+	  */
+		TimerWheel(long tickMillis, int ticksPerWheel, String name) {
+			tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+			int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+			buckets = new Timeout[size];
+			mask = size - 1;
+			start = System.nanoTime();
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					turn();
+				}
+			}, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+	 /**
+	  * Starts a timer.
+	  *
+	  * @param task
+	  *						what to run, on the wheel's thread
+	  * @param delayMillis
+	  *						how long from now; it runs up to two ticks after that
+	  * @return the timer, to cancel it
+	  */
+		Timeout schedule(Runnable task, long delayMillis) {
+			long ticks = (TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) + tickNanos - 1) / tickNanos;
+			// The current tick may be nearly over, so one more: late, never early
+			Timeout timeout = new Timeout(task, tick + ticks + 1);
+			added.add(timeout);
+			return timeout;
+		}
+
+	 /**
+	  * Gets the time the wheel has got to, which moves on once a tick.
+	  * Reading it is much cheaper than reading the clock.
+	  *
+	  * @return the milliseconds since the wheel started
+	  */
+		long now() {
+			return TimeUnit.NANOSECONDS.toMillis(tick * tickNanos);
+		}
+
+	 /**
+	  * Gets the number of timers waiting.
+	  *
+	  * @return the number, including cancelled timers the wheel has not yet
+	  *						taken out
+	  */
+		int pending() {
+			return pending + added.size();
+		}
+
+	 /**
+	  * Moves on a tick at a time, for ever: puts the new timers in their
+	  * buckets, then runs the ones due in the tick.
+	  */
+		private void turn() {
+			while (true) {
+				long next = start + (tick + 1) * tickNanos;
+				long wait;
+				while ((wait = next - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				long now = tick + 1;
+				Timeout timeout;
+				int count = pending;
+				while ((timeout = added.poll()) != null) {
+					if (timeout.cancelled) continue;
+					// One that is already due goes in this tick's bucket
+					long due = Math.max(timeout.deadline, now);
+					timeout.rounds = (due - now) / buckets.length;
+					link(timeout, (int) (due & mask));
+					count++;
+				}
+				int index = (int) (now & mask);
+				timeout = buckets[index];
+				while (timeout != null) {
+					Timeout following = timeout.next;
+					if (timeout.cancelled) {
+						unlink(timeout, index);
+						count--;
+					} else if (timeout.rounds > 0) {
+						timeout.rounds--;
+					} else {
+						unlink(timeout, index);
+						count--;
+						try {
+							timeout.task.run();
+						} catch (RuntimeException e) {
+							System.err.println(" Exception in a timer: " + e);
+						}
+					}
+					timeout = following;
+				}
+				pending = count;
+				tick = now;
+			}
+		}
+
+		private void link(Timeout timeout, int index) {
+			Timeout head = buckets[index];
+			timeout.next = head;
+			if (head != null) head.previous = timeout;
+			buckets[index] = timeout;
+		}
+
+		private void unlink(Timeout timeout, int index) {
+			if (timeout.previous != null) timeout.previous.next = timeout.next;
+			else buckets[index] = timeout.next;
+			if (timeout.next != null) timeout.next.previous = timeout.previous;
+			timeout.previous = timeout.next = null;
+		}
+
+	} // End of the class TimerWheel
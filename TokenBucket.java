@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * ****************************
+ * Filename: TokenBucket.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Limits how fast something may happen, while letting it happen in
+  * bursts: a bucket holds up to a burst of tokens, refills at a steady
+  * rate, and each unit (a message, or a byte) takes a token.
+  * </p>
+  * <p>
+  * Rather than counting tokens, the bucket keeps the one time at which it
+  * would be full again (the "generic cell rate algorithm", which behaves
+  * exactly like a token bucket). Taking tokens moves that time on, so the
+  * whole state is one {@link AtomicLong} and taking is a read and a
+  * compare-and-set, with no lock. A bucket used by one session is never
+  * contended; the server-wide ones only by the sessions taking at the same
+  * moment.
+  * </p>
+  *
+  * @author Jamil Triaa
+  */
+	final class TokenBucket {
+
+	 /**
+	  * How long (in nanoseconds) it takes to earn one token.
+	  */
+		private final double nanosPerToken;
+
+	 /**
+	  * How far ahead of now the full time may be: the time to earn a burst.
+	  */
+		private final long tolerance;
+
+	 /**
+	  * When the bucket will be full again, in {@link System#nanoTime()}. A
+	  * time already past means it is full now.
+	  */
+		private final AtomicLong fullAt;
+
+	 /**
+	  * Creates a full bucket.
+	  *
+	  * @param perSecond
+	  *						the tokens earned per second
+	  * @param burst
+	  *						the most tokens the bucket holds
+	  * @throws IllegalArgumentException
+	  *						if either is not positive
+	  */
+		TokenBucket(double perSecond, long burst) {
+			if (perSecond <= 0 || burst <= 0) {
+				throw new IllegalArgumentException("A rate limit and its burst must be above 0");
+			}
+			nanosPerToken = 1e9 / perSecond;
+			tolerance = (long) (burst * nanosPerToken);
+			fullAt = new AtomicLong(System.nanoTime());
+		}
+
+	 /**
+	  * Takes tokens, if there are enough. More than a whole burst can only
+	  * be taken from a full bucket, which it then leaves owing the rest.
+	  *
+	  * @param tokens
+	  *						the number of tokens to take
+	  * @return true if they were taken, false if there were not enough
+	  */
+		boolean tryTake(long tokens) {
+			long cost = (long) (tokens * nanosPerToken);
+			while (true) {
+				long now = System.nanoTime();
+				long full = fullAt.get();
+				long from = full - now > 0 ? full : now;
+				long next = from + cost;
+				if (next - now > tolerance && from != now) return false;
+				if (fullAt.compareAndSet(full, next)) return true;
+			}
+		}
+
+	 /**
+	  * Gives tokens back, e.g. when a message they were taken for is not
+	  * sent after all.
+	  *
+	  * @param tokens
+	  *						the number of tokens
+	  */
+		void giveBack(long tokens) {
+			fullAt.addAndGet(-(long) (tokens * nanosPerToken));
+		}
+
+	} // End of the class TokenBucket
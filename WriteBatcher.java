@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * ****************************
+ * Filename: WriteBatcher.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Writes a session's queued messages in batches.
+  * </p>
+  * <p>
+  * Instead of one system call (and usually one small TCP segment) per
+  * message, all the messages waiting for a client are taken off its
+  * {@link OutboundQueue} together and handed to the socket with a single
+  * gathering write. Writers may also wait for a short window before writing
+  * so that a burst of chat lands in the same batch.
+  * </p>
+  * Every session has its own WriteBatcher, because a batch which the socket
+  * could only partly take is kept until the rest can be written.
+  *
+  * @author Jamil Triaa
+  */
+	final class WriteBatcher {
+
+	 /**
+	  * The most messages written by one system call.
+	  */
+		private static final int MAX_BATCH = 64;
+
+	 /**
+	  * How long (in nanoseconds) a writer waits for more messages before
+	  * writing. 0 writes straight away.
+	  */
+		private static long windowNanos = 0;
+
+	 /**
+	  * <p>
+	  * Once this many bytes are waiting, a writer does not wait for the
+	  * window.
+	  * </p>
+	  * It is also the most bytes put into one batch.
+	  */
+		private static int flushBytes = 16 * 1024;
+
+	 /**
+	  * The number of write system calls made by all writers.
+	  */
+		private static final LongAdder writes = new LongAdder();
+
+	 /**
+	  * The number of messages (fully) written by all writers.
+	  */
+		private static final LongAdder messagesWritten = new LongAdder();
+
+	 /**
+	  * The number of bytes written by all writers.
+	  */
+		private static final LongAdder bytesWritten = new LongAdder();
+
+	 /**
+	  * The messages being written. Those before {@link #first} are done.
+	  */
+		private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+
+	 /**
+	  * The first message in the batch which is not completely written.
+	  */
+		private int first = 0;
+
+	 /**
+	  * The number of messages in the batch.
+	  */
+		private int count = 0;
+
+	 /**
+	  * Sets the batching options for every writer.
+	  *
+	  * @param windowMicros
+	  *						how long to wait for more messages before writing
+	  * @param thresholdBytes
+	  *						write without waiting once this many bytes are
+	  *						waiting; also the largest batch
+	  */
+		static void configure(long windowMicros, int thresholdBytes) {
+			windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+			flushBytes = Math.max(1, thresholdBytes);
+		}
+
+	 /**
+	  * Gets how long a writer should wait before writing a queue, to give a
+	  * burst of messages a moment to grow into one batch.
+	  *
+	  * @param queue
+	  *						the session's outbound queue
+	  * @return the window (in nanoseconds), or 0 to write straight away: if
+	  *						there is no window, or the queue has reached the byte
+	  *						threshold or been closed
+	  */
+		static long delay(OutboundQueue queue) {
+			return windowNanos > 0 && queue.pendingBytes() < flushBytes && !queue.isClosed() ? windowNanos : 0;
+		}
+
+	 /**
+	  * Describes how well writes have been batched.
+	  *
+	  * @return e.g. "1200 messages in 300 system calls (4.0 per call)"
+	  */
+		static String report() {
+			long calls = writes.sum();
+			long messages = messagesWritten.sum();
+			return messages + " messages in " + calls + " system calls ("
+				+ String.format("%.1f", calls == 0 ? 0.0 : (double) messages / calls) + " per call)";
+		}
+
+	 /**
+	  * Gets the number of messages written by all writers.
+	  *
+	  * @return the number of messages
+	  */
+		static long messagesWritten() {
+			return messagesWritten.sum();
+		}
+
+	 /**
+	  * Gets the number of bytes written by all writers.
+	  *
+	  * @return the number of bytes
+	  */
+		static long bytesWritten() {
+			return bytesWritten.sum();
+		}
+
+	 /**
+	  * <p>
+	  * Writes queued messages to the channel until the queue is empty or the
+	  * channel will not take any more.
+	  * </p>
+	  * The channel may take only part of a batch (a non-blocking one when the
+	  * socket is full, and now and then even a blocking one); the rest is
+	  * kept for the next call.
+	  *
+	  * @param queue
+	  *						the session's outbound queue
+	  * @param channel
+	  *						the client's channel
+	  * @return true if everything was written, false if the channel is full
+	  * @throws IOException
+	  *						if the client can no longer be reached
+	  */
+		boolean writeTo(OutboundQueue queue, GatheringByteChannel channel) throws IOException {
+			while (true) {
+				if (first == count) {
+					// The previous batch is done; start a new one
+					first = 0;
+					count = queue.drainTo(batch, 0, flushBytes);
+					if (count == 0) return true;
+				} else if (count < MAX_BATCH) {
+					// Top up a partly written batch
+					count += queue.drainTo(batch, count, flushBytes);
+				}
+				bytesWritten.add(channel.write(batch, first, count - first));
+				writes.increment();
+				int done = first;
+				while (done < count && !batch[done].hasRemaining()) {
+					batch[done++] = null;
+				}
+				messagesWritten.add(done - first);
+				first = done;
+				if (first < count) {
+					// The channel is full
+					if (first > 0) {
+						// Move the unfinished messages to the front
+						System.arraycopy(batch, first, batch, 0, count - first);
+						Arrays.fill(batch, count - first, count, null);
+						count -= first;
+						first = 0;
+					}
+					return false;
+				}
+			}
+		}
+
+	 /**
+	  * Waits for the {@linkplain #delay(OutboundQueue) window}, then writes
+	  * queued messages to a blocking channel until the queue is empty.
+	  *
+	  * @param queue
+	  *						the session's outbound queue
+	  * @param channel
+	  *						the client's channel, in blocking mode
+	  * @throws IOException
+	  *						if the client can no longer be reached
+	  */
+		void writeAllTo(OutboundQueue queue, GatheringByteChannel channel) throws IOException {
+			long delay = delay(queue);
+			if (delay > 0) LockSupport.parkNanos(delay);
+			while (!writeTo(queue, channel)) {
+				// Only part of the batch went; a blocking channel takes the rest
+			}
+		}
+
+	 /**
+	  * Forgets the batch, e.g. when the client is being disconnected.
+	  */
+		void clear() {
+			Arrays.fill(batch, null);
+			first = 0;
+			count = 0;
+		}
+
+	} // End of the class WriteBatcher
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ****************************
+ * Filename: Bench.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * What the benchmarks in this directory have in common, so that each of
+  * them only holds the code it measures: a warm-up round before the one
+  * reported, timing calls and what they allocate, percentiles, a table for
+  * the results, and stub sessions for driving a server in memory.
+  * </p>
+  * The results are printed to the console the program started with, even
+  * once the server's own output has been {@linkplain #silenceServer()
+  * thrown away}.
+  *
+  * @author Jamil Triaa
+  */
+	final class Bench {
+
+	 /**
+	  * Stops the JIT from optimising the calls being measured away.
+	  */
+		static long sink;
+
+	 /**
+	  * Where the results go.
+	  */
+		static final PrintStream console = System.out;
+
+	 /**
+	  * Counts the bytes each thread allocates.
+	  */
+		private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		private Bench() {
+		}
+
+	 /**
+	  * One round of a benchmark.
+	  */
+		interface Round {
+
+		 /**
+		  * @param report
+		  *						false while the round only warms up the JIT
+		  */
+			void run(boolean report) throws Exception;
+		}
+
+	 /**
+	  * A table of results. Each column is given as its format and then its
+	  * heading, e.g. {@code "%10.1f ns/call"}; the heading is printed as wide
+	  * as the format.
+	  */
+		static final class Table {
+
+			private final String format;
+
+		 /**
+		  * Prints the headings.
+		  *
+		  * @param columns
+		  *						the format and heading of each column
+		  */
+			Table(String... columns) {
+				StringBuilder header = new StringBuilder();
+				StringBuilder row = new StringBuilder();
+				Object[] headings = new Object[columns.length];
+				for (int i = 0; i < columns.length; i++) {
+					int space = columns[i].indexOf(' ');
+					String column = columns[i].substring(0, space);
+					headings[i] = columns[i].substring(space + 1);
+					header.append(' ').append(column.replaceAll("^%(-?\\d*).*$", "%$1s"));
+					row.append(' ').append(column);
+				}
+				format = row.append("%n").toString();
+				console.printf(header.append("%n").toString(), headings);
+			}
+
+		 /**
+		  * Prints a row.
+		  *
+		  * @param values
+		  *						a value for each column
+		  */
+			void row(Object... values) {
+				console.printf(format, values);
+			}
+		}
+
+	 /**
+	  * Runs a round once to warm up the JIT, then again to report it.
+	  *
+	  * @param round
+	  *						the round
+	  * @throws Exception
+	  *						if the round fails
+	  */
+		static void warmUpThenRun(Round round) throws Exception {
+			round.run(false);
+			round.run(true);
+		}
+
+	 /**
+	  * Makes a number of calls and, when reporting, adds the label, the time
+	  * per call and the bytes allocated per call to a table.
+	  *
+	  * @param table
+	  *						the table to report to
+	  * @param label
+	  *						what is being called
+	  * @param calls
+	  *						how many calls to make
+	  * @param report
+	  *						false while warming up
+	  * @param call
+	  *						the call
+	  */
+		static void timeCalls(Table table, String label, int calls, boolean report, Runnable call) {
+			long allocatedBefore = allocated();
+			long start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				call.run();
+			}
+			long elapsed = System.nanoTime() - start;
+			long allocated = allocated() - allocatedBefore;
+			if (report) table.row(label, (double) elapsed / calls, (double) allocated / calls);
+		}
+
+	 /**
+	  * @return the bytes the current thread has allocated so far
+	  */
+		static long allocated() {
+			return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+	 /**
+	  * Sorts the first samples and picks percentiles from them.
+	  *
+	  * @param samples
+	  *						the samples, which are sorted in place
+	  * @param count
+	  *						how many of them there are
+	  * @param fractions
+	  *						the percentiles wanted, as fractions; 1 is the
+	  *						largest sample
+	  * @return the sample at each percentile
+	  */
+		static long[] percentiles(long[] samples, int count, double... fractions) {
+			Arrays.sort(samples, 0, count);
+			long[] values = new long[fractions.length];
+			for (int i = 0; i < fractions.length; i++) {
+				values[i] = samples[Math.min(count - 1, (int) (count * fractions[i]))];
+			}
+			return values;
+		}
+
+	 /**
+	  * Throws away what the server prints, leaving the {@link #console} to
+	  * the results.
+	  */
+		static void silenceServer() {
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		}
+
+	 /**
+	  * A session with nobody at the other end: whatever is queued for it is
+	  * taken off and counted straight away.
+	  */
+		private static final class StubClient implements Runnable {
+
+			private final LongAdder delivered;
+
+			private Server.HandleSession session;
+
+			StubClient(LongAdder delivered) {
+				this.delivered = delivered;
+			}
+
+			@Override
+			public void run() {
+				OutboundQueue queue = session.outbound();
+				while (queue.poll() != null) {
+					delivered.increment();
+				}
+			}
+		}
+
+	 /**
+	  * Creates a session with nobody at the other end and logs it in.
+	  *
+	  * @param server
+	  *						the server
+	  * @param name
+	  *						the name to log in with
+	  * @param delivered
+	  *						counts the messages queued for the session
+	  * @return the session
+	  * @throws IOException
+	  *						if the server fails to handle the login
+	  */
+		static Server.HandleSession login(Server server, String name, LongAdder delivered) throws IOException {
+			StubClient client = new StubClient(delivered);
+			client.session = server.newSession(client);
+			client.session.handleInput(ByteBuffer.wrap(line(name)));
+			return client.session;
+		}
+
+	 /**
+	  * Encodes a line as a client would send it.
+	  *
+	  * @param text
+	  *						the line
+	  * @return its bytes, with the line ending
+	  */
+		static byte[] line(String text) {
+			return (text + "\r\n").getBytes(StandardCharsets.UTF_8);
+		}
+
+	} // End of the class Bench
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * ****************************
+ * Filename: ChatLogBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Measures what logging costs the sessions which broadcast: the time a
+  * call to {@link ChatLog#append(byte, String)} takes, and how fast the
+  * writer gets the records to disk with group commit.
+  * </p>
+  * <p>
+  * For comparison, the same records are also written the simple way, where
+  * the broadcasting thread writes each record and forces it to disk itself.
+  * </p>
+  * Usage: {@code java ChatLogBenchmark [--threads=4] [--records=200000]
+  * [--syncRecords=2000] [--dir=/tmp]}
+  *
+  * @author Jamil Triaa
+  */
+	public class ChatLogBenchmark {
+
+	 /**
+	  * A typical chat record.
+	  */
+		private static final String RECORD = "lobby\n [12:00:00] somebody: a chat message of a typical length";
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @throws Exception
+	  *						if the log cannot be written
+	  */
+		public static void main(String[] args) throws Exception {
+			ServerOptions options = new ServerOptions(args);
+			final int threads = options.getInt("threads", 4, 1, 1024);
+			final int records = options.getInt("records", 200000, 1, Integer.MAX_VALUE);
+			int syncRecords = options.getInt("syncRecords", 2000, 1, Integer.MAX_VALUE);
+			String dir = options.getString("dir", "/tmp");
+			options.checkAllRead();
+			final Path base = Files.createTempDirectory(Paths.get(dir), "chatlog");
+
+			final Bench.Table table = new Bench.Table("%-26s method", "%12.0f mean ns", "%12d p99 ns", "%12d max ns",
+				"%14.0f records/s");
+			final FileChannel file = FileChannel.open(base.resolve("sync.log"), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			run(table, "write+force per record", threads, syncRecords, new Appender() {
+				@Override
+				public void append() throws IOException {
+					ByteBuffer record = ByteBuffer.wrap(RECORD.getBytes(StandardCharsets.UTF_8));
+					synchronized (file) {
+						file.write(record);
+						file.force(false);
+					}
+				}
+			}, null);
+			file.close();
+
+			Bench.warmUpThenRun(new Bench.Round() {
+				@Override
+				public void run(boolean report) throws Exception {
+					final ChatLog log = new ChatLog(base.resolve(report ? "log" : "warmup"), 64 * 1024 * 1024, 65536,
+						OutboundQueue.Overflow.BLOCK);
+					ChatLogBenchmark.run(report ? table : null, "ChatLog.append", threads, records, new Appender() {
+						@Override
+						public void append() {
+							log.append(ChatLog.CHAT, RECORD);
+						}
+					}, log);
+					if (report) Bench.console.println(" " + log.report());
+				}
+			});
+			delete(base);
+		}
+
+	 /**
+	  * Deletes the benchmark's files.
+	  */
+		private static void delete(Path path) throws IOException {
+			if (Files.isDirectory(path)) {
+				try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+					for (Path child : children) {
+						delete(child);
+					}
+				}
+			}
+			Files.delete(path);
+		}
+
+	 /**
+	  * Appends one record.
+	  */
+		private interface Appender {
+			void append() throws IOException;
+		}
+
+	 /**
+	  * Appends records from several threads, timing every call, and reports
+	  * the latencies and the throughput (once the log, if any, has written
+	  * everything) to the table, if any.
+	  */
+		private static void run(Bench.Table table, String label, int threads, final int records,
+			final Appender appender, ChatLog log) throws InterruptedException {
+			final long[][] times = new long[threads][records];
+			Thread[] workers = new Thread[threads];
+			long start = System.nanoTime();
+			for (int t = 0; t < threads; t++) {
+				final long[] mine = times[t];
+				workers[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for (int i = 0; i < records; i++) {
+								long before = System.nanoTime();
+								appender.append();
+								mine[i] = System.nanoTime() - before;
+							}
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				});
+				workers[t].start();
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			if (log != null) log.close(60000);
+			long elapsed = System.nanoTime() - start;
+			if (table == null) return;
+			long[] all = new long[threads * records];
+			for (int t = 0; t < threads; t++) {
+				System.arraycopy(times[t], 0, all, t * records, records);
+			}
+			double mean = 0;
+			for (long time : all) {
+				mean += time;
+			}
+			mean /= all.length;
+			long[] percentiles = Bench.percentiles(all, all.length, 0.99, 1);
+			table.row(label, mean, percentiles[0], percentiles[1], all.length * 1e9 / elapsed);
+		}
+
+	} // End of the class ChatLogBenchmark
@@ -0,0 +1,59 @@
+import java.text.SimpleDateFormat;
+
+/*
+ * ****************************
+ * Filename: ClockBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Compares the time and memory it takes to stamp a message with the
+  * current time: the old way (a new SimpleDateFormat for every call) and
+  * {@link Server#getCurrentTime()}, which reads the prefix cached by
+  * {@link ChatClock}.
+  * </p>
+  * Usage: {@code java ClockBenchmark [--calls=5000000]}
+  *
+  * @author Jamil Triaa
+  */
+	public class ClockBenchmark {
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @throws Exception
+	  *						if an option is not valid
+	  */
+		public static void main(String[] args) throws Exception {
+			ServerOptions options = new ServerOptions(args);
+			final int calls = options.getInt("calls", 5000000, 10, Integer.MAX_VALUE);
+			options.checkAllRead();
+
+			final Bench.Table table = new Bench.Table("%-18s method", "%10.1f ns/call", "%14.1f bytes/call");
+			Bench.warmUpThenRun(new Bench.Round() {
+				@Override
+				public void run(boolean report) {
+					Bench.timeCalls(table, "SimpleDateFormat", calls / 10, report, new Runnable() {
+						@Override
+						public void run() {
+							SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+							Bench.sink += ("[" + sdf.format(System.currentTimeMillis()) + "] ").length();
+						}
+					});
+					Bench.timeCalls(table, "getCurrentTime", calls, report, new Runnable() {
+						@Override
+						public void run() {
+							Bench.sink += Server.getCurrentTime().length();
+						}
+					});
+				}
+			});
+		}
+
+	} // End of the class ClockBenchmark
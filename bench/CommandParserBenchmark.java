@@ -0,0 +1,153 @@
+
+/*
+ * ****************************
+ * Filename: CommandParserBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Compares the time and memory it takes to work out which command a line
+  * is and to get its argument: the old way (a chain of startsWith checks, a
+  * switch, and catching the exception substring throws on a bad private
+  * message) and {@link CommandRegistry}.
+  * </p>
+  * <p>
+  * Only parsing is measured; the handlers just add up the argument lengths.
+  * Every call gets a fresh copy of its line, as a line read from a client
+  * would be, so neither side can use a cached hash code. Two mixes of
+  * commands are run: well-formed ones, and ones where a third are malformed
+  * private messages.
+  * </p>
+  * Usage: {@code java CommandParserBenchmark [--calls=5000000]}
+  *
+  * @author Jamil Triaa
+  */
+	public class CommandParserBenchmark {
+
+	 /**
+	  * Commands which are all well-formed.
+	  */
+		private static final String[] WELL_FORMED = {
+			"-help", "-private bob: are you there?", "-block carol", "-clientNo",
+			"-unblock carol", "-kick dave", "-admin 1234", "-queues", "-nope"
+		};
+
+	 /**
+	  * Commands where a third are private messages without a ':'.
+	  */
+		private static final String[] MALFORMED = {
+			"-private bob are you there?", "-help", "-private", "-block carol",
+			"-private x", "-clientNo"
+		};
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @throws Exception
+	  *						if an option is not valid
+	  */
+		public static void main(String[] args) throws Exception {
+			ServerOptions options = new ServerOptions(args);
+			final int calls = options.getInt("calls", 5000000, 1, Integer.MAX_VALUE);
+			options.checkAllRead();
+			final CommandRegistry<Object> registry = createRegistry();
+
+			final Bench.Table table = new Bench.Table("%-22s parser", "%10.1f ns/call", "%14.1f bytes/call");
+			Bench.warmUpThenRun(new Bench.Round() {
+				@Override
+				public void run(boolean report) {
+					for (final String[] mix : new String[][] { WELL_FORMED, MALFORMED }) {
+						final String name = mix == WELL_FORMED ? "well-formed" : "malformed";
+						Bench.timeCalls(table, "old, " + name, calls, report, new Runnable() {
+							private int next = 0;
+
+							@Override
+							public void run() {
+								Bench.sink += oldDispatch(new String(mix[next]));
+								if (++next == mix.length) next = 0;
+							}
+						});
+						Bench.timeCalls(table, "registry, " + name, calls, report, new Runnable() {
+							private int next = 0;
+
+							@Override
+							public void run() {
+								String command = new String(mix[next]);
+								CommandRegistry.Command<Object> match = registry.find(command);
+								if (match == null) Bench.sink += 0;
+								else if (!match.accepts(command)) Bench.sink -= 1;
+								else match.run(null, command);
+								if (++next == mix.length) next = 0;
+							}
+						});
+					}
+				}
+			});
+		}
+
+	 /**
+	  * The old way of telling commands apart, as processClientRequest(),
+	  * privateMsg(), block(), unBlock(), verifyAdmin() and kick() did it.
+	  */
+		private static int oldDispatch(String command) {
+			if (command.startsWith("-private ")) {
+				try {
+					String receiver = command.substring(9, command.indexOf(":"));
+					String message = command.substring(command.indexOf(":") + 1).trim();
+					return receiver.length() + message.length();
+				} catch (Exception e) {
+					return -1;
+				}
+			} else if (command.startsWith("-block ")) {
+				return command.substring(7).length();
+			} else if (command.startsWith("-unblock ")) {
+				return command.substring(9).length();
+			} else if (command.startsWith("-admin ")) {
+				return command.equals("-admin " + 1234) ? 1 : 0;
+			} else if (command.startsWith("-kick ")) {
+				return command.substring(6).length();
+			} else {
+				switch (command) {
+					case "-help": return 1;
+					case "-serverTime": return 2;
+					case "-clientTime": return 3;
+					case "-address": return 4;
+					case "-clientNo": return 5;
+					case "-cls": return 6;
+					case "-quit": return 7;
+					case "-shutdown": return 8;
+					case "-queues": return 9;
+					default: return 0;
+				}
+			}
+		}
+
+	 /**
+	  * The server's commands, with handlers which only look at the argument.
+	  */
+		private static CommandRegistry<Object> createRegistry() {
+			CommandRegistry.Handler<Object> handler = new CommandRegistry.Handler<Object>() {
+				@Override
+				public void handle(Object session, String argument) {
+					Bench.sink += argument.length() + 1;
+				}
+			};
+			CommandRegistry<Object> registry = new CommandRegistry<Object>();
+			String[] usages = {
+				"-help", "-serverTime", "-clientTime", "-address", "-clientNo",
+				"-private username: message", "-block username", "-unblock username",
+				"-cls", "-quit", "-kick username", "-queues", "-shutdown", "-admin password"
+			};
+			for (String usage : usages) {
+				registry.register(usage, "", CommandRegistry.Audience.EVERYONE, handler);
+			}
+			return registry;
+		}
+
+	} // End of the class CommandParserBenchmark
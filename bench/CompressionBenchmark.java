@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/*
+ * ****************************
+ * Filename: CompressionBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Compares ways of compressing chat messages for binary clients, on made
+  * up messages of a typical length: how much smaller they get, and how
+  * long each takes.
+  * </p>
+  * <ul>
+  * <li>Each message on its own, with no dictionary.</li>
+  * <li>Each message on its own, with the preset dictionary: what
+  * {@link Compression} does.</li>
+  * <li>One stream per connection, flushed after every message, which
+  * remembers the earlier messages.</li>
+  * </ul>
+  * <p>
+  * A stream belongs to one connection, so a broadcast has to be compressed
+  * once for each receiver, whereas a message compressed on its own is
+  * shared by all of them. The benchmark also reports what a broadcast
+  * costs each way for {@code --receivers}.
+  * </p>
+  * Usage: {@code java CompressionBenchmark [--messages=200000]
+  * [--receivers=100] [--level=6]}
+  *
+  * @author Jamil Triaa
+  */
+	public class CompressionBenchmark {
+
+		private static final String[] NAMES = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi"};
+
+		private static final String[] WORDS = {"the", "and", "you", "that", "this", "have", "what", "just", "like",
+			"know", "think", "really", "people", "would", "about", "there", "going", "today", "tomorrow", "meeting",
+			"server", "room", "lunch", "yeah", "okay", "thanks", "sorry", "please", "because", "good", "great", "lol",
+			"anyone", "everyone", "work", "time", "later", "deploy", "build", "tests", "coffee", "weekend"};
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @throws Exception
+	  *						if an option is not valid
+	  */
+		public static void main(String[] args) throws Exception {
+			ServerOptions options = new ServerOptions(args);
+			int count = options.getInt("messages", 200000, 1, Integer.MAX_VALUE);
+			final int receivers = options.getInt("receivers", 100, 1, Integer.MAX_VALUE);
+			final int level = options.getInt("level", 6, 1, 9);
+			options.checkAllRead();
+			Compression.configure(32, level);
+
+			// Lines as the server sends them: a time, a name and some words
+			Random random = new Random(42);
+			final byte[][] messages = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				StringBuilder line = new StringBuilder(String.format("[%02d:%02d:%02d] %s: ", 9 + i / 3600 % 12,
+					i / 60 % 60, i % 60, NAMES[random.nextInt(NAMES.length)]));
+				for (int words = 4 + random.nextInt(16); words > 0; words--) {
+					line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+				}
+				messages[i] = line.toString().trim().getBytes(StandardCharsets.UTF_8);
+			}
+
+			final Bench.Table table = new Bench.Table("%-26s method", "%10s ratio", "%10.0f ns/msg",
+				"%16.0f ns/broadcast x" + receivers);
+			Bench.warmUpThenRun(new Bench.Round() {
+				@Override
+				public void run(boolean report) {
+					measure(table, "per message, no dictionary", messages, report, receivers, false, new Compressor() {
+						private final Deflater deflater = new Deflater(level, true);
+						private final byte[] out = new byte[64 * 1024];
+
+						@Override
+						public int compress(byte[] message) {
+							deflater.reset();
+							deflater.setInput(message);
+							deflater.finish();
+							int size = deflater.deflate(out);
+							return Math.min(size, message.length);
+						}
+					});
+					measure(table, "per message, dictionary", messages, report, receivers, false, new Compressor() {
+						@Override
+						public int compress(byte[] message) {
+							ByteBuffer frame = Compression.encode(Frame.CHAT, message, 0, message.length);
+							return frame == null ? message.length : frame.remaining() - Frame.HEADER_LENGTH;
+						}
+					});
+					measure(table, "stream per connection", messages, report, receivers, true, new Compressor() {
+						private final Deflater deflater = new Deflater(level, true);
+						private final byte[] out = new byte[64 * 1024];
+
+						@Override
+						public int compress(byte[] message) {
+							deflater.setInput(message);
+							return deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+						}
+					});
+				}
+			});
+		}
+
+	 /**
+	  * Compresses one message.
+	  */
+		private interface Compressor {
+
+		 /**
+		  * @return the size it is sent at
+		  */
+			int compress(byte[] message);
+		}
+
+	 /**
+	  * Compresses every message, and works out what a broadcast costs.
+	  */
+		private static void measure(Bench.Table table, String label, byte[][] messages, boolean report,
+				int receivers, boolean perReceiver, Compressor compressor) {
+			long before = 0;
+			long after = 0;
+			long start = System.nanoTime();
+			for (byte[] message : messages) {
+				before += message.length;
+				after += compressor.compress(message);
+			}
+			long elapsed = System.nanoTime() - start;
+			Bench.sink += after;
+			if (report) {
+				double perMessage = (double) elapsed / messages.length;
+				table.row(label, String.format("%.0f%%", 100.0 * after / before), perMessage,
+					perReceiver ? perMessage * receivers : perMessage);
+			}
+		}
+
+	} // End of the class CompressionBenchmark
@@ -0,0 +1,90 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/*
+ * ****************************
+ * Filename: ConsoleBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Measures how fast the client can put a busy room's messages on the
+  * console: one {@code println} per message on an autoflushing
+  * {@link PrintStream}, as {@code System.out} is, against the
+  * {@link ConsoleRenderer}, which writes whatever has built up at once.
+  * </p>
+  * <p>
+  * The console is a file, so that the figures do not depend on a
+  * terminal. For each way, it reports how long the thread reading from
+  * the server is held up per message, how long until every message has
+  * been written, and how many writes that took.
+  * </p>
+  * Usage: {@code java ConsoleBenchmark [--messages=200000]}
+  *
+  * @author Jamil Triaa
+  */
+	public class ConsoleBenchmark {
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @throws Exception
+	  *						if the file standing in for the console cannot be
+	  *						written
+	  */
+		public static void main(String[] args) throws Exception {
+			ServerOptions options = new ServerOptions(args);
+			final int count = options.getInt("messages", 200000, 1, Integer.MAX_VALUE);
+			options.checkAllRead();
+			final String[] messages = new String[count];
+			for (int i = 0; i < count; i++) {
+				messages[i] = String.format(" [%02d:%02d:%02d] user%d: message number %d of a busy room",
+					9 + i / 3600 % 12, i / 60 % 60, i % 60, i % 50, i);
+			}
+			final File file = File.createTempFile("console", ".txt");
+			file.deleteOnExit();
+
+			final Bench.Table table = new Bench.Table("%-22s console", "%14.0f ns/msg held up",
+				"%14.1f ms until done", "%12d writes");
+			Bench.warmUpThenRun(new Bench.Round() {
+				@Override
+				public void run(boolean report) throws IOException {
+					try (PrintStream out = new PrintStream(new FileOutputStream(file), true)) {
+						long start = System.nanoTime();
+						for (String message : messages) {
+							out.println(message);
+						}
+						long done = System.nanoTime();
+						if (report) {
+							table.row("println per message", (double) (done - start) / count, (done - start) / 1e6,
+								count);
+						}
+					}
+
+					try (PrintStream out = new PrintStream(new FileOutputStream(file), true)) {
+						ConsoleRenderer renderer = new ConsoleRenderer(out, "console");
+						long start = System.nanoTime();
+						for (String message : messages) {
+							renderer.println(message);
+						}
+						long handedOver = System.nanoTime();
+						renderer.close();
+						long done = System.nanoTime();
+						if (report) {
+							table.row("ConsoleRenderer", (double) (handedOver - start) / count, (done - start) / 1e6,
+								renderer.writes());
+						}
+					}
+				}
+			});
+		}
+
+	} // End of the class ConsoleBenchmark
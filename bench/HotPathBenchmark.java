@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ****************************
+ * Filename: HotPathBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Drives the server's hot paths in memory, with no sockets, so that a
+  * change to the fan-out code shows up as a change in the numbers.
+  * </p>
+  * <p>
+  * For each number of users, a server is {@linkplain Server#configure(String[])
+  * set up} and that many sessions log in to the lobby (without being
+  * announced, which would take time proportional to the square of their
+  * number). Each session's outbound queue is emptied as soon as anything is
+  * put on it, as a writer that is never behind would. Then, one at a time,
+  * these are run for a while and timed call by call:
+  * </p>
+  * <ul>
+  * <li>broadcast: a chat message, which goes to everybody in the lobby.</li>
+  * <li>privateMsg: "-private name: message" to another user.</li>
+  * <li>processClientRequest: a mix of -clientNo, -serverTime, -rooms and an
+  * unknown command.</li>
+  * <li>login: a new session logs in (and is announced to the lobby), then
+  * leaves again (and is announced again). Arrivals are announced straight
+  * away, as a presence window would cancel each out with its leaving.</li>
+  * </ul>
+  * <p>
+  * Everything goes in through {@link Server.HandleSession#handleInput(ByteBuffer)},
+  * as the bytes of a line would from a client. The benchmark reports the
+  * throughput, the latency percentiles, what each call allocates and how
+  * many messages it delivers. The server's own console output is thrown
+  * away.
+  * </p>
+  * Any other options are passed on to the server, e.g. {@code --historyMessages=0}.
+  * Usage: {@code java HotPathBenchmark [--users=10,1000,50000] [--millis=2000]}
+  *
+  * @author Jamil Triaa
+  */
+	public class HotPathBenchmark {
+
+	 /**
+	  * The most calls whose times are kept for the percentiles.
+	  */
+		private static final int MAX_SAMPLES = 1 << 20;
+
+	 /**
+	  * One of the paths being measured.
+	  */
+		private interface Operation {
+			void run(int call) throws IOException;
+		}
+
+	 /**
+	  * The sessions of the users logged in.
+	  */
+		private static Server.HandleSession[] users;
+
+	 /**
+	  * The messages delivered to the users logged in.
+	  */
+		private static final LongAdder delivered = new LongAdder();
+
+	 /**
+	  * The messages delivered to the sessions which log in while measuring.
+	  */
+		private static final LongAdder ignored = new LongAdder();
+
+	 /**
+	  * The server being driven.
+	  */
+		private static Server server;
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						options for the benchmark and the server
+	  * @throws Exception
+	  *						if the server cannot be set up
+	  */
+		public static void main(String[] args) throws Exception {
+			ServerOptions options = new ServerOptions(args);
+			long millis = options.getLong("millis", 2000, 2, Long.MAX_VALUE / 1000000);
+			Bench.silenceServer();
+
+			Bench.Table table = new Bench.Table("%7d users", "%-22s path", "%12.0f ops/s", "%9d p50 ns", "%9d p99 ns",
+				"%10d p99.9 ns", "%11.0f bytes/op", "%10.1f msgs/op");
+			for (String count : options.getString("users", "10,1000,50000").split(",")) {
+				int n = Integer.parseInt(count.trim());
+				long setUp = System.nanoTime();
+				server = Server.configure(withoutLimits(args));
+				users = new Server.HandleSession[n];
+				// Announcing every user to all those before would take time proportional to n * n
+				boolean announce = Server.announcePresence;
+				Server.announcePresence = false;
+				for (int i = 0; i < n; i++) {
+					users[i] = Bench.login(server, "user" + i, delivered);
+				}
+				Server.announcePresence = announce;
+				Bench.console.printf(" %d users logged in in %d ms%n", n, (System.nanoTime() - setUp) / 1000000);
+
+				final Random random = new Random(42);
+				final byte[] chat = Bench.line("a chat message of a typical length");
+				measure(table, n, "broadcast", millis, new Operation() {
+					@Override
+					public void run(int call) throws IOException {
+						users[random.nextInt(users.length)].handleInput(ByteBuffer.wrap(chat));
+					}
+				});
+				measure(table, n, "privateMsg", millis, new Operation() {
+					@Override
+					public void run(int call) throws IOException {
+						int from = random.nextInt(users.length);
+						int to = (from + 1) % users.length;
+						users[from].handleInput(ByteBuffer.wrap(
+							Bench.line("-private user" + to + ": a private message")));
+					}
+				});
+				final byte[][] commands = {
+					Bench.line("-clientNo"), Bench.line("-serverTime"), Bench.line("-rooms"), Bench.line("-nope")
+				};
+				measure(table, n, "processClientRequest", millis, new Operation() {
+					@Override
+					public void run(int call) throws IOException {
+						users[random.nextInt(users.length)].handleInput(ByteBuffer.wrap(commands[call & 3]));
+					}
+				});
+				measure(table, n, "login", millis, new Operation() {
+					@Override
+					public void run(int call) throws IOException {
+						Bench.login(server, "guest" + call, ignored).closeConnection();
+					}
+				});
+			}
+		}
+
+	 /**
+	  * Turns the clients' rate limits off, unless the options set them: a
+	  * few users here send far more than any person could. Also announces
+	  * people coming and going straight away, so that logging in and out
+	  * is one broadcast each.
+	  */
+		private static String[] withoutLimits(String[] args) {
+			String[] all = new String[args.length + 3];
+			all[0] = "--rateLimit=0";
+			all[1] = "--byteRateLimit=0";
+			all[2] = "--presenceWindowMs=0";
+			System.arraycopy(args, 0, all, 3, args.length);
+			return all;
+		}
+
+	 /**
+	  * Warms an operation up for half the time, then runs it for the whole
+	  * time, timing every call, and adds the results to the table.
+	  */
+		private static void measure(final Bench.Table table, final int n, final String label, final long millis,
+			final Operation operation) throws Exception {
+			final long[] samples = new long[MAX_SAMPLES];
+			Bench.warmUpThenRun(new Bench.Round() {
+				private int call = 0;
+
+				@Override
+				public void run(boolean report) throws IOException {
+					long before = delivered.sum();
+					long allocatedBefore = Bench.allocated();
+					long start = System.nanoTime();
+					long end = start + (report ? millis : millis / 2) * 1000000;
+					int calls = 0;
+					long now = start;
+					while (now < end) {
+						operation.run(call++);
+						long after = System.nanoTime();
+						if (calls < MAX_SAMPLES) samples[calls] = after - now;
+						calls++;
+						now = after;
+					}
+					if (!report) return;
+					long elapsed = now - start;
+					long allocated = Bench.allocated() - allocatedBefore;
+					long messages = delivered.sum() - before;
+					long[] percentiles = Bench.percentiles(samples, Math.min(calls, MAX_SAMPLES), 0.5, 0.99, 0.999);
+					table.row(n, label, calls * 1e9 / elapsed, percentiles[0], percentiles[1], percentiles[2],
+						(double) allocated / calls, (double) messages / calls);
+				}
+			});
+		}
+
+	} // End of the class HotPathBenchmark
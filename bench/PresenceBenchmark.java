@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ****************************
+ * Filename: PresenceBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Measures a login storm, as after the server has restarted and every
+  * client reconnects at once: that many sessions log in to the lobby, one
+  * straight after the other, with their arrivals announced.
+  * </p>
+  * <p>
+  * It is run with each of the presence windows given: 0 tells the lobby
+  * about each arrival on its own, which takes time proportional to the
+  * square of their number, and a window gathers the arrivals up. For each,
+  * it reports how long the logins took, how long until the lobby had been
+  * told everything, and how many messages that took. It runs in memory,
+  * with no sockets, as {@link HotPathBenchmark} does.
+  * </p>
+  * Usage: {@code java PresenceBenchmark [--users=1000,5000] [--windows=0,250]}
+  *
+  * @author Jamil Triaa
+  */
+	public class PresenceBenchmark {
+
+	 /**
+	  * The messages queued for all the sessions.
+	  */
+		private static final LongAdder messages = new LongAdder();
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						options for the benchmark and the server
+	  * @throws Exception
+	  *						if the server cannot be set up
+	  */
+		public static void main(String[] args) throws Exception {
+			ServerOptions options = new ServerOptions(args);
+			String users = options.getString("users", "1000,5000");
+			String windows = options.getString("windows", "0,250");
+			options.checkAllRead();
+			Bench.silenceServer();
+
+			final Bench.Table table = new Bench.Table("%7d users", "%10d window ms", "%12.1f login ms",
+				"%14.1f ms until told", "%14d messages", "%10.1f msgs/user");
+			for (String count : users.split(",")) {
+				final int n = Integer.parseInt(count.trim());
+				for (String window : windows.split(",")) {
+					final long windowMillis = Long.parseLong(window.trim());
+					Bench.warmUpThenRun(new Bench.Round() {
+						@Override
+						public void run(boolean report) throws Exception {
+							Server server = Server.configure(new String[] {
+								"--rateLimit=0", "--byteRateLimit=0", "--historyMessages=0",
+								"--presenceWindowMs=" + windowMillis
+							});
+							messages.reset();
+							long start = System.nanoTime();
+							for (int i = 0; i < n; i++) {
+								Bench.login(server, "user" + i, messages);
+							}
+							long loggedIn = System.nanoTime();
+							long told = waitUntilQuiet(windowMillis);
+							if (report) {
+								long total = messages.sum();
+								table.row(n, windowMillis, (loggedIn - start) / 1e6, (told - start) / 1e6, total,
+									(double) total / n);
+							}
+						}
+					});
+				}
+			}
+		}
+
+	 /**
+	  * Waits until no message has been queued for a while longer than the
+	  * window.
+	  *
+	  * @return when (System.nanoTime()) the last message was queued
+	  */
+		private static long waitUntilQuiet(long windowMillis) throws InterruptedException {
+			long quiet = (2 * windowMillis + 100) * 1000000;
+			long last = messages.sum();
+			long changed = System.nanoTime();
+			while (System.nanoTime() - changed < quiet) {
+				Thread.sleep(5);
+				long now = messages.sum();
+				if (now != last) {
+					last = now;
+					changed = System.nanoTime();
+				}
+			}
+			return changed;
+		}
+
+	} // End of the class PresenceBenchmark
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * ****************************
+ * Filename: SessionModeBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Compares the server's engines when many clients are connected but idle.
+  * </p>
+  * <p>
+  * For every engine named on the command line, a Server is started in a
+  * separate process and the benchmark opens the given number of connections
+  * to it. A connection counts as accepted once the server's welcome line
+  * has arrived, i.e. its session is running. The benchmark then reports the
+  * accept throughput and the server process's resident memory and thread
+  * count (read from /proc, so memory figures are only shown on Linux).
+  * </p>
+  * Usage: {@code java SessionModeBenchmark [--connections=10000]
+  * [--port=2300] [thread] [virtual] [nio]}
+  *
+  * @author Jamil Triaa
+  */
+	public class SessionModeBenchmark {
+
+	 /**
+	  * How many connect + welcome handshakes may be in progress at once. Kept
+	  * well below the server's accept backlog so no SYNs are dropped.
+	  */
+		private static final int IN_FLIGHT = 40;
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						options and the engines to compare
+	  * @throws Exception
+	  *						if a server cannot be started
+	  */
+		public static void main(String[] args) throws Exception {
+			int connections = 10000;
+			int port = 2300;
+			List<String> engines = new ArrayList<String>();
+			for (String arg : args) {
+				if (arg.startsWith("--connections=")) connections = Integer.parseInt(arg.substring(14));
+				else if (arg.startsWith("--port=")) port = Integer.parseInt(arg.substring(7));
+				else engines.add(arg);
+			}
+			if (engines.isEmpty()) {
+				engines.add("thread");
+				engines.add("virtual");
+			}
+
+			Bench.Table table = new Bench.Table("%-8s engine", "%11d connections", "%12.0f accepted/s",
+				"%10s RSS before", "%10s RSS after", "%12s per session", "%8s threads");
+			for (String engine : engines) {
+				try {
+					run(table, engine, connections, port);
+				} catch (IllegalStateException e) {
+					// e.g. 'virtual' on a Java version without virtual threads
+					System.out.printf(" %-8s unavailable: %s%n", engine, e.getMessage());
+				}
+			}
+		}
+
+	 /**
+	  * Benchmarks one engine.
+	  */
+		private static void run(Bench.Table table, String engine, int connections, int port) throws Exception {
+			// The idle clients never log in, so none may be turned away for it
+			Process server = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), "Server", "--engine=" + engine, "--port=" + port,
+				"--maxHandshakes=0")
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+			try {
+				waitUntilListening(server, port);
+				long rssBefore = procStatus(server.pid(), "VmRSS:");
+
+				List<SocketChannel> channels = new ArrayList<SocketChannel>(connections);
+				long start = System.nanoTime();
+				int accepted = connect(port, connections, channels);
+				double seconds = (System.nanoTime() - start) / 1e9;
+
+				// Let the server settle before measuring it
+				Thread.sleep(2000);
+				long rssAfter = procStatus(server.pid(), "VmRSS:");
+				long threads = procStatus(server.pid(), "Threads:");
+
+				table.row(engine, accepted, accepted / seconds, kb(rssBefore), kb(rssAfter),
+					rssAfter < 0 ? "n/a" : ((rssAfter - rssBefore) * 1024 / Math.max(1, accepted)) + " B",
+					threads < 0 ? "n/a" : Long.toString(threads));
+
+				for (SocketChannel channel : channels) channel.close();
+			} finally {
+				server.destroy();
+				server.waitFor();
+			}
+		}
+
+	 /**
+	  * Opens the connections and waits for every welcome line.
+	  *
+	  * @return how many connections were welcomed
+	  */
+		private static int connect(int port, int connections, List<SocketChannel> channels) throws IOException {
+			InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+			Selector selector = Selector.open();
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			int started = 0, inFlight = 0, welcomed = 0, failed = 0;
+			while (welcomed + failed < connections) {
+				while (started < connections && inFlight < IN_FLIGHT) {
+					SocketChannel channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.connect(address);
+					channel.register(selector, SelectionKey.OP_CONNECT);
+					channels.add(channel);
+					started++;
+					inFlight++;
+				}
+				if (selector.select(30000) == 0) {
+					System.err.println(" Timed out with " + inFlight + " handshakes unfinished");
+					break;
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					SocketChannel channel = (SocketChannel) key.channel();
+					try {
+						if (key.isConnectable()) {
+							channel.finishConnect();
+							key.interestOps(SelectionKey.OP_READ);
+						} else if (key.isReadable()) {
+							buffer.clear();
+							int count = channel.read(buffer);
+							if (count < 0) throw new IOException("closed by server");
+							for (int i = 0; i < count; i++) {
+								if (buffer.get(i) == '\n') {
+									// The session is up; stop watching this connection
+									key.cancel();
+									welcomed++;
+									inFlight--;
+									break;
+								}
+							}
+						}
+					} catch (IOException e) {
+						key.cancel();
+						failed++;
+						inFlight--;
+					}
+				}
+			}
+			selector.close();
+			if (failed > 0) System.err.println(" " + failed + " connections failed");
+			return welcomed;
+		}
+
+	 /**
+	  * Waits for the server process to accept connections.
+	  */
+		private static void waitUntilListening(Process server, int port) throws Exception {
+			for (int i = 0; i < 100; i++) {
+				if (!server.isAlive()) throw new IllegalStateException("Server exited with " + server.exitValue());
+				try {
+					new Socket("127.0.0.1", port).close();
+					// Give the probe's session time to go away again
+					Thread.sleep(200);
+					return;
+				} catch (IOException e) {
+					Thread.sleep(100);
+				}
+			}
+			throw new IllegalStateException("Server did not start listening on port " + port);
+		}
+
+	 /**
+	  * Reads a number from /proc/[pid]/status.
+	  *
+	  * @return the value (kB for memory fields), or -1 if unavailable
+	  */
+		private static long procStatus(long pid, String field) {
+			try {
+				for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+					if (line.startsWith(field)) {
+						return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// Not Linux
+			}
+			return -1;
+		}
+
+		private static String kb(long kb) {
+			return kb < 0 ? "n/a" : (kb / 1024) + " MB";
+		}
+
+	} // End of the class SessionModeBenchmark
@@ -0,0 +1,133 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ****************************
+ * Filename: TimerWheelBenchmark.java
+ * Student Name: Jamil Triaa
+ * University ID: 201182053
+ * Departmental ID: u6jt
+ * ****************************
+ */
+
+ /**
+  * <p>
+  * Measures what it costs to watch many sessions for silence: starting and
+  * cancelling a timer per session with the server's {@link TimerWheel},
+  * against a {@link ScheduledThreadPoolExecutor}, whose queue is a heap.
+  * </p>
+  * <p>
+  * Each round starts a timer for every session, cancels and restarts it as
+  * an idle check does when the session has been active, then lets the
+  * last ones fire and times how late they were.
+  * </p>
+  * Usage: {@code java TimerWheelBenchmark [--sessions=50000]}
+  *
+  * @author Jamil Triaa
+  */
+	public class TimerWheelBenchmark {
+
+	 /**
+	  * Runs the benchmark.
+	  *
+	  * @param args
+	  *						command line arguments
+	  * @throws Exception
+	  *						if interrupted while waiting for the timers
+	  */
+		public static void main(String[] args) throws Exception {
+			ServerOptions options = new ServerOptions(args);
+			final int sessions = options.getInt("sessions", 50000, 1, Integer.MAX_VALUE);
+			options.checkAllRead();
+
+			final Bench.Table table = new Bench.Table("%-30s timers", "%14.1f ns/schedule", "%14.1f ns/cancel",
+				"%14.1f late ms (max)");
+			Bench.warmUpThenRun(new Bench.Round() {
+				@Override
+				public void run(boolean report) throws InterruptedException {
+					final TimerWheel wheel = new TimerWheel(100, 512, "wheel");
+					measure(table, "TimerWheel", sessions, report, new Timers() {
+						@Override
+						public Object schedule(Runnable task, long delayMillis) {
+							return wheel.schedule(task, delayMillis);
+						}
+
+						@Override
+						public void cancel(Object timer) {
+							((TimerWheel.Timeout) timer).cancel();
+						}
+					});
+					final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+					executor.setRemoveOnCancelPolicy(true);
+					measure(table, "ScheduledThreadPoolExecutor", sessions, report, new Timers() {
+						@Override
+						public Object schedule(Runnable task, long delayMillis) {
+							return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+						}
+
+						@Override
+						public void cancel(Object timer) {
+							((ScheduledFuture<?>) timer).cancel(false);
+						}
+					});
+					executor.shutdown();
+				}
+			});
+		}
+
+	 /**
+	  * Starts and cancels timers.
+	  */
+		private interface Timers {
+
+			Object schedule(Runnable task, long delayMillis);
+
+			void cancel(Object timer);
+		}
+
+	 /**
+	  * Starts a timer per session, a second out, and times starting and
+	  * cancelling them; then how late the ones left running fire.
+	  */
+		private static void measure(Bench.Table table, String label, int sessions, boolean report, Timers timers)
+				throws InterruptedException {
+			Runnable nothing = new Runnable() {
+				@Override
+				public void run() {
+				}
+			};
+			Object[] started = new Object[sessions];
+			long start = System.nanoTime();
+			for (int i = 0; i < sessions; i++) {
+				started[i] = timers.schedule(nothing, 1000 + i % 1000);
+			}
+			long scheduled = System.nanoTime();
+			for (int i = 0; i < sessions; i++) {
+				timers.cancel(started[i]);
+			}
+			long cancelled = System.nanoTime();
+
+			// The restarted timers record how late they are
+			final CountDownLatch done = new CountDownLatch(sessions);
+			final long[] latest = new long[1];
+			final long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1000);
+			Runnable late = new Runnable() {
+				@Override
+				public void run() {
+					latest[0] = Math.max(latest[0], System.nanoTime() - due);
+					done.countDown();
+				}
+			};
+			for (int i = 0; i < sessions; i++) {
+				timers.schedule(late, 1000);
+			}
+			done.await();
+			if (report) {
+				table.row(label, (double) (scheduled - start) / sessions, (double) (cancelled - scheduled) / sessions,
+					latest[0] / 1e6);
+			}
+		}
+
+	} // End of the class TimerWheelBenchmark